@@ -0,0 +1,51 @@
+package org.sididev;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vcs.changes.Change;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Path analysis of synthetic changesets, with a metadata cache that is warm from earlier
+ * iterations and with a fresh one per run
+ */
+@State(Scope.Benchmark)
+public class ChangeAnalyzerBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    public int size;
+
+    private List<Change> changes;
+    private ChangeAnalyzer warmAnalyzer;
+    private final ProgressIndicator indicator = new EmptyProgressIndicator();
+
+    @Setup
+    public void setUp() {
+        changes = SyntheticChanges.create(size, 42);
+        warmAnalyzer = new ChangeAnalyzer(PathClassifier.defaults(), new PathMetadataCache());
+        warmAnalyzer.analyzeChanges(changes, indicator);
+    }
+
+    @Benchmark
+    public List<FileChange> analyzeWarmCache() {
+        return warmAnalyzer.analyzeChanges(changes, indicator);
+    }
+
+    @Benchmark
+    public List<FileChange> analyzeColdCache() {
+        return new ChangeAnalyzer(PathClassifier.defaults(), new PathMetadataCache()).analyzeChanges(changes, indicator);
+    }
+
+    @Benchmark
+    public ChangeSummary analyzeIntoSummary() {
+        ChangeSummary summary = new ChangeSummary(100);
+        warmAnalyzer.analyzeChanges(changes, indicator, summary);
+        return summary;
+    }
+}
@@ -0,0 +1,93 @@
+package org.sididev;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Message building from analyzed synthetic changesets: the whole builder and each stage
+ */
+@State(Scope.Benchmark)
+public class CommitMessageBuilderBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    public int size;
+
+    private List<FileChange> fileChanges;
+    private ChangeStats stats;
+    private ChangeSummary summary;
+    private final CommitMessageBuilder builder = new CommitMessageBuilder();
+    // Templates listing paths, which unlike the default ones compute a value per file
+    private final CommitMessageBuilder pathBuilder = new CommitMessageBuilder().withTemplates(MessageTemplates.compile(
+            "[{Type}][ {scope}:] {Description}", "{Verb} {path}", "{Verb} {count} files", "{path}[ ({area})]",
+            "{Symbols} in {path}"));
+
+    @Setup
+    public void setUp() {
+        fileChanges = new ChangeAnalyzer().analyzeChanges(SyntheticChanges.create(size, 42), new EmptyProgressIndicator());
+        summary = summarize();
+        stats = summary.stats();
+    }
+
+    @Benchmark
+    public String buildMessage() {
+        return builder.buildMessage(fileChanges);
+    }
+
+    @Benchmark
+    public String buildMessageFromSummary() {
+        return builder.buildMessage(summary);
+    }
+
+    @Benchmark
+    public ChangeStats stats() {
+        ChangeStats result = new ChangeStats();
+        for (FileChange fc : fileChanges) {
+            result.add(fc);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public ChangeSummary summary() {
+        return summarize();
+    }
+
+    @Benchmark
+    public String type() {
+        return builder.determineCommitType(stats, LineStats.EMPTY);
+    }
+
+    @Benchmark
+    public String scope() {
+        return builder.determineScope(stats);
+    }
+
+    @Benchmark
+    public String shortDescription() {
+        return builder.generateShortDescription(summary);
+    }
+
+    @Benchmark
+    public String longDescription() {
+        return builder.generateLongDescription(summary);
+    }
+
+    @Benchmark
+    public String buildMessageWithPathTemplates() {
+        return pathBuilder.buildMessage(summary);
+    }
+
+    private ChangeSummary summarize() {
+        ChangeSummary result = new ChangeSummary(100).withBasePath("/work/project");
+        for (FileChange fc : fileChanges) {
+            result.accept(fc);
+        }
+        return result;
+    }
+}
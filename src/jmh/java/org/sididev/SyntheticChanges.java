@@ -0,0 +1,128 @@
+package org.sididev;
+
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.LocalFilePath;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.history.VcsRevisionNumber;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible changesets shaped like those of a typical multi-module repository: a few modules
+ * receive most of the changes, package depth varies, and extensions and change types follow
+ * the usual mix. Revisions are lightweight fakes, so no IDE instance is needed.
+ */
+final class SyntheticChanges {
+
+    private static final String ROOT = "/work/project";
+
+    private static final String[] MODULES = {
+            "core", "api", "web", "app", "common", "service", "storage", "auth", "ui", "docs", "build-logic", "tools"
+    };
+    private static final String[] PACKAGES = {
+            "model", "service", "controller", "util", "config", "db", "view", "component", "security",
+            "internal", "impl", "handler", "client", "helper", "repository", "dto", "event", "settings"
+    };
+    private static final String[] WORDS = {
+            "User", "Order", "Payment", "Session", "Token", "Account", "Report", "Cache", "Index", "Query",
+            "Request", "Response", "Schema", "Router", "Layout", "Button", "Dialog", "Theme", "Parser", "Metric"
+    };
+    private static final String[] SUFFIXES = {"", "Service", "Controller", "Repository", "Helper", "Factory", "View"};
+
+    // Extension mix in percent, matching the order of EXTENSIONS
+    private static final String[] EXTENSIONS = {
+            ".java", ".kt", ".ts", ".js", ".json", ".xml", ".md", ".css", ".yml", ".py", ".sql", ".gradle", ".html", ".vue"
+    };
+    private static final int[] EXTENSION_WEIGHTS = {38, 9, 10, 7, 5, 5, 4, 4, 3, 3, 3, 2, 4, 3};
+
+    private SyntheticChanges() {
+    }
+
+    static List<Change> create(int size, long seed) {
+        Random random = new Random(seed);
+        List<Change> changes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String path = randomPath(random, i);
+            int kind = random.nextInt(100);
+            if (kind < 70) {
+                changes.add(new Change(revision(path, true), revision(path, false)));
+            } else if (kind < 85) {
+                changes.add(new Change(null, revision(path, false)));
+            } else if (kind < 93) {
+                changes.add(new Change(revision(path, true), null));
+            } else {
+                changes.add(new Change(revision(randomPath(random, i + size), true), revision(path, false)));
+            }
+        }
+        return changes;
+    }
+
+    private static String randomPath(Random random, int index) {
+        StringBuilder path = new StringBuilder(96).append(ROOT).append('/');
+        // Zipf-like: the first modules get most of the changes
+        path.append(MODULES[skewed(random, MODULES.length)]);
+        path.append(random.nextInt(10) < 7 ? "/src/main/" : "/src/test/");
+
+        int depth = 1 + skewed(random, 5);
+        for (int i = 0; i < depth; i++) {
+            path.append(PACKAGES[skewed(random, PACKAGES.length)]).append('/');
+        }
+
+        path.append(WORDS[random.nextInt(WORDS.length)])
+                .append(SUFFIXES[random.nextInt(SUFFIXES.length)]);
+        if (random.nextInt(10) == 0) path.append("Test");
+        // Keep names unique so changesets have no duplicate paths
+        path.append(index);
+        return path.append(extension(random)).toString();
+    }
+
+    private static int skewed(Random random, int bound) {
+        double u = random.nextDouble();
+        return Math.min(bound - 1, (int) (bound * u * u * u));
+    }
+
+    private static String extension(Random random) {
+        int pick = random.nextInt(100);
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            pick -= EXTENSION_WEIGHTS[i];
+            if (pick < 0) return EXTENSIONS[i];
+        }
+        return EXTENSIONS[0];
+    }
+
+    private static ContentRevision revision(String path, boolean base) {
+        return new FakeRevision(new LocalFilePath(path, false), base);
+    }
+
+    /**
+     * Revision without content; analysis only looks at paths
+     */
+    private static final class FakeRevision implements ContentRevision {
+        private final FilePath file;
+        private final boolean base;
+
+        FakeRevision(FilePath file, boolean base) {
+            this.file = file;
+            this.base = base;
+        }
+
+        @Override
+        public String getContent() {
+            return null;
+        }
+
+        @Override
+        public @NotNull FilePath getFile() {
+            return file;
+        }
+
+        @Override
+        public @NotNull VcsRevisionNumber getRevisionNumber() {
+            return base ? new VcsRevisionNumber.Int(1) : VcsRevisionNumber.NULL;
+        }
+    }
+}
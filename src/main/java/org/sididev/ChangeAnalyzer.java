@@ -1,101 +1,242 @@
 package org.sididev;
 
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.changes.Change;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Analyzes Git changes and extracts file information
  */
 class ChangeAnalyzer {
 
-    public List<FileChange> analyzeChanges(Collection<Change> changes) {
-        List<FileChange> fileChanges = new ArrayList<>();
+    // How many files to analyze between progress updates
+    private static final int PROGRESS_STEP = 64;
 
-        for (Change change : changes) {
-            FileChange fc = new FileChange();
+    static final int DEFAULT_PARALLEL_THRESHOLD = 5_000;
+    // Changes analyzed by one fork-join leaf task
+    private static final int CHUNK_SIZE = 1_024;
 
-            fc.fileName = extractFileName(change);
-            fc.extension = extractFileExtension(fc.fileName);
-            fc.directory = extractDirectory(change);
-            fc.operation = extractOperation(change);
-            fc.path = extractFilePath(change);
-            fc.context = determineFileContext(fc.fileName, fc.directory);
+    private final PathClassifier classifier;
+    private final PathMetadataCache metadataCache;
+    private final int parallelThreshold;
 
-            fileChanges.add(fc);
-        }
+    public ChangeAnalyzer() {
+        this(PathClassifier.defaults(), new PathMetadataCache());
+    }
+
+    public ChangeAnalyzer(PathClassifier classifier, PathMetadataCache metadataCache) {
+        this(classifier, metadataCache, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param parallelThreshold changesets of at least this size are analyzed in parallel
+     */
+    public ChangeAnalyzer(PathClassifier classifier, PathMetadataCache metadataCache, int parallelThreshold) {
+        this.classifier = classifier;
+        this.metadataCache = metadataCache;
+        this.parallelThreshold = parallelThreshold;
+    }
 
+    public List<FileChange> analyzeChanges(Collection<Change> changes, ProgressIndicator indicator) {
+        List<FileChange> fileChanges = new ArrayList<>(changes.size());
+        analyzeChanges(changes, indicator, fileChanges::add);
         return fileChanges;
     }
 
-    private String extractFileName(Change change) {
-        try {
-            if (change.getAfterRevision() != null) {
-                return change.getAfterRevision().getFile().getName();
-            } else if (change.getBeforeRevision() != null) {
-                return change.getBeforeRevision().getFile().getName();
-            }
-        } catch (Exception ignored) {}
-        return null;
+    /**
+     * Analyze changes, pushing each result to the sink in collection order without collecting them
+     */
+    public void analyzeChanges(Collection<Change> changes, ProgressIndicator indicator, Consumer<FileChange> sink) {
+        analyzeChanges(changes, indicator, sink, null);
     }
 
-    private String extractFileExtension(String fileName) {
-        if (fileName != null && fileName.contains(".")) {
-            return fileName.substring(fileName.lastIndexOf(".") + 1).toLowerCase();
+    /**
+     * Analyze changes into a sink and accumulate their statistics. Large changesets are analyzed
+     * in parallel, with per-chunk statistics merged at the end; the results are the same as
+     * those of sequential analysis. Cancellation is checked both on the indicator passed in and on
+     * that of the calling thread, which inside a non-blocking read action is the one cancelled when
+     * a write action is pending.
+     *
+     * @param stats statistics to add the analyzed changes to, or null
+     */
+    public void analyzeChanges(Collection<Change> changes, ProgressIndicator indicator,
+                               Consumer<FileChange> sink, ChangeStats stats) {
+        if (isParallel(changes)) {
+            for (FileChange fc : analyzeInParallel(changes, indicator, stats)) {
+                sink.accept(fc);
+            }
+            return;
         }
-        return null;
+
+        int total = changes.size();
+        int analyzed = 0;
+
+        for (Change change : changes) {
+            ProgressManager.checkCanceled();
+            if (analyzed % PROGRESS_STEP == 0) {
+                indicator.checkCanceled();
+                indicator.setFraction((double) analyzed / total);
+            }
+
+            FileChange fc = analyzeChange(change);
+            if (stats != null) stats.add(fc);
+            sink.accept(fc);
+            analyzed++;
+        }
+
+        indicator.setFraction(1.0);
     }
 
-    private String extractDirectory(Change change) {
-        try {
-            String path = extractFilePath(change);
-            if (path != null) {
-                String[] parts = path.split("/");
-                if (parts.length > 1) {
-                    return parts[parts.length - 2];
-                }
+    /**
+     * Whether changes of this size are analyzed on the fork-join pool
+     */
+    boolean isParallel(Collection<Change> changes) {
+        return changes.size() >= parallelThreshold && changes.size() > CHUNK_SIZE
+                && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /**
+     * Analyze fixed-size chunks on the common fork-join pool. Results keep the collection order;
+     * if stats are given, per-chunk partials are merged into them in chunk order.
+     */
+    private FileChange[] analyzeInParallel(Collection<Change> changes, ProgressIndicator indicator, ChangeStats stats) {
+        Change[] input = changes.toArray(new Change[0]);
+        FileChange[] results = new FileChange[input.length];
+        int chunks = (input.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        ChangeStats[] partials = stats != null ? new ChangeStats[chunks] : null;
+        AtomicInteger analyzed = new AtomicInteger();
+        // Pool threads have no indicator of their own, so they check the one of the calling thread;
+        // null outside the IDE, e.g. in benchmarks, where there is no application to ask
+        ProgressIndicator cancellation = ProgressIndicatorProvider.getGlobalProgressIndicator();
+
+        ForkJoinPool.commonPool().invoke(
+                new ChunkTask(input, results, partials, 0, chunks, indicator, cancellation, analyzed));
+
+        if (stats != null) {
+            for (ChangeStats partial : partials) {
+                stats.merge(partial);
             }
-        } catch (Exception ignored) {}
-        return null;
+        }
+        indicator.setFraction(1.0);
+        return results;
     }
 
-    private String extractFilePath(Change change) {
+    public FileChange analyzeChange(Change change) {
+        FilePath file = extractFile(change);
+        if (file == null) {
+            FileChange fc = new FileChange();
+            fc.operation = extractOperation(change);
+            fc.context = classifier.classifyFile(null, null);
+            return fc;
+        }
+        FileChange fc = analyzePath(extractOperation(change), file.getPath(), file.getName());
+        if (fc.operation == ChangeOperation.MOVE && change.getBeforeRevision() != null) {
+            String previousPath = change.getBeforeRevision().getFile().getPath();
+            if (!previousPath.equals(fc.path)) fc.previousPath = previousPath;
+        }
+        return fc;
+    }
+
+    /**
+     * Analyze a change known only by its path, such as one read from the git index
+     */
+    FileChange analyzePath(ChangeOperation operation, String path, String fileName) {
+        FileChange fc = new FileChange();
+        fc.operation = operation;
+        fc.path = path;
+        PathMetadata metadata = metadataCache.get(path, fileName, classifier);
+        fc.fileName = metadata.fileName;
+        fc.extension = metadata.extension;
+        fc.directory = metadata.directory;
+        fc.context = metadata.context;
+
+        return fc;
+    }
+
+    String extractFilePath(Change change) {
+        FilePath file = extractFile(change);
+        return file != null ? file.getPath() : null;
+    }
+
+    private FilePath extractFile(Change change) {
         try {
             if (change.getAfterRevision() != null) {
-                return change.getAfterRevision().getFile().getPath();
+                return change.getAfterRevision().getFile();
             } else if (change.getBeforeRevision() != null) {
-                return change.getBeforeRevision().getFile().getPath();
+                return change.getBeforeRevision().getFile();
             }
         } catch (Exception ignored) {}
         return null;
     }
 
-    private String extractOperation(Change change) {
+    private ChangeOperation extractOperation(Change change) {
         switch (change.getType()) {
-            case NEW: return "add";
-            case DELETED: return "remove";
-            case MODIFICATION: return "update";
-            case MOVED: return "move";
-            default: return "modify";
+            case NEW: return ChangeOperation.ADD;
+            case DELETED: return ChangeOperation.REMOVE;
+            case MODIFICATION: return ChangeOperation.UPDATE;
+            case MOVED: return ChangeOperation.MOVE;
+            default: return ChangeOperation.MODIFY;
         }
     }
 
-    private String determineFileContext(String fileName, String directory) {
-        if (fileName == null) return "file";
+    /**
+     * Splits a range of chunks in halves until a single chunk is left, then analyzes it
+     */
+    private final class ChunkTask extends RecursiveAction {
+        private final Change[] input;
+        private final FileChange[] results;
+        private final ChangeStats[] partials;
+        private final int fromChunk;
+        private final int toChunk;
+        private final ProgressIndicator indicator;
+        // Indicator of the thread that started the analysis, or null if it had none
+        private final ProgressIndicator cancellation;
+        private final AtomicInteger analyzed;
+
+        ChunkTask(Change[] input, FileChange[] results, ChangeStats[] partials, int fromChunk, int toChunk,
+                  ProgressIndicator indicator, ProgressIndicator cancellation, AtomicInteger analyzed) {
+            this.input = input;
+            this.results = results;
+            this.partials = partials;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.indicator = indicator;
+            this.cancellation = cancellation;
+            this.analyzed = analyzed;
+        }
 
-        String lowerName = fileName.toLowerCase();
-        String lowerDir = directory != null ? directory.toLowerCase() : "";
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ChunkTask(input, results, partials, fromChunk, middle, indicator, cancellation, analyzed),
+                        new ChunkTask(input, results, partials, middle, toChunk, indicator, cancellation, analyzed));
+                return;
+            }
 
-        if (lowerName.contains("test") || lowerDir.contains("test")) return "test";
-        if (lowerName.contains("config") || lowerDir.contains("config")) return "config";
-        if (lowerName.contains("api") || lowerDir.contains("api")) return "api";
-        if (lowerName.contains("auth") || lowerDir.contains("auth")) return "auth";
-        if (lowerName.contains("database") || lowerName.contains("db") || lowerDir.contains("db")) return "database";
-        if (lowerName.contains("ui") || lowerName.contains("component") || lowerDir.contains("component")) return "ui";
-        if (lowerName.contains("style") || lowerName.contains("css")) return "style";
-        if (lowerName.contains("doc") || lowerDir.contains("doc")) return "docs";
-        if (lowerName.contains("build") || lowerName.contains("gradle") || lowerName.contains("maven")) return "build";
+            int start = fromChunk * CHUNK_SIZE;
+            int end = Math.min(start + CHUNK_SIZE, input.length);
+            ChangeStats partial = partials != null ? new ChangeStats() : null;
 
-        return "file";
+            for (int i = start; i < end; i++) {
+                if ((i - start) % PROGRESS_STEP == 0) {
+                    indicator.checkCanceled();
+                    if (cancellation != null) cancellation.checkCanceled();
+                }
+                results[i] = analyzeChange(input[i]);
+                if (partial != null) partial.add(results[i]);
+            }
+
+            if (partials != null) partials[fromChunk] = partial;
+            indicator.setFraction((double) analyzed.addAndGet(end - start) / input.length);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package org.sididev;
+
+/**
+ * Kind of change applied to a file.
+ * Declaration order is the order operations are listed in the commit body.
+ */
+enum ChangeOperation {
+    ADD("add"),
+    MODIFY("modify"),
+    MOVE("move"),
+    UPDATE("update"),
+    REMOVE("remove");
+
+    static final ChangeOperation[] VALUES = values();
+
+    final String id;
+
+    ChangeOperation(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Operation for a git status letter (A, C, D, M, R, T, ...), mapped like the IDE change types
+     */
+    static ChangeOperation fromGitStatus(char status) {
+        switch (status) {
+            case 'A':
+            case 'C': return ADD;
+            case 'D': return REMOVE;
+            case 'M':
+            case 'T': return UPDATE;
+            case 'R': return MOVE;
+            default: return MODIFY;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.sididev;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.changes.LocalChangeList;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes of one VCS root, or of one changelist within a root, in the order they were given.
+ * Partitions of roots whose staged changes are read from the git index have no changes.
+ */
+final class ChangePartition {
+
+    /** Root directory, or the project base path for changes outside any VCS root */
+    final String rootPath;
+    /** Label of the partition in per-root messages */
+    final String name;
+    final List<Change> changes = new ArrayList<>();
+
+    private ChangePartition(String rootPath, String name) {
+        this.rootPath = rootPath;
+        this.name = name;
+    }
+
+    /**
+     * Split changes by VCS root and, if requested, by changelist. Partitions are ordered by root
+     * path, then by changelist name, so messages built from them are stable.
+     */
+    static List<ChangePartition> partition(Project project, Collection<Change> changes, boolean byChangelist) {
+        ProjectLevelVcsManager vcsManager = ProjectLevelVcsManager.getInstance(project);
+        ChangeListManager changeListManager = byChangelist ? ChangeListManager.getInstance(project) : null;
+        Map<String, ChangePartition> partitions = new LinkedHashMap<>();
+
+        for (Change change : changes) {
+            FilePath file = file(change);
+            VirtualFile root = file != null ? vcsManager.getVcsRootFor(file) : null;
+            String rootPath = root != null ? root.getPath() : project.getBasePath();
+            String name = root != null ? root.getName() : project.getName();
+
+            String key = rootPath;
+            if (changeListManager != null) {
+                LocalChangeList changeList = changeListManager.getChangeList(change);
+                if (changeList != null) {
+                    key = rootPath + '\0' + changeList.getName();
+                    name = name + " / " + changeList.getName();
+                }
+            }
+
+            String partitionName = name;
+            partitions.computeIfAbsent(key, k -> new ChangePartition(rootPath, partitionName)).changes.add(change);
+        }
+
+        List<ChangePartition> result = new ArrayList<>(partitions.values());
+        result.sort((a, b) -> {
+            int byRoot = String.valueOf(a.rootPath).compareTo(String.valueOf(b.rootPath));
+            return byRoot != 0 ? byRoot : a.name.compareTo(b.name);
+        });
+        return result;
+    }
+
+    /**
+     * An empty partition for each git repository root of the project, ordered by root path
+     */
+    static List<ChangePartition> gitRoots(Project project) {
+        List<ChangePartition> result = new ArrayList<>();
+        for (VirtualFile root : ProjectLevelVcsManager.getInstance(project).getAllVersionedRoots()) {
+            if (root.findChild(".git") != null) {
+                result.add(new ChangePartition(root.getPath(), root.getName()));
+            }
+        }
+        result.sort((a, b) -> a.rootPath.compareTo(b.rootPath));
+        return result;
+    }
+
+    private static FilePath file(Change change) {
+        ContentRevision revision = change.getAfterRevision() != null ? change.getAfterRevision() : change.getBeforeRevision();
+        return revision != null ? revision.getFile() : null;
+    }
+}
@@ -1,16 +1,191 @@
 package org.sididev;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
- * Statistics about file changes for commit message generation
+ * Statistics about file changes for commit message generation.
+ * Counters are primitive arrays indexed by operation, context and interned extension id,
+ * with bit sets of what is present so that type and scope checks are bit tests.
  */
 class ChangeStats {
-    Map<String, Integer> extensions = new HashMap<>();
-    Map<String, Integer> operations = new HashMap<>();
-    Set<String> directories = new HashSet<>();
-    Set<String> contexts = new HashSet<>();
-}
\ No newline at end of file
+    final int[] operations = new int[ChangeOperation.VALUES.length];
+    final int[] contexts = new int[FileContext.VALUES.length];
+    // Bit per FileContext ordinal with a non-zero count
+    int contextBits;
+
+    int[] extensions = new int[64];
+    // Bit per extension id with a non-zero count
+    long[] extensionBits = new long[1];
+    // Present extension ids in the order they first appeared
+    private int[] extensionOrder = new int[16];
+    private int extensionCount;
+
+    // Files per directory of their path
+    private PathTrie paths = new PathTrie();
+
+    void add(FileChange fc) {
+        if (fc.extension != FileExtensions.NONE) addExtension(fc.extension);
+        operations[fc.operation.ordinal()]++;
+        if (fc.path != null) paths.add(fc.path, 1);
+        if (fc.context != null && contexts[fc.context.ordinal()]++ == 0) contextBits |= fc.context.bit();
+    }
+
+    void remove(FileChange fc) {
+        if (fc.extension != FileExtensions.NONE) removeExtension(fc.extension);
+        operations[fc.operation.ordinal()]--;
+        if (fc.path != null) paths.add(fc.path, -1);
+        if (fc.context != null && --contexts[fc.context.ordinal()] == 0) contextBits &= ~fc.context.bit();
+    }
+
+    ChangeStats copy() {
+        ChangeStats copy = new ChangeStats();
+        System.arraycopy(operations, 0, copy.operations, 0, operations.length);
+        System.arraycopy(contexts, 0, copy.contexts, 0, contexts.length);
+        copy.contextBits = contextBits;
+        copy.extensions = extensions.clone();
+        copy.extensionBits = extensionBits.clone();
+        copy.extensionOrder = extensionOrder.clone();
+        copy.extensionCount = extensionCount;
+        copy.paths = paths.copy();
+        return copy;
+    }
+
+    /**
+     * Add the counts of another instance. Merging partial stats in the order their changes
+     * were analyzed gives exactly the stats of analyzing all changes sequentially.
+     */
+    void merge(ChangeStats other) {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] += other.operations[i];
+        }
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] += other.contexts[i];
+        }
+        contextBits |= other.contextBits;
+
+        for (int i = 0; i < other.extensionCount; i++) {
+            int id = other.extensionOrder[i];
+            int count = other.extensions[id];
+            addExtension(id);
+            extensions[id] += count - 1;
+        }
+
+        paths.merge(other.paths);
+    }
+
+    boolean hasContext(FileContext context) {
+        return (contextBits & context.bit()) != 0;
+    }
+
+    int contextCount() {
+        return Integer.bitCount(contextBits);
+    }
+
+    /**
+     * True if any of the well-known extensions in the mask (ids below 64) is present
+     */
+    boolean hasAnyExtension(long mask) {
+        return (extensionBits[0] & mask) != 0;
+    }
+
+    int count(ChangeOperation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * Number of distinct extensions present
+     */
+    int extensionKinds() {
+        return extensionCount;
+    }
+
+    /**
+     * Id of a present extension, in the order extensions first appeared
+     */
+    int extensionAt(int index) {
+        return extensionOrder[index];
+    }
+
+    /**
+     * Directories of the changed files with their file counts
+     */
+    PathTrie paths() {
+        return paths;
+    }
+
+    /**
+     * Operation with the most files, or null if there are none. Ties go to the operation
+     * listed first in the commit body.
+     */
+    ChangeOperation primaryOperation() {
+        ChangeOperation best = null;
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            int count = operations[operation.ordinal()];
+            if (count > 0 && (best == null || count > operations[best.ordinal()])) {
+                best = operation;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Most frequent extension id, or {@link FileExtensions#NONE} if no file has one.
+     * Ties are broken the way the previous HashMap-based counters iterated - by hash bucket,
+     * then by first appearance - so generated messages stay the same.
+     */
+    int mainExtension() {
+        int capacity = 16;
+        while (extensionCount > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+
+        int best = FileExtensions.NONE;
+        int bestBucket = 0;
+        for (int i = 0; i < extensionCount; i++) {
+            int id = extensionOrder[i];
+            int bucket = bucket(FileExtensions.name(id), capacity);
+            if (best == FileExtensions.NONE || extensions[id] > extensions[best]
+                    || (extensions[id] == extensions[best] && bucket < bestBucket)) {
+                best = id;
+                bestBucket = bucket;
+            }
+        }
+        return best;
+    }
+
+    private static int bucket(String key, int capacity) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    private void addExtension(int id) {
+        if (id >= extensions.length) {
+            extensions = Arrays.copyOf(extensions, Math.max(id + 1, extensions.length * 2));
+        }
+        if (extensions[id]++ > 0) return;
+
+        int word = id >>> 6;
+        if (word >= extensionBits.length) {
+            extensionBits = Arrays.copyOf(extensionBits, word + 1);
+        }
+        extensionBits[word] |= 1L << id;
+
+        if (extensionCount == extensionOrder.length) {
+            extensionOrder = Arrays.copyOf(extensionOrder, extensionCount * 2);
+        }
+        extensionOrder[extensionCount++] = id;
+    }
+
+    private void removeExtension(int id) {
+        if (id >= extensions.length || extensions[id] == 0 || --extensions[id] > 0) return;
+
+        extensionBits[id >>> 6] &= ~(1L << id);
+        for (int i = 0; i < extensionCount; i++) {
+            if (extensionOrder[i] == id) {
+                System.arraycopy(extensionOrder, i + 1, extensionOrder, i, extensionCount - i - 1);
+                extensionCount--;
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.sididev;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangeList;
+import com.intellij.openapi.vcs.changes.ChangeListListener;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vcs.changes.LocalChangeList;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.messages.MessageBusConnection;
+import com.intellij.vcsUtil.VcsUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Project service keeping a live model of the default changelist: one {@link FileChange}
+ * per path in a {@link ChangeSummary.Live}, updated by delta from changelist and VFS events.
+ * Generating a message then only copies its bounded counts instead of re-scanning the changes.
+ */
+public final class ChangeStatsTracker implements Disposable {
+
+    private final Project project;
+
+    // Guarded by this
+    private PathClassifier classifier;
+    private ChangeAnalyzer analyzer;
+    private ChangeSummary.Live live;
+    private final Set<String> dirtyPaths = new HashSet<>();
+    private boolean initialized;
+    // Rebuild running outside the monitor, null if none; events are queued on it meanwhile
+    private Rebuild rebuild;
+
+    public ChangeStatsTracker(Project project) {
+        this.project = project;
+
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(ChangeListListener.TOPIC, new ChangeListListener() {
+            @Override
+            public void changesAdded(Collection<? extends Change> changes, ChangeList toList) {
+                if (isDefault(toList)) addChanges(changes);
+            }
+
+            @Override
+            public void changesRemoved(Collection<? extends Change> changes, ChangeList fromList) {
+                if (isDefault(fromList)) removeChanges(changes);
+            }
+
+            @Override
+            public void changesMoved(Collection<? extends Change> changes, ChangeList fromList, ChangeList toList) {
+                if (isDefault(fromList)) removeChanges(changes);
+                if (isDefault(toList)) addChanges(changes);
+            }
+
+            @Override
+            public void defaultListChanged(ChangeList oldDefaultList, ChangeList newDefaultList) {
+                invalidate();
+            }
+
+            @Override
+            public void allChangeListsMightBeChanged() {
+                invalidate();
+            }
+
+            @Override
+            public void changeListUpdateDone() {
+                reconcileDirtyPaths();
+            }
+        });
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                markDirty(events);
+            }
+        });
+    }
+
+    public static ChangeStatsTracker getInstance(Project project) {
+        return project.getService(ChangeStatsTracker.class);
+    }
+
+    /**
+     * Summary of the current model. Under the monitor only its bounded counts and body candidates
+     * are copied, however many changes there are; the body is chosen outside it. A full rebuild
+     * also runs outside the monitor, so changelist and VFS events are not held up by it; events
+     * arriving meanwhile are replayed onto the rebuilt model before it replaces the current one.
+     */
+    ChangeSummary summarize(ProgressIndicator indicator, int maxEntriesPerOperation, LineStats lineStats) {
+        SmartCommitSettings settings = SmartCommitSettings.getInstance(project);
+        PathClassifier current = settings.getClassifier();
+        GenerationMetrics metrics = GenerationMetrics.getInstance(project);
+        GenerationMetrics.Timer timer = null;
+        ChangeSummary.Copy copy = null;
+        Rebuild started = null;
+        synchronized (this) {
+            if (initialized && current == classifier) {
+                timer = metrics.start(GenerationMetrics.Stage.SUMMARIZE);
+                copy = live.copy(maxEntriesPerOperation);
+            } else {
+                started = new Rebuild(new ChangeAnalyzer(current, PathMetadataCache.getInstance(project),
+                        settings.getState().parallelAnalysisThreshold));
+                rebuild = started;
+            }
+        }
+        if (copy != null) {
+            return summarize(timer, copy, lineStats);
+        }
+
+        ChangeSummary.Live rebuilt = new ChangeSummary.Live(project.getBasePath());
+        analyzeAll(started.analyzer, indicator, rebuilt);
+
+        timer = metrics.start(GenerationMetrics.Stage.SUMMARIZE);
+        synchronized (this) {
+            if (rebuild == started) {
+                rebuild = null;
+                classifier = current;
+                analyzer = started.analyzer;
+                live = rebuilt;
+                dirtyPaths.clear();
+                initialized = true;
+                for (Runnable event : started.events) {
+                    event.run();
+                }
+            }
+            // Otherwise invalidated or superseded meanwhile: answer from this rebuild, but it is not installed
+            copy = rebuilt.copy(maxEntriesPerOperation);
+        }
+        return summarize(timer, copy, lineStats);
+    }
+
+    private static ChangeSummary summarize(GenerationMetrics.Timer timer, ChangeSummary.Copy copy,
+                                           LineStats lineStats) {
+        ChangeSummary summary = copy.summarize(lineStats);
+        timer.stop(summary.size(), "summarized");
+        return summary;
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            live = null;
+            dirtyPaths.clear();
+            initialized = false;
+            rebuild = null;
+        }
+    }
+
+    /**
+     * Analyze the whole default changelist into a model that is not shared yet
+     */
+    private void analyzeAll(ChangeAnalyzer changeAnalyzer, ProgressIndicator indicator, ChangeSummary.Live model) {
+        GenerationMetrics metrics = GenerationMetrics.getInstance(project);
+        GenerationMetrics.Timer collectTimer = metrics.start(GenerationMetrics.Stage.COLLECT);
+        Collection<Change> defaultChanges = ChangeListManager.getInstance(project).getDefaultChangeList().getChanges();
+        collectTimer.stop(defaultChanges.size(), "default changelist");
+
+        GenerationMetrics.Timer analyzeTimer = metrics.start(GenerationMetrics.Stage.ANALYZE);
+        changeAnalyzer.analyzeChanges(defaultChanges, indicator, model::put);
+        analyzeTimer.stop(defaultChanges.size(), changeAnalyzer.isParallel(defaultChanges) ? "parallel" : "sequential");
+    }
+
+    private synchronized void addChanges(Collection<? extends Change> changes) {
+        if (deferred(() -> addChanges(changes))) return;
+        if (!initialized) return;
+        for (Change change : changes) {
+            live.put(analyzer.analyzeChange(change));
+        }
+    }
+
+    private synchronized void removeChanges(Collection<? extends Change> changes) {
+        if (deferred(() -> removeChanges(changes))) return;
+        if (!initialized) return;
+        for (Change change : changes) {
+            String path = analyzer.extractFilePath(change);
+            if (path != null) live.remove(path);
+        }
+    }
+
+    private synchronized void invalidate() {
+        initialized = false;
+        rebuild = null;
+    }
+
+    /**
+     * Queue an event for the rebuild in progress, if any, to apply once it is installed
+     */
+    private boolean deferred(Runnable event) {
+        if (rebuild == null) return false;
+        rebuild.events.add(event);
+        return true;
+    }
+
+    private synchronized void markDirty(List<? extends VFileEvent> events) {
+        if (deferred(() -> markDirty(events))) return;
+        if (!initialized) return;
+        for (VFileEvent event : events) {
+            markDirty(event.getPath());
+            if (event instanceof VFileMoveEvent) {
+                markDirty(((VFileMoveEvent) event).getOldPath());
+            } else if (event instanceof VFilePropertyChangeEvent) {
+                markDirty(((VFilePropertyChangeEvent) event).getOldPath());
+            }
+        }
+    }
+
+    private void markDirty(String path) {
+        if (path != null && live.contains(path)) {
+            dirtyPaths.add(path);
+        }
+    }
+
+    /**
+     * Re-read the changes behind paths touched on disk since the last changelist update.
+     * Usually the changelist events already covered them; this catches renames and reverts
+     * the changelist reported as an unchanged list.
+     */
+    private synchronized void reconcileDirtyPaths() {
+        if (!initialized || dirtyPaths.isEmpty()) return;
+
+        ChangeListManager changeListManager = ChangeListManager.getInstance(project);
+        for (String path : dirtyPaths) {
+            live.remove(path);
+            Change change = changeListManager.getChange(VcsUtil.getFilePath(path, false));
+            if (change != null && isDefault(changeListManager.getChangeList(change))) {
+                live.put(analyzer.analyzeChange(change));
+            }
+        }
+        dirtyPaths.clear();
+    }
+
+    private static boolean isDefault(ChangeList list) {
+        return list instanceof LocalChangeList && ((LocalChangeList) list).isDefault();
+    }
+
+    private static final class Rebuild {
+        final ChangeAnalyzer analyzer;
+        // Guarded by the tracker
+        final List<Runnable> events = new ArrayList<>();
+
+        Rebuild(ChangeAnalyzer analyzer) {
+            this.analyzer = analyzer;
+        }
+    }
+}
@@ -0,0 +1,702 @@
+package org.sididev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Single-pass collector of everything the message builder needs: statistics,
+ * per-operation file counts, a bounded number of body entries per operation,
+ * file counts per location (the first two directories below the base path) and
+ * moved file counts per pair of source and target directory.
+ * Changes are pushed one at a time and never collected into a full list, so memory
+ * stays bounded however large the changeset is.
+ */
+final class ChangeSummary implements Consumer<FileChange> {
+
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+    static final int DEFAULT_ENTRIES_PER_OPERATION = 100;
+    // Distinct locations counted per operation; files in further locations are only counted in total
+    static final int MAX_LOCATIONS = 1_024;
+
+    private final ChangeStats stats;
+    private final boolean collectStats;
+    private final int maxEntriesPerOperation;
+    private final Group[] groups = new Group[ChangeOperation.VALUES.length];
+
+    private int size;
+    private FileChange first;
+    // Base path with a trailing slash, stripped from paths to derive their location
+    private String basePrefix;
+    private LineStats lineStats = LineStats.EMPTY;
+    private SymbolChanges symbolChanges = SymbolChanges.EMPTY;
+
+    // Moved files by source and target directory below the base path, joined by a NUL
+    private final Map<String, int[]> moves = new HashMap<>();
+    private int otherMoveFiles;
+
+    /**
+     * Summary computing its own statistics
+     */
+    ChangeSummary(int maxEntriesPerOperation) {
+        this(maxEntriesPerOperation, new ChangeStats(), true);
+    }
+
+    /**
+     * Summary reusing statistics that are already known for the changes that will be pushed
+     */
+    ChangeSummary(int maxEntriesPerOperation, ChangeStats stats) {
+        this(maxEntriesPerOperation, stats, false);
+    }
+
+    private ChangeSummary(int maxEntriesPerOperation, ChangeStats stats, boolean collectStats) {
+        if (maxEntriesPerOperation < 1) {
+            throw new IllegalArgumentException("At least one entry per operation must be kept");
+        }
+        this.maxEntriesPerOperation = maxEntriesPerOperation;
+        this.stats = stats;
+        this.collectStats = collectStats;
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new Group();
+        }
+    }
+
+    /**
+     * Make locations relative to the given directory, typically the project or repository root
+     */
+    ChangeSummary withBasePath(String basePath) {
+        this.basePrefix = basePath == null || basePath.isEmpty() ? null
+                : basePath.endsWith("/") ? basePath : basePath + "/";
+        return this;
+    }
+
+    /**
+     * Line counts of the changes to be pushed; files with more changed lines are kept first
+     */
+    ChangeSummary withLineStats(LineStats lineStats) {
+        this.lineStats = lineStats;
+        return this;
+    }
+
+    /**
+     * Changed declarations of the changes to be pushed, named in their descriptions
+     */
+    ChangeSummary withSymbolChanges(SymbolChanges symbolChanges) {
+        this.symbolChanges = symbolChanges;
+        return this;
+    }
+
+    @Override
+    public void accept(FileChange fc) {
+        if (collectStats) stats.add(fc);
+        if (first == null) first = fc;
+        Group group = groups[fc.operation.ordinal()];
+        group.add(fc, size++, maxEntriesPerOperation, weight(fc));
+        countLocation(group, fc.path);
+        if (fc.previousPath != null && fc.path != null) countMove(fc.previousPath, fc.path);
+    }
+
+    /**
+     * Count a change like {@link #accept} does, without considering it for the body entries
+     */
+    private void count(FileChange fc) {
+        stats.add(fc);
+        size++;
+        Group group = groups[fc.operation.ordinal()];
+        group.count++;
+        countLocation(group, fc.path);
+        if (fc.previousPath != null && fc.path != null) countMove(fc.previousPath, fc.path);
+    }
+
+    /**
+     * Undo the counts of {@link #count}
+     */
+    private void uncount(FileChange fc) {
+        stats.remove(fc);
+        size--;
+        Group group = groups[fc.operation.ordinal()];
+        group.count--;
+        if (fc.path == null) {
+            group.removeLocation("");
+        } else {
+            int start = locationStart(fc.path);
+            group.removeLocation(fc.path.substring(start, locationEnd(fc.path, start)));
+        }
+        if (fc.previousPath != null && fc.path != null) uncountMove(fc.previousPath, fc.path);
+    }
+
+    /**
+     * Add the changes of another summary as if they had been pushed after those of this one.
+     * Entries the other summary already dropped are only counted here too, and its locations are
+     * kept as they were derived from its own base path.
+     */
+    void merge(ChangeSummary other) {
+        if (first == null) first = other.first;
+        stats.merge(other.stats);
+        if (other.lineStats != LineStats.EMPTY) {
+            if (lineStats == LineStats.EMPTY) lineStats = new LineStats();
+            lineStats.addAll(other.lineStats);
+        }
+        if (other.symbolChanges != SymbolChanges.EMPTY) {
+            if (symbolChanges == SymbolChanges.EMPTY) symbolChanges = new SymbolChanges();
+            symbolChanges.addAll(other.symbolChanges);
+        }
+        for (int i = 0; i < groups.length; i++) {
+            groups[i].merge(other.groups[i], size, maxEntriesPerOperation);
+        }
+        size += other.size;
+
+        other.moves.forEach((move, otherCount) -> {
+            int[] moveCount = moves.get(move);
+            if (moveCount == null) {
+                if (moves.size() >= MAX_LOCATIONS) {
+                    otherMoveFiles += otherCount[0];
+                    return;
+                }
+                moveCount = new int[1];
+                moves.put(move, moveCount);
+            }
+            moveCount[0] += otherCount[0];
+        });
+        otherMoveFiles += other.otherMoveFiles;
+    }
+
+    private void countLocation(Group group, String path) {
+        if (path == null) {
+            group.addLocation("", 0, 0);
+            return;
+        }
+
+        int start = locationStart(path);
+        group.addLocation(path, start, locationEnd(path, start));
+    }
+
+    /**
+     * Where the part of a path below the base path starts
+     */
+    private int locationStart(String path) {
+        return basePrefix != null && path.startsWith(basePrefix) ? basePrefix.length()
+                : path.startsWith("/") ? 1 : 0;
+    }
+
+    /**
+     * End of the location of a path: its first two directories below the base path, if it has them
+     */
+    private static int locationEnd(String path, int start) {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash < start) {
+            return start;
+        }
+
+        int end = path.indexOf('/', start);
+        if (end < lastSlash) {
+            end = path.indexOf('/', end + 1);
+        }
+        return end;
+    }
+
+    /**
+     * Count a move by the directories it was made between: the directories of both paths, without
+     * the trailing directories they have in common, so moving a package with its subpackages counts
+     * as one move of its root
+     */
+    private void countMove(String previousPath, String path) {
+        String move = moveKey(previousPath, path);
+        int[] moveCount = moves.get(move);
+        if (moveCount == null) {
+            if (moves.size() >= MAX_LOCATIONS) {
+                otherMoveFiles++;
+                return;
+            }
+            moveCount = new int[1];
+            moves.put(move, moveCount);
+        }
+        moveCount[0]++;
+    }
+
+    private void uncountMove(String previousPath, String path) {
+        String move = moveKey(previousPath, path);
+        int[] moveCount = moves.get(move);
+        if (moveCount == null) {
+            otherMoveFiles--;
+        } else if (--moveCount[0] == 0) {
+            moves.remove(move);
+        }
+    }
+
+    /**
+     * Source and target directory of a move joined by a NUL
+     */
+    private String moveKey(String previousPath, String path) {
+        String from = relativeDirectory(previousPath);
+        String to = relativeDirectory(path);
+        int fromEnd = from.length();
+        int toEnd = to.length();
+        if (!from.equals(to)) {
+            while (fromEnd > 0 && toEnd > 0) {
+                int fromSegment = from.lastIndexOf('/', fromEnd - 2) + 1;
+                int toSegment = to.lastIndexOf('/', toEnd - 2) + 1;
+                int length = fromEnd - fromSegment;
+                if (length != toEnd - toSegment || !from.regionMatches(fromSegment, to, toSegment, length)) break;
+                fromEnd = fromSegment;
+                toEnd = toSegment;
+            }
+        }
+
+        return from.substring(0, fromEnd) + '\0' + to.substring(0, toEnd);
+    }
+
+    /**
+     * The path relative to the base path, or without its leading '/' if it is outside of it
+     */
+    String relativePath(String path) {
+        if (basePrefix != null && path.startsWith(basePrefix)) return path.substring(basePrefix.length());
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * Directory of a path below the base path with a trailing slash, "" for the base directory itself
+     */
+    private String relativeDirectory(String path) {
+        int start = locationStart(path);
+        int lastSlash = path.lastIndexOf('/');
+        return lastSlash < start ? "" : path.substring(start, lastSlash + 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Counted moves, most files first, then by directories
+     */
+    List<Move> moves() {
+        List<Move> result = new ArrayList<>(moves.size());
+        moves.forEach((move, moveCount) -> {
+            int separator = move.indexOf('\0');
+            result.add(new Move(move.substring(0, separator), move.substring(separator + 1), moveCount[0]));
+        });
+        result.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count)
+                : !a.from.equals(b.from) ? a.from.compareTo(b.from) : a.to.compareTo(b.to));
+        return result;
+    }
+
+    /**
+     * Moved files between directory pairs beyond {@link #MAX_LOCATIONS}, not attributed to any
+     */
+    int otherMoveFiles() {
+        return otherMoveFiles;
+    }
+
+    /**
+     * The first change pushed, or null if there was none
+     */
+    FileChange first() {
+        return first;
+    }
+
+    ChangeStats stats() {
+        return stats;
+    }
+
+    /**
+     * Directory locations are relative to, with a trailing slash; null if not set
+     */
+    String basePath() {
+        return basePrefix;
+    }
+
+    LineStats lineStats() {
+        return lineStats;
+    }
+
+    SymbolChanges symbolChanges() {
+        return symbolChanges;
+    }
+
+    Group group(ChangeOperation operation) {
+        return groups[operation.ordinal()];
+    }
+
+    /**
+     * Relative weight of a change when deciding which entries a truncated body keeps
+     */
+    static int significance(FileChange fc) {
+        return fc.context != null && fc.context != FileContext.FILE ? 1 : 0;
+    }
+
+    /**
+     * Significance first, then changed lines
+     */
+    private long weight(FileChange fc) {
+        return (long) significance(fc) << 32 | lineStats.churn(fc.path);
+    }
+
+    /**
+     * Files of one operation: the total count and the most significant entries
+     */
+    static final class Group {
+        private int count;
+        private int kept;
+        private FileChange[] entries = new FileChange[4];
+        private int[] sequence = new int[4];
+        private long[] weights = new long[4];
+        // Set once an entry has been replaced, i.e. entries are no longer in push order
+        private boolean replaced;
+        // Index of the entry to replace next, -1 when it needs to be recomputed
+        private int weakest = -1;
+
+        private final Map<String, int[]> locations = new HashMap<>();
+        private int otherLocationFiles;
+        // Consecutive files usually share a location; remembered to skip the substring and lookup
+        private String lastLocation;
+        private int[] lastLocationCount;
+
+        private void add(FileChange fc, int seq, int limit, long weight) {
+            count++;
+            if (kept < limit) {
+                if (kept == entries.length) {
+                    int capacity = (int) Math.min(limit, entries.length * 2L);
+                    entries = Arrays.copyOf(entries, capacity);
+                    sequence = Arrays.copyOf(sequence, capacity);
+                    weights = Arrays.copyOf(weights, capacity);
+                }
+                entries[kept] = fc;
+                sequence[kept] = seq;
+                weights[kept] = weight;
+                kept++;
+                return;
+            }
+
+            // Full: replace the least significant entry (the latest one among equals)
+            // if the new change is more significant. Earlier changes win ties.
+            if (weakest < 0) {
+                weakest = findWeakest();
+            }
+            if (weights[weakest] < weight) {
+                entries[weakest] = fc;
+                sequence[weakest] = seq;
+                weights[weakest] = weight;
+                replaced = true;
+                weakest = -1;
+            }
+        }
+
+        private void merge(Group other, int sequenceOffset, int limit) {
+            int mergedCount = count + other.count;
+            for (int i = 0; i < other.kept; i++) {
+                add(other.entries[i], other.sequence[i] + sequenceOffset, limit, other.weights[i]);
+            }
+            count = mergedCount;
+            replaced |= other.replaced;
+
+            other.locations.forEach((location, otherCount) -> {
+                int[] locationCount = locations.get(location);
+                if (locationCount == null) {
+                    if (locations.size() >= MAX_LOCATIONS) {
+                        otherLocationFiles += otherCount[0];
+                        return;
+                    }
+                    locationCount = new int[1];
+                    locations.put(location, locationCount);
+                }
+                locationCount[0] += otherCount[0];
+            });
+            otherLocationFiles += other.otherLocationFiles;
+        }
+
+        private int findWeakest() {
+            int result = 0;
+            for (int i = 1; i < kept; i++) {
+                if (weights[i] < weights[result] || (weights[i] == weights[result] && sequence[i] > sequence[result])) {
+                    result = i;
+                }
+            }
+            return result;
+        }
+
+        private void addLocation(String path, int start, int end) {
+            int length = end - start;
+            if (lastLocation != null && lastLocation.length() == length
+                    && path.regionMatches(start, lastLocation, 0, length)) {
+                lastLocationCount[0]++;
+                return;
+            }
+
+            String location = path.substring(start, end);
+            int[] locationCount = locations.get(location);
+            if (locationCount == null) {
+                if (locations.size() >= MAX_LOCATIONS) {
+                    otherLocationFiles++;
+                    return;
+                }
+                locationCount = new int[1];
+                locations.put(location, locationCount);
+            }
+            locationCount[0]++;
+            lastLocation = location;
+            lastLocationCount = locationCount;
+        }
+
+        private void removeLocation(String location) {
+            int[] locationCount = locations.get(location);
+            if (locationCount == null) {
+                otherLocationFiles--;
+            } else if (--locationCount[0] == 0) {
+                locations.remove(location);
+                if (locationCount == lastLocationCount) {
+                    lastLocation = null;
+                    lastLocationCount = null;
+                }
+            }
+        }
+
+        /**
+         * Take over the count and locations of another group, without its entries
+         */
+        private void copyCounts(Group other) {
+            count = other.count;
+            other.locations.forEach((location, locationCount) -> locations.put(location, locationCount.clone()));
+            otherLocationFiles = other.otherLocationFiles;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * Counted locations, most files first, then by name. The empty name stands for the base directory.
+         */
+        List<Location> locations() {
+            List<Location> result = new ArrayList<>(locations.size());
+            locations.forEach((name, locationCount) -> result.add(new Location(name, locationCount[0])));
+            result.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count) : a.name.compareTo(b.name));
+            return result;
+        }
+
+        /**
+         * Files in locations beyond {@link #MAX_LOCATIONS}, not attributed to any location
+         */
+        int otherLocationFiles() {
+            return otherLocationFiles;
+        }
+
+        int omitted() {
+            return count - kept;
+        }
+
+        /**
+         * Up to {@code limit} kept entries, most significant first, then in push order
+         */
+        List<FileChange> topEntries(int limit) {
+            Integer[] order = new Integer[kept];
+            for (int i = 0; i < kept; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> weights[a] != weights[b]
+                    ? Long.compare(weights[b], weights[a]) : Integer.compare(sequence[a], sequence[b]));
+
+            List<FileChange> result = new ArrayList<>(Math.min(kept, Math.max(0, limit)));
+            for (int i = 0; i < order.length && i < limit; i++) {
+                result.add(entries[order[i]]);
+            }
+            return result;
+        }
+
+        /**
+         * Kept entries in the order they were pushed
+         */
+        List<FileChange> entries() {
+            if (!replaced) {
+                return Arrays.asList(Arrays.copyOf(entries, kept));
+            }
+
+            Integer[] order = new Integer[kept];
+            for (int i = 0; i < kept; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(sequence[a], sequence[b]));
+
+            List<FileChange> result = new ArrayList<>(kept);
+            for (Integer index : order) {
+                result.add(entries[index]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Summary of a set of changes that lives across generations and is kept up to date as changes
+     * are put and removed. Totals, locations and moves are counted by delta. Body entries are only
+     * chosen from a {@link Copy}: a body keeps the most significant entries, then those with the
+     * most changed lines, then the earliest ones, so the candidates are the first entries of each
+     * operation and significance in push order plus the files with changed lines. Confined to the
+     * owner's lock, except that {@link Copy#summarize} may run outside it.
+     */
+    static final class Live {
+        private final ChangeSummary totals;
+        // Entries by path; also read by copies outside the owner's lock
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        // Entries by operation ordinal times two plus significance, each in push order
+        private final List<Map<String, Entry>> ordered = new ArrayList<>();
+        private long nextSequence;
+
+        Live(String basePath) {
+            totals = new ChangeSummary(1).withBasePath(basePath);
+            for (int i = 0; i < ChangeOperation.VALUES.length * 2; i++) {
+                ordered.add(new LinkedHashMap<>());
+            }
+        }
+
+        /**
+         * Add a change after all others, replacing the one at its path; changes without a path are left out
+         */
+        void put(FileChange fc) {
+            if (fc.path == null) return;
+            remove(fc.path);
+            Entry entry = new Entry(fc, nextSequence++);
+            entries.put(fc.path, entry);
+            ordered.get(orderOf(fc)).put(fc.path, entry);
+            totals.count(fc);
+        }
+
+        void remove(String path) {
+            Entry entry = entries.remove(path);
+            if (entry == null) return;
+            ordered.get(orderOf(entry.change)).remove(path);
+            totals.uncount(entry.change);
+        }
+
+        boolean contains(String path) {
+            return entries.containsKey(path);
+        }
+
+        int size() {
+            return totals.size;
+        }
+
+        /**
+         * Counts and body candidates for a body of the given size. Copies the statistics, at most
+         * {@link #MAX_LOCATIONS} locations per operation and moves, and at most
+         * {@code maxEntriesPerOperation} entries per operation and significance, whatever the size.
+         */
+        Copy copy(int maxEntriesPerOperation) {
+            ChangeSummary summary = new ChangeSummary(maxEntriesPerOperation, totals.stats.copy())
+                    .withBasePath(totals.basePrefix);
+            summary.size = totals.size;
+            for (int i = 0; i < summary.groups.length; i++) {
+                summary.groups[i].copyCounts(totals.groups[i]);
+            }
+            totals.moves.forEach((move, moveCount) -> summary.moves.put(move, moveCount.clone()));
+            summary.otherMoveFiles = totals.otherMoveFiles;
+
+            List<Entry> candidates = new ArrayList<>();
+            Entry first = null;
+            for (Map<String, Entry> order : ordered) {
+                int taken = 0;
+                for (Entry entry : order.values()) {
+                    if (taken++ == maxEntriesPerOperation) break;
+                    candidates.add(entry);
+                    if (first == null || entry.sequence < first.sequence) first = entry;
+                }
+            }
+            summary.first = first != null ? first.change : null;
+            return new Copy(summary, candidates, entries, nextSequence);
+        }
+
+        private static int orderOf(FileChange fc) {
+            return fc.operation.ordinal() * 2 + significance(fc);
+        }
+    }
+
+    /**
+     * A {@link Live} summary at one point in time, to be summarized once
+     */
+    static final class Copy {
+        private final ChangeSummary summary;
+        private final List<Entry> candidates;
+        private final Map<String, Entry> entries;
+        // Entries from this sequence number on were put after the copy was taken
+        private final long sequenceBound;
+
+        private Copy(ChangeSummary summary, List<Entry> candidates, Map<String, Entry> entries, long sequenceBound) {
+            this.summary = summary;
+            this.candidates = candidates;
+            this.entries = entries;
+            this.sequenceBound = sequenceBound;
+        }
+
+        /**
+         * The summary with its body entries chosen by the given line counts; the files with changed
+         * lines are looked up in the live summary, skipping those changed since the copy was taken
+         */
+        ChangeSummary summarize(LineStats lineStats) {
+            summary.withLineStats(lineStats);
+            Set<Entry> chosen = new HashSet<>(candidates);
+            List<Entry> pushed = new ArrayList<>(candidates);
+            for (String path : lineStats.paths()) {
+                if (lineStats.churn(path) == 0) continue;
+                Entry entry = entries.get(path);
+                if (entry != null && entry.sequence < sequenceBound && chosen.add(entry)) pushed.add(entry);
+            }
+            pushed.sort(Comparator.comparingLong(entry -> entry.sequence));
+
+            int[] counts = new int[summary.groups.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = summary.groups[i].count;
+            }
+            for (int i = 0; i < pushed.size(); i++) {
+                FileChange fc = pushed.get(i).change;
+                summary.groups[fc.operation.ordinal()].add(fc, i, summary.maxEntriesPerOperation, summary.weight(fc));
+            }
+            for (int i = 0; i < counts.length; i++) {
+                summary.groups[i].count = counts[i];
+            }
+            return summary;
+        }
+    }
+
+    private static final class Entry {
+        final FileChange change;
+        final long sequence;
+
+        Entry(FileChange change, long sequence) {
+            this.change = change;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Files moved from one directory to another, or renamed within one; directories are relative
+     * to the base path with a trailing slash, "" for the base directory itself
+     */
+    static final class Move {
+        final String from;
+        final String to;
+        final int count;
+
+        Move(String from, String to, int count) {
+            this.from = from;
+            this.to = to;
+            this.count = count;
+        }
+    }
+
+    static final class Location {
+        final String name;
+        final int count;
+
+        Location(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.sididev;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A keyword rule mapping file or directory names to a context or scope.
+ * Lower priority values win when several rules match the same path.
+ */
+class ClassificationRule {
+
+    enum Kind {
+        /** File context, matched against the file name and its parent directory */
+        CONTEXT,
+        /** Commit scope, matched against directory names */
+        SCOPE
+    }
+
+    enum Field {
+        NAME,
+        DIRECTORY,
+        ANY
+    }
+
+    final Kind kind;
+    final String keyword;
+    final String target;
+    final Field field;
+    final int priority;
+
+    ClassificationRule(Kind kind, String keyword, String target, Field field, int priority) {
+        this.kind = kind;
+        this.keyword = keyword;
+        this.target = target;
+        this.field = field;
+        this.priority = priority;
+    }
+
+    boolean matchesName() {
+        return field == Field.NAME || field == Field.ANY;
+    }
+
+    boolean matchesDirectory() {
+        return field == Field.DIRECTORY || field == Field.ANY;
+    }
+
+    /**
+     * The built-in heuristics, in the order they have always been applied
+     */
+    static List<ClassificationRule> defaults() {
+        List<ClassificationRule> rules = new ArrayList<>();
+
+        context(rules, 10, "test", Field.ANY, "test");
+        context(rules, 20, "config", Field.ANY, "config");
+        context(rules, 30, "api", Field.ANY, "api");
+        context(rules, 40, "auth", Field.ANY, "auth");
+        context(rules, 50, "database", Field.NAME, "database");
+        context(rules, 50, "database", Field.ANY, "db");
+        context(rules, 60, "ui", Field.NAME, "ui");
+        context(rules, 60, "ui", Field.ANY, "component");
+        context(rules, 70, "style", Field.NAME, "style", "css");
+        context(rules, 80, "docs", Field.ANY, "doc");
+        context(rules, 90, "build", Field.NAME, "build", "gradle", "maven");
+
+        scope(rules, 10, "api", "api", "service");
+        scope(rules, 20, "ui", "ui", "component", "view");
+        scope(rules, 30, "auth", "auth", "security");
+        scope(rules, 40, "database", "database", "db", "model");
+        scope(rules, 50, "config", "config", "setting");
+        scope(rules, 60, "utils", "util", "helper");
+        scope(rules, 70, "test", "test");
+
+        return rules;
+    }
+
+    private static void context(List<ClassificationRule> rules, int priority, String target, Field field, String... keywords) {
+        for (String keyword : keywords) {
+            rules.add(new ClassificationRule(Kind.CONTEXT, keyword, target, field, priority));
+        }
+    }
+
+    private static void scope(List<ClassificationRule> rules, int priority, String target, String... keywords) {
+        for (String keyword : keywords) {
+            rules.add(new ClassificationRule(Kind.SCOPE, keyword, target, Field.DIRECTORY, priority));
+        }
+    }
+}
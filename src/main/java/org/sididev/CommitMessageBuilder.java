@@ -3,233 +3,589 @@ package org.sididev;
 import java.util.*;
 
 /**
- * Builds intelligent commit messages from analyzed file changes
+ * Builds intelligent commit messages from analyzed file changes. Reuses its buffers between
+ * messages, so an instance builds one message at a time.
  */
 class CommitMessageBuilder {
 
+    private static final long TEST_EXTENSIONS = extensions(FileExtensions.TEST);
+    private static final long DOCS_EXTENSIONS = extensions(FileExtensions.MD, FileExtensions.TXT, FileExtensions.RST);
+    private static final long STYLE_EXTENSIONS = extensions(
+            FileExtensions.CSS, FileExtensions.SCSS, FileExtensions.SASS, FileExtensions.LESS);
+    private static final long CONFIG_EXTENSIONS = extensions(
+            FileExtensions.JSON, FileExtensions.XML, FileExtensions.YML, FileExtensions.YAML,
+            FileExtensions.PROPERTIES, FileExtensions.GRADLE);
+    private static final long BUILD_EXTENSIONS = extensions(FileExtensions.GRADLE, FileExtensions.MAVEN);
+    private static final long SOURCE_EXTENSIONS = extensions(
+            FileExtensions.JAVA, FileExtensions.PHP, FileExtensions.JS,
+            FileExtensions.PY, FileExtensions.KT, FileExtensions.TS);
+    private static final long BACKEND_EXTENSIONS = extensions(FileExtensions.JAVA, FileExtensions.PHP);
+    private static final long FRONTEND_EXTENSIONS = extensions(
+            FileExtensions.JS, FileExtensions.TS, FileExtensions.VUE, FileExtensions.JSX, FileExtensions.HTML);
+
+    static final int DEFAULT_BODY_LINES = 100;
+    static final int DEFAULT_BODY_BYTES = 16 * 1024;
+    // Most significant files listed per operation in a summarized body
+    private static final int SUMMARY_ENTRIES = 3;
+    // Changed lines from which their balance decides between feat and refactor
+    private static final int MIN_LINES_FOR_TYPE = 20;
+    private static final int LINE_RATIO_FOR_TYPE = 4;
+    // Changed declarations named in a short description and in a body entry before the rest is counted
+    private static final int DESCRIPTION_SYMBOLS = 3;
+    private static final int BODY_SYMBOLS = 5;
+    private static final String[] SYMBOL_VERBS = {"add", "update", "remove"};
+
+    private final PathClassifier classifier;
+    private final int maxBodyLines;
+    private final int maxBodyBytes;
+    private ModuleScopes moduleScopes = ModuleScopes.NONE;
+    private MessageTemplates templates = MessageTemplates.DEFAULT;
+    private HistoryModel historyModel;
+    // Placeholder values of the template being rendered, and the short description rendered into the header
+    private final CharSequence[] values = new CharSequence[MessageTemplate.Placeholder.VALUES.length];
+    private final StringBuilder description = new StringBuilder();
+
+    public CommitMessageBuilder() {
+        this(PathClassifier.defaults());
+    }
+
+    public CommitMessageBuilder(PathClassifier classifier) {
+        this(classifier, DEFAULT_BODY_LINES, DEFAULT_BODY_BYTES);
+    }
+
+    /**
+     * @param maxBodyLines  bodies with more lines are summarized by location
+     * @param maxBodyBytes  bodies larger than this in UTF-8 are summarized, and cut off if still too large
+     */
+    public CommitMessageBuilder(PathClassifier classifier, int maxBodyLines, int maxBodyBytes) {
+        this.classifier = classifier;
+        this.maxBodyLines = Math.max(ChangeOperation.VALUES.length, maxBodyLines);
+        this.maxBodyBytes = Math.max(256, maxBodyBytes);
+    }
+
+    /**
+     * Take the scope from the module structure when one module holds most changed files
+     */
+    CommitMessageBuilder withModuleScopes(ModuleScopes moduleScopes) {
+        this.moduleScopes = moduleScopes;
+        return this;
+    }
+
+    /**
+     * Assemble the message from the given templates instead of the default ones
+     */
+    CommitMessageBuilder withTemplates(MessageTemplates templates) {
+        this.templates = templates;
+        return this;
+    }
+
+    /**
+     * Predict type and scope from the history of the repository where the model is confident;
+     * null to use the heuristics only
+     */
+    CommitMessageBuilder withHistoryModel(HistoryModel historyModel) {
+        this.historyModel = historyModel;
+        return this;
+    }
+
     public String buildMessage(List<FileChange> fileChanges) {
-        if (fileChanges.isEmpty()) {
+        return buildMessage(fileChanges, analyzeChangeStats(fileChanges));
+    }
+
+    /**
+     * Build a message from changes whose statistics are already known,
+     * e.g. maintained incrementally by {@link ChangeStatsTracker}
+     */
+    public String buildMessage(List<FileChange> fileChanges, ChangeStats stats) {
+        ChangeSummary summary = new ChangeSummary(ChangeSummary.UNBOUNDED, stats);
+        for (FileChange fc : fileChanges) {
+            summary.accept(fc);
+        }
+        return buildMessage(summary);
+    }
+
+    /**
+     * Build a message from a summary collected in a single pass over the changes
+     */
+    public String buildMessage(ChangeSummary summary) {
+        if (summary.size() == 0) {
             return "chore: no changes detected";
         }
 
-        ChangeStats stats = analyzeChangeStats(fileChanges);
+        ChangeStats stats = summary.stats();
+        String[] typeAndScope = determineTypeAndScope(stats, summary.lineStats(), summary.basePath());
+        String type = typeAndScope[0];
+        String scope = typeAndScope[1];
+        description.setLength(0);
+        appendShortDescription(description, summary);
+        StringBuilder message = new StringBuilder(description.length() + 64);
+        appendHeader(message, type, scope, description, summary.size());
 
-        String type = determineCommitType(stats);
-        String scope = determineScope(stats);
-        String shortDescription = generateShortDescription(fileChanges, stats);
-        String longDescription = generateLongDescription(fileChanges);
+        String longDescription = generateLongDescription(summary);
+        if (!longDescription.isEmpty()) {
+            message.append("\n\n").append(longDescription);
+        }
+        return message.toString();
+    }
 
-        return constructFinalMessage(type, scope, shortDescription, longDescription);
+    private void appendHeader(StringBuilder out, String type, String scope, CharSequence shortDescription, int files) {
+        Arrays.fill(values, null);
+        values[MessageTemplate.Placeholder.TYPE.ordinal()] = type;
+        values[MessageTemplate.Placeholder.SCOPE.ordinal()] = scope;
+        values[MessageTemplate.Placeholder.DESCRIPTION.ordinal()] = shortDescription;
+        values[MessageTemplate.Placeholder.COUNT.ordinal()] = appendNumber(new StringBuilder(), files);
+        templates.header.render(out, values);
     }
 
     private ChangeStats analyzeChangeStats(List<FileChange> fileChanges) {
         ChangeStats stats = new ChangeStats();
 
         for (FileChange fc : fileChanges) {
-            if (fc.extension != null) {
-                stats.extensions.put(fc.extension, stats.extensions.getOrDefault(fc.extension, 0) + 1);
-            }
-            stats.operations.put(fc.operation, stats.operations.getOrDefault(fc.operation, 0) + 1);
-            if (fc.directory != null) stats.directories.add(fc.directory);
-            if (fc.context != null) stats.contexts.add(fc.context);
+            stats.add(fc);
         }
 
         return stats;
     }
 
-    private String determineCommitType(ChangeStats stats) {
-        if (stats.contexts.contains("test") || stats.extensions.containsKey("test")) {
+    /**
+     * Type and scope as {type, scope}, each predicted by the history model if it is confident about it
+     * and determined by the heuristics otherwise
+     *
+     * @param basePath root of the changed paths; directories above it are not considered for the scope
+     */
+    String[] determineTypeAndScope(ChangeStats stats, LineStats lineStats, String basePath) {
+        HistoryModel.Prediction prediction = historyModel != null
+                ? historyModel.predict(stats, basePath) : HistoryModel.Prediction.NONE;
+        return new String[]{
+                prediction.type != null ? prediction.type : determineCommitType(stats, lineStats),
+                prediction.scope != null ? prediction.scope : determineScope(stats, basePath)};
+    }
+
+    String determineCommitType(ChangeStats stats, LineStats lineStats) {
+        if (stats.hasContext(FileContext.TEST) || stats.hasAnyExtension(TEST_EXTENSIONS)) {
             return "test";
         }
 
-        if (stats.extensions.containsKey("md") || stats.extensions.containsKey("txt") ||
-                stats.extensions.containsKey("rst") || stats.contexts.contains("docs")) {
+        if (stats.hasAnyExtension(DOCS_EXTENSIONS) || stats.hasContext(FileContext.DOCS)) {
             return "docs";
         }
 
-        if (stats.extensions.containsKey("css") || stats.extensions.containsKey("scss") ||
-                stats.extensions.containsKey("sass") || stats.extensions.containsKey("less") ||
-                stats.contexts.contains("style")) {
+        if (stats.hasAnyExtension(STYLE_EXTENSIONS) || stats.hasContext(FileContext.STYLE)) {
             return "style";
         }
 
-        if (stats.extensions.containsKey("json") || stats.extensions.containsKey("xml") ||
-                stats.extensions.containsKey("yml") || stats.extensions.containsKey("yaml") ||
-                stats.extensions.containsKey("properties") || stats.extensions.containsKey("gradle") ||
-                stats.contexts.contains("config")) {
+        if (stats.hasAnyExtension(CONFIG_EXTENSIONS) || stats.hasContext(FileContext.CONFIG)) {
             return "chore";
         }
 
-        if (stats.contexts.contains("build") || stats.extensions.containsKey("gradle") ||
-                stats.extensions.containsKey("maven")) {
+        if (stats.hasContext(FileContext.BUILD) || stats.hasAnyExtension(BUILD_EXTENSIONS)) {
             return "build";
         }
 
-        if (stats.operations.getOrDefault("add", 0) > stats.operations.getOrDefault("update", 0)) {
+        // Moved code is reorganized, not new
+        if (stats.primaryOperation() == ChangeOperation.MOVE) {
+            return "refactor";
+        }
+
+        if (stats.count(ChangeOperation.ADD) > stats.count(ChangeOperation.UPDATE)) {
             return "feat";
         }
 
-        if (stats.operations.getOrDefault("remove", 0) > 0) {
+        if (stats.count(ChangeOperation.REMOVE) > 0) {
             return "refactor";
         }
 
-        if (stats.extensions.containsKey("java") || stats.extensions.containsKey("php") ||
-                stats.extensions.containsKey("js") || stats.extensions.containsKey("py") ||
-                stats.extensions.containsKey("kt") || stats.extensions.containsKey("ts")) {
+        // Edits that mostly add code are features, edits that mostly delete it are refactorings
+        if (lineStats.added() + lineStats.removed() >= MIN_LINES_FOR_TYPE) {
+            if (lineStats.added() >= LINE_RATIO_FOR_TYPE * lineStats.removed()) return "feat";
+            if (lineStats.removed() >= LINE_RATIO_FOR_TYPE * lineStats.added()) return "refactor";
+        }
+
+        if (stats.hasAnyExtension(SOURCE_EXTENSIONS)) {
             return "fix";
         }
 
         return "chore";
     }
 
-    private String determineScope(ChangeStats stats) {
-        if (stats.contexts.contains("auth")) return "auth";
-        if (stats.contexts.contains("api")) return "api";
-        if (stats.contexts.contains("database")) return "database";
-        if (stats.contexts.contains("ui")) return "ui";
+    String determineScope(ChangeStats stats) {
+        return determineScope(stats, null);
+    }
+
+    /**
+     * @param basePath root of the changed paths; directories above it are not considered for the scope
+     */
+    String determineScope(ChangeStats stats, String basePath) {
+        String moduleScope = moduleScopes.scope(stats.paths());
+        if (moduleScope != null) return moduleScope;
 
-        for (String dir : stats.directories) {
-            String lowerDir = dir.toLowerCase();
-            if (lowerDir.contains("api") || lowerDir.contains("service")) return "api";
-            if (lowerDir.contains("ui") || lowerDir.contains("component") || lowerDir.contains("view")) return "ui";
-            if (lowerDir.contains("auth") || lowerDir.contains("security")) return "auth";
-            if (lowerDir.contains("database") || lowerDir.contains("db") || lowerDir.contains("model")) return "database";
-            if (lowerDir.contains("config") || lowerDir.contains("setting")) return "config";
-            if (lowerDir.contains("util") || lowerDir.contains("helper")) return "utils";
-            if (lowerDir.contains("test")) return "test";
-        }
+        if (stats.hasContext(FileContext.AUTH)) return "auth";
+        if (stats.hasContext(FileContext.API)) return "api";
+        if (stats.hasContext(FileContext.DATABASE)) return "database";
+        if (stats.hasContext(FileContext.UI)) return "ui";
 
-        if (stats.extensions.containsKey("java") || stats.extensions.containsKey("php")) return "backend";
-        if (stats.extensions.containsKey("js") || stats.extensions.containsKey("ts") ||
-                stats.extensions.containsKey("vue") || stats.extensions.containsKey("jsx") ||
-                stats.extensions.containsKey("html")) return "frontend";
-        if (stats.extensions.containsKey("sql")) return "database";
+        String directoryScope = stats.paths().scope(classifier, basePath);
+        if (directoryScope != null) return directoryScope;
+
+        if (stats.hasAnyExtension(BACKEND_EXTENSIONS)) return "backend";
+        if (stats.hasAnyExtension(FRONTEND_EXTENSIONS)) return "frontend";
+        if (stats.hasAnyExtension(FileExtensions.bit(FileExtensions.SQL))) return "database";
 
         return "";
     }
 
-    private String generateShortDescription(List<FileChange> fileChanges, ChangeStats stats) {
-        if (fileChanges.size() == 1) {
-            return generateSingleFileDescription(fileChanges.get(0));
-        }
-        return generateMultiFileDescription(stats);
-    }
-
-    private String generateSingleFileDescription(FileChange fc) {
-        String action = getActionVerb(fc.operation);
-
-        if (fc.context != null && !fc.context.equals("file")) {
-            switch (fc.context) {
-                case "config":
-                    return String.format("%s %s configuration", action, getFileTypeDescription(fc));
-                case "api":
-                    return String.format("%s %s API endpoint", action, getFileTypeDescription(fc));
-                case "ui":
-                    return String.format("%s %s component", action, getFileTypeDescription(fc));
-                case "test":
-                    return String.format("%s %s tests", action, getFileTypeDescription(fc));
-                case "database":
-                    return String.format("%s %s schema", action, getFileTypeDescription(fc));
-                case "auth":
-                    return String.format("%s %s authentication", action, getFileTypeDescription(fc));
-                default:
-                    return String.format("%s %s %s", action, fc.context, getFileTypeDescription(fc));
+    String generateShortDescription(ChangeSummary summary) {
+        return appendShortDescription(new StringBuilder(), summary).toString();
+    }
+
+    private StringBuilder appendShortDescription(StringBuilder out, ChangeSummary summary) {
+        if (summary.size() == 1) {
+            return appendSingleFileDescription(out, summary.first(), summary);
+        }
+        ChangeSummary.Move move = soleMove(summary);
+        if (move != null && move.count == summary.size()) {
+            return appendMove(out.append(move.from.equals(move.to) ? "rename " : "move "), move);
+        }
+        return appendMultiFileDescription(out, summary.stats(), summary.size());
+    }
+
+    /**
+     * The move all moved files were part of, or null if they were moved between different directories
+     */
+    private static ChangeSummary.Move soleMove(ChangeSummary summary) {
+        List<ChangeSummary.Move> moves = summary.moves();
+        if (moves.size() != 1 || summary.otherMoveFiles() > 0) return null;
+        ChangeSummary.Move move = moves.get(0);
+        return move.count == summary.group(ChangeOperation.MOVE).count() ? move : null;
+    }
+
+    /**
+     * Appends e.g. "12 files from src/old/ to src/new/", or "3 files in src/" for renames
+     */
+    private static StringBuilder appendMove(StringBuilder out, ChangeSummary.Move move) {
+        appendCount(out, move.count, "file", "files");
+        if (move.from.equals(move.to)) {
+            return out.append(" in ").append(directoryName(move.from));
+        }
+        return out.append(" from ").append(directoryName(move.from)).append(" to ").append(directoryName(move.to));
+    }
+
+    private static String directoryName(String directory) {
+        return directory.isEmpty() ? "the project root" : directory;
+    }
+
+    private StringBuilder appendSingleFileDescription(StringBuilder out, FileChange fc, ChangeSummary summary) {
+        SymbolChanges.Symbols symbols = summary.symbolChanges().get(fc.path);
+        MessageTemplate template = symbols != null ? templates.symbolsDescription : templates.fileDescription;
+        String area = getContextDescription(fc.context);
+        setFileValues(template, fc, area, summary);
+        if (area == null && fc.context != null && fc.context != FileContext.FILE) {
+            values[MessageTemplate.Placeholder.QUALIFIER.ordinal()] = fc.context.id;
+        }
+        if (symbols != null) {
+            values[MessageTemplate.Placeholder.SYMBOLS.ordinal()] =
+                    appendSymbols(new StringBuilder(), symbols, DESCRIPTION_SYMBOLS);
+        }
+        return template.render(out, values);
+    }
+
+    /**
+     * Appends e.g. "add Invoice.round, update Invoice.total and remove Invoice.legacy", naming at most
+     * the given number of declarations and counting the others
+     */
+    private static StringBuilder appendSymbols(StringBuilder out, SymbolChanges.Symbols symbols, int maxNames) {
+        String[][] lists = {symbols.added, symbols.updated, symbols.removed};
+        int actions = 0;
+        for (String[] names : lists) {
+            if (names.length > 0) actions++;
+        }
+        int remaining = maxNames;
+        int written = 0;
+        for (int i = 0; i < lists.length; i++) {
+            String[] names = lists[i];
+            if (names.length == 0) continue;
+            if (written++ > 0) out.append(written == actions ? " and " : ", ");
+            out.append(SYMBOL_VERBS[i]).append(' ');
+            if (names.length > remaining) {
+                appendCount(out, names.length, "declaration", "declarations");
+                remaining = 0;
+                continue;
+            }
+            for (int j = 0; j < names.length; j++) {
+                if (j > 0) out.append(", ");
+                out.append(names[j]);
             }
+            remaining -= names.length;
         }
+        return out;
+    }
 
-        return String.format("%s %s", action, getFileTypeDescription(fc));
+    private StringBuilder appendMultiFileDescription(StringBuilder out, ChangeStats stats, int files) {
+        ChangeOperation primaryOperation = stats.primaryOperation();
+        Arrays.fill(values, null);
+        values[MessageTemplate.Placeholder.VERB.ordinal()] =
+                primaryOperation != null ? getActionVerb(primaryOperation) : "update";
+        values[MessageTemplate.Placeholder.COUNT.ordinal()] = appendNumber(new StringBuilder(), files);
+
+        if (stats.contextCount() == 1) {
+            FileContext context = FileContext.VALUES[Integer.numberOfTrailingZeros(stats.contextBits)];
+            values[MessageTemplate.Placeholder.CONTEXT.ordinal()] = context.id;
+            values[MessageTemplate.Placeholder.KIND.ordinal()] = context.id + " implementation";
+        } else {
+            values[MessageTemplate.Placeholder.KIND.ordinal()] = getImplementationDescription(stats.mainExtension());
+        }
+        return templates.filesDescription.render(out, values);
     }
 
-    private String generateMultiFileDescription(ChangeStats stats) {
-        String primaryAction = stats.operations.entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(entry -> getActionVerb(entry.getKey()))
-                .orElse("update");
+    private static String getImplementationDescription(int extension) {
+        switch (extension) {
+            case FileExtensions.JAVA: return "Java implementation";
+            case FileExtensions.JS: return "JavaScript functionality";
+            case FileExtensions.PHP: return "PHP implementation";
+            case FileExtensions.PY: return "Python modules";
+            case FileExtensions.CSS: return "styling system";
+            case FileExtensions.HTML: return "UI templates";
+            case FileExtensions.JSON:
+            case FileExtensions.XML: return "configuration files";
+            case FileExtensions.MD: return "documentation";
+            default: return "project structure";
+        }
+    }
 
-        if (stats.contexts.size() == 1) {
-            String context = stats.contexts.iterator().next();
-            return String.format("%s %s implementation", primaryAction, context);
+    /**
+     * What a single changed file is part of, for its short description; null for plain files
+     */
+    private static String getContextDescription(FileContext context) {
+        if (context == null) return null;
+        switch (context) {
+            case CONFIG: return "configuration";
+            case API: return "API endpoint";
+            case UI: return "component";
+            case TEST: return "tests";
+            case DATABASE: return "schema";
+            case AUTH: return "authentication";
+            // Styles, docs and build scripts are qualified by their context id instead
+            default: return null;
         }
+    }
 
-        String mainExtension = stats.extensions.entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(Map.Entry::getKey)
-                .orElse("project");
+    /**
+     * What a file listed in the body is part of; null for plain files
+     */
+    private static String getContextLabel(FileContext context) {
+        if (context == null) return null;
+        switch (context) {
+            case CONFIG: return "configuration";
+            case API: return "API layer";
+            case UI: return "user interface";
+            case TEST: return "test suite";
+            case DATABASE: return "database layer";
+            case AUTH: return "authentication";
+            case BUILD: return "build system";
+            case FILE: return null;
+            default: return context.id;
+        }
+    }
 
-        switch (mainExtension) {
-            case "java": return String.format("%s Java implementation", primaryAction);
-            case "js": return String.format("%s JavaScript functionality", primaryAction);
-            case "php": return String.format("%s PHP implementation", primaryAction);
-            case "py": return String.format("%s Python modules", primaryAction);
-            case "css": return String.format("%s styling system", primaryAction);
-            case "html": return String.format("%s UI templates", primaryAction);
-            case "json":
-            case "xml": return String.format("%s configuration files", primaryAction);
-            case "md": return String.format("%s documentation", primaryAction);
-            default: return String.format("%s project structure", primaryAction);
+    private void setFileValues(MessageTemplate template, FileChange fc, String area, ChangeSummary summary) {
+        Arrays.fill(values, null);
+        values[MessageTemplate.Placeholder.VERB.ordinal()] = getActionVerb(fc.operation);
+        values[MessageTemplate.Placeholder.KIND.ordinal()] = getFileTypeDescription(fc);
+        values[MessageTemplate.Placeholder.AREA.ordinal()] = area;
+        values[MessageTemplate.Placeholder.CONTEXT.ordinal()] = fc.context != null ? fc.context.id : null;
+        values[MessageTemplate.Placeholder.FILE.ordinal()] = fc.fileName;
+        // Only the path is not a constant or a field, so it is computed when used
+        if (fc.path != null && template.uses(MessageTemplate.Placeholder.PATH)) {
+            values[MessageTemplate.Placeholder.PATH.ordinal()] = summary.relativePath(fc.path);
         }
     }
 
-    private String generateLongDescription(List<FileChange> fileChanges) {
-        if (fileChanges.size() <= 1) {
+    String generateLongDescription(ChangeSummary summary) {
+        if (summary.size() <= 1) {
             return "";
         }
 
-        StringBuilder description = new StringBuilder();
-        Map<String, List<FileChange>> groupedByOperation = new HashMap<>();
-
-        for (FileChange fc : fileChanges) {
-            groupedByOperation.computeIfAbsent(fc.operation, k -> new ArrayList<>()).add(fc);
+        if (fitsInFull(summary)) {
+            BodyWriter full = new BodyWriter(Integer.MAX_VALUE, Integer.MAX_VALUE);
+            writeFullBody(summary, full);
+            if (full.bytes <= maxBodyBytes) {
+                return full.toString();
+            }
         }
 
-        boolean first = true;
-        for (Map.Entry<String, List<FileChange>> entry : groupedByOperation.entrySet()) {
-            String operation = entry.getKey();
-            List<FileChange> files = entry.getValue();
+        BodyWriter summarized = new BodyWriter(maxBodyLines, maxBodyBytes);
+        writeSummarizedBody(summary, summarized);
+        return summarized.toString();
+    }
+
+    /**
+     * True if every file is kept and listing them all stays within the line budget
+     */
+    private boolean fitsInFull(ChangeSummary summary) {
+        long lines = 0;
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            ChangeSummary.Group group = summary.group(operation);
+            if (group.omitted() > 0) return false;
+            if (group.count() > 0) lines += group.count() == 1 ? 1 : 1 + group.count();
+        }
+        return lines <= maxBodyLines;
+    }
 
-            if (!first) {
-                description.append("\n");
+    private void writeFullBody(ChangeSummary summary, BodyWriter body) {
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            ChangeSummary.Group group = summary.group(operation);
+            if (group.count() == 0) {
+                continue;
             }
-            first = false;
 
             String verb = capitalizeFirst(getActionVerb(operation));
-            if (files.size() == 1) {
-                FileChange fc = files.get(0);
-                description.append(String.format("- %s %s", verb, getDetailedFileDescription(fc)));
+            List<FileChange> files = group.entries();
+            ChangeSummary.Move move = operation == ChangeOperation.MOVE ? soleMove(summary) : null;
+            if (group.count() == 1) {
+                appendFile(body.line().append("- ").append(verb).append(' '), files.get(0), summary);
+                if (move != null && !move.from.equals(move.to)) {
+                    body.out.append(" from ").append(directoryName(move.from))
+                            .append(" to ").append(directoryName(move.to));
+                }
+                body.endLine();
             } else {
-                description.append(String.format("- %s %d files:", verb, files.size()));
+                body.line().append("- ").append(verb).append(' ');
+                if (move != null) {
+                    appendMove(body.out, move);
+                } else {
+                    body.out.append(group.count()).append(" files");
+                }
+                body.out.append(':');
+                body.endLine();
                 for (FileChange fc : files) {
-                    description.append(String.format("\n  • %s", getDetailedFileDescription(fc)));
+                    appendFile(body.line().append("  • "), fc, summary);
+                    body.endLine();
                 }
             }
         }
+    }
+
+    /**
+     * One header per operation, then its files counted by location and its most significant files,
+     * with the line budget shared between operations in proportion to their file counts
+     */
+    private void writeSummarizedBody(ChangeSummary summary, BodyWriter body) {
+        int groups = 0;
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            if (summary.group(operation).count() > 0) groups++;
+        }
+        long detailLines = Math.max(0, maxBodyLines - groups);
 
-        return description.toString();
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            ChangeSummary.Group group = summary.group(operation);
+            if (group.count() == 0) {
+                continue;
+            }
+
+            String verb = capitalizeFirst(getActionVerb(operation));
+            if (group.count() == 1) {
+                appendFile(body.line().append("- ").append(verb).append(' '), group.entries().get(0), summary);
+                if (!body.endLine()) return;
+                continue;
+            }
+
+            ChangeSummary.Move move = operation == ChangeOperation.MOVE ? soleMove(summary) : null;
+            body.line().append("- ").append(verb).append(' ');
+            if (move != null) {
+                appendMove(body.out, move).append(':');
+            } else {
+                appendCount(body.out, group.count(), "file", "files").append(':');
+            }
+            if (!body.endLine()) return;
+
+            int budget = (int) Math.max(1, detailLines * group.count() / summary.size());
+            List<FileChange> top = group.topEntries(Math.min(SUMMARY_ENTRIES, budget / 2));
+            // Moves are told apart by their directories rather than by where the files ended up
+            if (operation == ChangeOperation.MOVE && !summary.moves().isEmpty()) {
+                if (move == null && !writeMoves(summary, group, budget - top.size(), body)) return;
+            } else if (!writeLocations(group, budget - top.size(), body)) {
+                return;
+            }
+            for (FileChange fc : top) {
+                appendFile(body.line().append("  • "), fc, summary);
+                if (!body.endLine()) return;
+            }
+        }
     }
 
-    private String constructFinalMessage(String type, String scope, String shortDescription, String longDescription) {
-        StringBuilder message = new StringBuilder();
+    private boolean writeMoves(ChangeSummary summary, ChangeSummary.Group group, int lines, BodyWriter body) {
+        if (lines <= 0) return true;
+
+        List<ChangeSummary.Move> moves = summary.moves();
+        int shown = moves.size() <= lines ? moves.size() : lines - 1;
+        int files = group.count();
+        for (int i = 0; i < shown; i++) {
+            ChangeSummary.Move move = moves.get(i);
+            appendMove(body.line().append("  • "), move);
+            if (!body.endLine()) return false;
+            files -= move.count;
+        }
 
-        if (scope.isEmpty()) {
-            message.append(String.format("%s: %s", type, shortDescription));
-        } else {
-            message.append(String.format("%s(%s): %s", type, scope, shortDescription));
+        if (files > 0) {
+            body.line().append("  • ");
+            appendCount(body.out, files, "file", "files").append(" in other locations");
+            return body.endLine();
         }
+        return true;
+    }
 
-        if (!longDescription.isEmpty()) {
-            message.append("\n\n");
-            message.append(longDescription);
+    private boolean writeLocations(ChangeSummary.Group group, int lines, BodyWriter body) {
+        if (lines <= 0) return true;
+
+        List<ChangeSummary.Location> locations = group.locations();
+        int shown = locations.size() <= lines ? locations.size() : lines - 1;
+        for (int i = 0; i < shown; i++) {
+            ChangeSummary.Location location = locations.get(i);
+            body.line().append("  • ");
+            appendCount(body.out, location.count, "file", "files");
+            if (location.name.isEmpty()) {
+                body.out.append(" in the project root");
+            } else {
+                body.out.append(" under ").append(location.name);
+            }
+            if (!body.endLine()) return false;
         }
 
-        return message.toString();
+        if (shown < locations.size() || group.otherLocationFiles() > 0) {
+            int files = group.otherLocationFiles();
+            for (int i = shown; i < locations.size(); i++) {
+                files += locations.get(i).count;
+            }
+            body.line().append("  • ");
+            appendCount(body.out, files, "file", "files").append(" in other locations");
+            return body.endLine();
+        }
+        return true;
     }
 
-    private String getActionVerb(String operation) {
-        switch (operation.toLowerCase()) {
-            case "add": return "add";
-            case "remove": return "remove";
-            case "update": return "update";
-            case "move": return "move";
+    /**
+     * Appends e.g. "1,240 files", grouping thousands without going through String.format
+     */
+    private static StringBuilder appendCount(StringBuilder out, int count, String singular, String plural) {
+        return appendNumber(out, count).append(' ').append(count == 1 ? singular : plural);
+    }
+
+    private static StringBuilder appendNumber(StringBuilder out, int number) {
+        String digits = Integer.toString(number);
+        int lead = digits.length() % 3 == 0 ? 3 : digits.length() % 3;
+        out.append(digits, 0, lead);
+        for (int i = lead; i < digits.length(); i += 3) {
+            out.append(',').append(digits, i, i + 3);
+        }
+        return out;
+    }
+
+    private String getActionVerb(ChangeOperation operation) {
+        switch (operation) {
+            case ADD: return "add";
+            case REMOVE: return "remove";
+            case UPDATE: return "update";
+            case MOVE: return "move";
             default: return "modify";
         }
     }
@@ -237,49 +593,113 @@ class CommitMessageBuilder {
     private String getFileTypeDescription(FileChange fc) {
         if (fc.fileName == null) return "file";
 
-        String extension = fc.extension != null ? fc.extension : "";
-
-        switch (extension) {
-            case "java": return "Java class";
-            case "js": return "JavaScript module";
-            case "php": return "PHP script";
-            case "py": return "Python module";
-            case "css": return "stylesheet";
-            case "html": return "HTML template";
-            case "json": return "JSON config";
-            case "xml": return "XML config";
-            case "md": return "documentation";
-            case "gradle": return "build script";
-            case "yml":
-            case "yaml": return "YAML config";
+        switch (fc.extension) {
+            case FileExtensions.JAVA: return "Java class";
+            case FileExtensions.JS: return "JavaScript module";
+            case FileExtensions.PHP: return "PHP script";
+            case FileExtensions.PY: return "Python module";
+            case FileExtensions.CSS: return "stylesheet";
+            case FileExtensions.HTML: return "HTML template";
+            case FileExtensions.JSON: return "JSON config";
+            case FileExtensions.XML: return "XML config";
+            case FileExtensions.MD: return "documentation";
+            case FileExtensions.GRADLE: return "build script";
+            case FileExtensions.YML:
+            case FileExtensions.YAML: return "YAML config";
             default: return fc.fileName;
         }
     }
 
-    private String getDetailedFileDescription(FileChange fc) {
-        if (fc.fileName == null) return "unknown file";
-
-        StringBuilder desc = new StringBuilder();
-        desc.append(fc.fileName);
-
-        if (fc.context != null && !fc.context.equals("file")) {
-            switch (fc.context) {
-                case "config": desc.append(" (configuration)"); break;
-                case "api": desc.append(" (API layer)"); break;
-                case "ui": desc.append(" (user interface)"); break;
-                case "test": desc.append(" (test suite)"); break;
-                case "database": desc.append(" (database layer)"); break;
-                case "auth": desc.append(" (authentication)"); break;
-                case "build": desc.append(" (build system)"); break;
-                default: desc.append(String.format(" (%s)", fc.context));
-            }
+    /**
+     * Detailed description followed by the changed lines and declarations, when they are known
+     */
+    private StringBuilder appendFile(StringBuilder out, FileChange fc, ChangeSummary summary) {
+        if (fc.fileName == null) {
+            out.append("unknown file");
+        } else {
+            MessageTemplate template = templates.bodyFile;
+            setFileValues(template, fc, getContextLabel(fc.context), summary);
+            template.render(out, values);
         }
-
-        return desc.toString();
+        LineStats lineStats = summary.lineStats();
+        if (lineStats.has(fc.path)) {
+            out.append(" +").append(lineStats.added(fc.path)).append(" -").append(lineStats.removed(fc.path));
+        }
+        SymbolChanges.Symbols symbols = summary.symbolChanges().get(fc.path);
+        if (symbols != null) {
+            appendSymbols(out.append(": "), symbols, BODY_SYMBOLS);
+        }
+        return out;
     }
 
     private String capitalizeFirst(String str) {
         if (str == null || str.isEmpty()) return str;
         return str.substring(0, 1).toUpperCase() + str.substring(1);
     }
+
+    private static long extensions(int... ids) {
+        long mask = 0L;
+        for (int id : ids) {
+            mask |= FileExtensions.bit(id);
+        }
+        return mask;
+    }
+
+    /**
+     * Newline-separated body lines in a pre-sized buffer, refusing lines beyond the line or UTF-8 byte limit
+     */
+    private static final class BodyWriter {
+        final StringBuilder out;
+        private final int maxLines;
+        private final int maxBytes;
+        private int lines;
+        private long bytes;
+        private int lineStart;
+
+        BodyWriter(int maxLines, int maxBytes) {
+            this.maxLines = maxLines;
+            this.maxBytes = maxBytes;
+            this.out = new StringBuilder(Math.min(maxBytes, DEFAULT_BODY_BYTES));
+        }
+
+        /**
+         * Start a line; its content is appended to the returned buffer
+         */
+        StringBuilder line() {
+            lineStart = out.length();
+            if (lines > 0) out.append('\n');
+            return out;
+        }
+
+        /**
+         * Accept the line started last, or drop it and return false if it does not fit
+         */
+        boolean endLine() {
+            long lineBytes = utf8Length(out, lineStart, out.length());
+            if (lines >= maxLines || bytes + lineBytes > maxBytes) {
+                out.setLength(lineStart);
+                return false;
+            }
+            lines++;
+            bytes += lineBytes;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+
+        private static long utf8Length(CharSequence text, int from, int to) {
+            long length = 0;
+            for (int i = from; i < to; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) length++;
+                else if (c < 0x800) length += 2;
+                else if (Character.isHighSurrogate(c)) length += 4;
+                else if (!Character.isLowSurrogate(c)) length += 3;
+            }
+            return length;
+        }
+    }
 }
\ No newline at end of file
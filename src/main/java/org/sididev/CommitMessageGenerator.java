@@ -0,0 +1,514 @@
+package org.sididev;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.ByteBackedContentRevision;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.changes.CurrentContentRevision;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Project service that generates commit messages in the background.
+ * Only one generation runs at a time: starting a new one cancels the previous run
+ * and its result is discarded.
+ */
+public final class CommitMessageGenerator {
+
+    private static final Logger LOG = Logger.getInstance(CommitMessageGenerator.class);
+
+    // Interval at which cancellation is checked while waiting for other roots
+    private static final int AWAIT_STEP_MILLIS = 20;
+
+    private final Project project;
+    // Summarizes the roots other than the largest one of a multi-root generation
+    private final ExecutorService partitionExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "Smart Commit Roots", Runtime.getRuntime().availableProcessors());
+
+    // Confined to the EDT: written when a run starts and compared when it finishes
+    private GenerationTask activeTask;
+
+    public CommitMessageGenerator(Project project) {
+        this.project = project;
+    }
+
+    public static CommitMessageGenerator getInstance(Project project) {
+        return project.getService(CommitMessageGenerator.class);
+    }
+
+    /**
+     * Start a background generation. The callback is invoked on the EDT with the
+     * final message, unless the run is cancelled or superseded by a newer one.
+     */
+    public void generate(Consumer<String> onGenerated) {
+        generate(null, onGenerated);
+    }
+
+    /**
+     * Start a background generation for the given changes, typically those included in the commit
+     * dialog. Changes are split by VCS root and the roots are analyzed concurrently.
+     *
+     * @param includedChanges changes to describe, or null for the default changelist
+     */
+    public void generate(List<Change> includedChanges, Consumer<String> onGenerated) {
+        if (activeTask != null) {
+            activeTask.cancel();
+        }
+
+        GenerationTask task = new GenerationTask(includedChanges, onGenerated);
+        activeTask = task;
+        ProgressManager.getInstance().run(task);
+    }
+
+    /**
+     * Generate intelligent commit message based on Git changes
+     */
+    private String generateCommitMessage(ProgressIndicator indicator, List<Change> includedChanges) {
+        GenerationMetrics metrics = GenerationMetrics.getInstance(project);
+        GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.GENERATION);
+        int files = -1;
+        String outcome = "cancelled";
+        try {
+            SmartCommitSettings settings = SmartCommitSettings.getInstance(project);
+            SmartCommitSettings.State state = settings.getState();
+            List<ChangeSummary> summaries = null;
+            List<ChangePartition> partitions = null;
+            if (state.stagedFromGitIndex) {
+                partitions = ReadAction.compute(() -> ChangePartition.gitRoots(project));
+                summaries = summarizeStaged(indicator, settings, partitions, metrics);
+            }
+            if (summaries == null && includedChanges == null) {
+                partitions = null;
+                summaries = Collections.singletonList(summarizeDefaultChangeList(indicator, settings, metrics));
+            } else if (summaries == null) {
+                partitions = ReadAction.compute(() -> ChangePartition.partition(project, includedChanges,
+                        state.partitionByChangelist));
+                summaries = summarizePartitions(indicator, settings, partitions, metrics);
+            }
+
+            files = 0;
+            for (ChangeSummary summary : summaries) files += summary.size();
+            metrics.recordChangesetSize(files);
+
+            if (files == 0) {
+                outcome = "empty";
+                return "chore: no staged changes found";
+            }
+
+            indicator.checkCanceled();
+            indicator.setText2("Building message");
+            GenerationMetrics.Timer buildTimer = metrics.start(GenerationMetrics.Stage.BUILD);
+            CommitMessageBuilder builder = createBuilder(settings);
+            String message = partitions != null && partitions.size() > 1 && state.messagePerRoot
+                    ? buildPerRoot(builder, partitions, summaries)
+                    : builder.buildMessage(merge(summaries, state));
+            buildTimer.stop(files, summaries.size() > 1 ? summaries.size() + " partitions" : "built");
+            outcome = "generated";
+            return message;
+
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.warn("Commit message generation failed", e);
+            metrics.recordFallback(GenerationMetrics.Fallback.GENERATION_FAILED);
+            outcome = "failed";
+            return "chore: update project files";
+        } finally {
+            timer.stop(files, outcome);
+        }
+    }
+
+    /**
+     * Builder configured by the current settings
+     */
+    CommitMessageBuilder createBuilder(SmartCommitSettings settings) {
+        SmartCommitSettings.State state = settings.getState();
+        return new CommitMessageBuilder(settings.getClassifier(), state.bodyMaxLines, state.bodyMaxBytes)
+                .withTemplates(settings.getTemplates())
+                .withHistoryModel(state.historyModelEnabled ? HistoryModels.getInstance(project).model(settings) : null)
+                .withModuleScopes(state.moduleScopesEnabled
+                        ? ModuleScopeIndex.getInstance(project).scopes(state.moduleScopes)
+                        : ModuleScopes.NONE);
+    }
+
+    /**
+     * Summary of the default changelist from the live model of {@link ChangeStatsTracker}
+     */
+    private ChangeSummary summarizeDefaultChangeList(ProgressIndicator indicator, SmartCommitSettings settings,
+                                                     GenerationMetrics metrics) {
+        SmartCommitSettings.State state = settings.getState();
+        Collection<Change> changes = ChangeListManager.getInstance(project).getDefaultChangeList().getChanges();
+        LineStats lineStats = countChangedLines(indicator, state, metrics, changes, state.lineStatsMaxTotalBytes);
+        SymbolChanges symbolChanges = findSymbolChanges(indicator, state, metrics, changes, symbolDeadline(state));
+
+        return ReadAction.nonBlocking(() -> {
+            indicator.setText2("Collecting changes");
+            return ChangeStatsTracker.getInstance(project)
+                    .summarize(indicator, Math.max(1, state.bodyEntriesPerOperation), lineStats);
+        }).wrapProgress(indicator).executeSynchronously().withSymbolChanges(symbolChanges);
+    }
+
+    /**
+     * Summaries of the partitions, in partition order. The largest partition is summarized on the
+     * calling thread and the others on the pool, largest first, so the latency is close to that of
+     * the largest partition rather than the sum of all of them.
+     */
+    private List<ChangeSummary> summarizePartitions(ProgressIndicator indicator, SmartCommitSettings settings,
+                                                    List<ChangePartition> partitions, GenerationMetrics metrics)
+            throws InterruptedException {
+        SmartCommitSettings.State state = settings.getState();
+        ChangeAnalyzer analyzer = new ChangeAnalyzer(settings.getClassifier(), PathMetadataCache.getInstance(project),
+                state.parallelAnalysisThreshold);
+        // Merged summaries count locations below the project, separate ones below their own root
+        String sharedBasePath = state.messagePerRoot ? null : project.getBasePath();
+        int totalChanges = 0;
+        for (ChangePartition partition : partitions) totalChanges += partition.changes.size();
+        int allChanges = totalChanges;
+        // Partitions are analyzed at the same time, so they share one budget for symbol analysis
+        long symbolDeadline = symbolDeadline(state);
+
+        Integer[] bySize = new Integer[partitions.size()];
+        for (int i = 0; i < bySize.length; i++) bySize[i] = i;
+        Arrays.sort(bySize, (a, b) -> Integer.compare(partitions.get(b).changes.size(), partitions.get(a).changes.size()));
+
+        ChangeSummary[] summaries = new ChangeSummary[partitions.size()];
+        List<Future<ChangeSummary>> futures = new ArrayList<>(partitions.size());
+        List<ProgressIndicator> workerIndicators = new ArrayList<>(partitions.size());
+        boolean completed = false;
+        indicator.setText2("Analyzing " + partitions.size() + (partitions.size() == 1 ? " root" : " roots"));
+        try {
+            for (int i = 1; i < bySize.length; i++) {
+                ChangePartition partition = partitions.get(bySize[i]);
+                ProgressIndicator workerIndicator = new EmptyProgressIndicator();
+                // Started here, so a cancellation before the worker runs is not reset by runProcess
+                workerIndicator.start();
+                workerIndicators.add(workerIndicator);
+                // Run under the worker's indicator, so checks of the thread's indicator see it cancelled too
+                futures.add(partitionExecutor.submit(() -> ProgressManager.getInstance().runProcess(
+                        () -> summarizePartition(partition, sharedBasePath, allChanges, symbolDeadline,
+                                workerIndicator, state, analyzer, metrics), workerIndicator)));
+            }
+            if (bySize.length > 0) {
+                ChangePartition largest = partitions.get(bySize[0]);
+                summaries[bySize[0]] = summarizePartition(largest, sharedBasePath, totalChanges,
+                        symbolDeadline, indicator, state, analyzer, metrics);
+            }
+
+            for (int i = 1; i < bySize.length; i++) {
+                summaries[bySize[i]] = await(futures.get(i - 1), indicator);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                workerIndicators.forEach(ProgressIndicator::cancel);
+                futures.forEach(future -> future.cancel(false));
+            }
+        }
+        return Arrays.asList(summaries);
+    }
+
+    /**
+     * Summaries of the changes staged in the git index of each root, in partition order, or null if
+     * a root cannot be read that way. Line counts are not available for these.
+     */
+    private List<ChangeSummary> summarizeStaged(ProgressIndicator indicator, SmartCommitSettings settings,
+                                                List<ChangePartition> partitions, GenerationMetrics metrics) {
+        if (partitions.isEmpty()) return null;
+        SmartCommitSettings.State state = settings.getState();
+        ChangeAnalyzer analyzer = new ChangeAnalyzer(settings.getClassifier(), PathMetadataCache.getInstance(project),
+                state.parallelAnalysisThreshold);
+        String sharedBasePath = state.messagePerRoot ? null : project.getBasePath();
+        indicator.setText2("Reading the git index");
+
+        List<ChangeSummary> summaries = new ArrayList<>(partitions.size());
+        for (ChangePartition partition : partitions) {
+            GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.ANALYZE);
+            ChangeSummary summary = new ChangeSummary(Math.max(1, state.bodyEntriesPerOperation))
+                    .withBasePath(sharedBasePath != null ? sharedBasePath : partition.rootPath);
+            String rootPrefix = partition.rootPath.endsWith("/") ? partition.rootPath : partition.rootPath + "/";
+            try {
+                GitStagedChanges repository = GitStagedChanges.open(Paths.get(partition.rootPath), Collections.emptyMap());
+                repository.read((status, path, previousPath) -> {
+                    if ((summary.size() & 1023) == 0) indicator.checkCanceled();
+                    FileChange fc = analyzer.analyzePath(ChangeOperation.fromGitStatus(status), rootPrefix + path,
+                            path.substring(path.lastIndexOf('/') + 1));
+                    if (previousPath != null) fc.previousPath = rootPrefix + previousPath;
+                    summary.accept(fc);
+                }, renameDetector(state));
+            } catch (IOException e) {
+                LOG.info("Cannot read the staged changes of " + partition.rootPath + " from the git index", e);
+                timer.stop(summary.size(), "unsupported");
+                return null;
+            }
+            timer.stop(summary.size(), partition.name + " index");
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    private ChangeSummary summarizePartition(ChangePartition partition, String sharedBasePath, int totalChanges,
+                                             long symbolDeadline, ProgressIndicator indicator,
+                                             SmartCommitSettings.State state, ChangeAnalyzer analyzer,
+                                             GenerationMetrics metrics) {
+        // Each partition may read its share of the total byte limit, and at least one full file
+        long maxBytes = Math.max(state.lineStatsMaxFileBytes,
+                (long) state.lineStatsMaxTotalBytes * partition.changes.size() / Math.max(1, totalChanges));
+        LineStats lineStats = countChangedLines(indicator, state, metrics, partition.changes, maxBytes);
+
+        Map<String, String> movedFrom = detectRenames(indicator, state, metrics, partition.changes);
+        SymbolChanges symbolChanges = findSymbolChanges(indicator, state, metrics, partition.changes, symbolDeadline);
+
+        GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.ANALYZE);
+        ChangeSummary summary = new ChangeSummary(Math.max(1, state.bodyEntriesPerOperation))
+                .withBasePath(sharedBasePath != null ? sharedBasePath : partition.rootPath)
+                .withLineStats(lineStats)
+                .withSymbolChanges(symbolChanges);
+        if (movedFrom.isEmpty()) {
+            analyzer.analyzeChanges(partition.changes, indicator, summary);
+        } else {
+            // Removals that were paired are described by the move of the added file
+            Set<String> movedAway = new HashSet<>(movedFrom.values());
+            List<Change> changes = new ArrayList<>(partition.changes.size() - movedAway.size());
+            for (Change change : partition.changes) {
+                if (change.getType() != Change.Type.DELETED
+                        || !movedAway.contains(change.getBeforeRevision().getFile().getPath())) {
+                    changes.add(change);
+                }
+            }
+            analyzer.analyzeChanges(changes, indicator, fc -> {
+                String previousPath = fc.operation == ChangeOperation.ADD ? movedFrom.get(fc.path) : null;
+                if (previousPath != null) {
+                    fc.operation = ChangeOperation.MOVE;
+                    fc.previousPath = previousPath;
+                }
+                summary.accept(fc);
+            });
+        }
+        timer.stop(partition.changes.size(), partition.name);
+        return summary;
+    }
+
+    /**
+     * Paths of added files by the path of the removed file they were moved from, found by content
+     */
+    private Map<String, String> detectRenames(ProgressIndicator indicator, SmartCommitSettings.State state,
+                                              GenerationMetrics metrics, Collection<Change> changes) {
+        RenameDetector detector = renameDetector(state);
+        if (detector == null) return Collections.emptyMap();
+
+        List<RenameDetector.Candidate> removed = new ArrayList<>();
+        List<RenameDetector.Candidate> added = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.getType() == Change.Type.DELETED && change.getBeforeRevision() != null) {
+                removed.add(candidate(change.getBeforeRevision(), indicator));
+            } else if (change.getType() == Change.Type.NEW && change.getAfterRevision() != null) {
+                added.add(candidate(change.getAfterRevision(), indicator));
+            }
+        }
+        if (removed.isEmpty() || added.isEmpty()) return Collections.emptyMap();
+
+        indicator.setText2("Detecting moved files");
+        GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.RENAMES);
+        Map<String, String> movedFrom = RenameDetector.movedFrom(removed, added, detector.pair(removed, added));
+        timer.stop(removed.size() + added.size(), movedFrom.size() + " moved");
+        return movedFrom;
+    }
+
+    private static RenameDetector renameDetector(SmartCommitSettings.State state) {
+        if (!state.renameDetectionEnabled) return null;
+        return new RenameDetector(state.renameDetectionBudgetMillis, state.renameMinSimilarity,
+                RenameDetector.DEFAULT_MAX_FILE_BYTES, state.renamePairUncheckedSameNames);
+    }
+
+    /**
+     * A revision as rename candidate, streaming local files and loading others when sketched
+     */
+    private static RenameDetector.Candidate candidate(ContentRevision revision, ProgressIndicator indicator) {
+        String path = revision.getFile().getPath();
+        return new RenameDetector.Candidate(path, () -> {
+            indicator.checkCanceled();
+            if (revision instanceof CurrentContentRevision) {
+                return Files.newInputStream(Paths.get(path));
+            }
+            try {
+                byte[] content = revision instanceof ByteBackedContentRevision
+                        ? ((ByteBackedContentRevision) revision).getContentAsBytes()
+                        : bytes(revision.getContent());
+                return content != null ? new ByteArrayInputStream(content) : null;
+            } catch (VcsException e) {
+                throw new IOException(e);
+            }
+        });
+    }
+
+    private static byte[] bytes(String content) {
+        return content != null ? content.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Result of a partition, checking for cancellation of the generation while waiting
+     */
+    private static ChangeSummary await(Future<ChangeSummary> future, ProgressIndicator indicator)
+            throws InterruptedException {
+        while (true) {
+            indicator.checkCanceled();
+            try {
+                return future.get(AWAIT_STEP_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check for cancellation again
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    private ChangeSummary merge(List<ChangeSummary> summaries, SmartCommitSettings.State state) {
+        if (summaries.size() == 1) {
+            return summaries.get(0);
+        }
+        ChangeSummary merged = new ChangeSummary(Math.max(1, state.bodyEntriesPerOperation))
+                .withBasePath(project.getBasePath());
+        for (ChangeSummary summary : summaries) {
+            merged.merge(summary);
+        }
+        return merged;
+    }
+
+    /**
+     * One message per partition with changes, each headed by the partition name
+     */
+    private static String buildPerRoot(CommitMessageBuilder builder, List<ChangePartition> partitions,
+                                       List<ChangeSummary> summaries) {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < partitions.size(); i++) {
+            ChangeSummary summary = summaries.get(i);
+            if (summary.size() == 0) continue;
+            if (message.length() > 0) message.append("\n\n");
+            message.append('[').append(partitions.get(i).name).append("]\n")
+                    .append(builder.buildMessage(summary));
+        }
+        return message.toString();
+    }
+
+    /**
+     * Line counts of the given changes, read outside the read action within the configured budget
+     */
+    private LineStats countChangedLines(ProgressIndicator indicator, SmartCommitSettings.State state,
+                                        GenerationMetrics metrics, Collection<Change> changes, long maxTotalBytes) {
+        if (!state.lineStatsEnabled) {
+            return LineStats.EMPTY;
+        }
+
+        indicator.setText2("Counting changed lines");
+        GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.LINE_STATS);
+        LineStats lineStats = new LineStatsReader(state.lineStatsBudgetMillis, state.lineStatsMaxFileBytes,
+                maxTotalBytes, LineStatsCache.getInstance(project)).read(changes, indicator);
+        timer.stop(changes.size(), lineStats.skipped() > 0 ? "partial" : "complete");
+        metrics.recordLineStats(lineStats);
+        return lineStats;
+    }
+
+    private static long symbolDeadline(SmartCommitSettings.State state) {
+        return System.nanoTime() + Math.max(0, state.symbolChangesBudgetMillis) * 1_000_000L;
+    }
+
+    /**
+     * Changed declarations of the modified files among the changes, found until the deadline
+     */
+    private SymbolChanges findSymbolChanges(ProgressIndicator indicator, SmartCommitSettings.State state,
+                                            GenerationMetrics metrics, Collection<Change> changes, long deadline) {
+        if (!state.symbolChangesEnabled) {
+            return SymbolChanges.EMPTY;
+        }
+
+        indicator.setText2("Finding changed declarations");
+        GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.SYMBOLS);
+        SymbolChanges symbolChanges = new SymbolChangeReader(project, deadline,
+                SymbolChangeReader.DEFAULT_MAX_FILE_CHARS, SymbolChangeCache.getInstance(project))
+                .read(changes, indicator);
+        timer.stop(changes.size(), symbolChanges.skipped() > 0 ? "partial" : "complete");
+        return symbolChanges;
+    }
+
+    private final class GenerationTask extends Task.Backgroundable {
+        private final List<Change> includedChanges;
+        private final Consumer<String> onGenerated;
+
+        private volatile ProgressIndicator indicator;
+        private volatile boolean cancelled;
+        private String message;
+
+        GenerationTask(List<Change> includedChanges, Consumer<String> onGenerated) {
+            super(project, "Generating commit message", true);
+            this.includedChanges = includedChanges;
+            this.onGenerated = onGenerated;
+        }
+
+        void cancel() {
+            cancelled = true;
+            ProgressIndicator current = indicator;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void run(@NotNull ProgressIndicator indicator) {
+            this.indicator = indicator;
+            if (cancelled) {
+                indicator.cancel();
+            }
+            indicator.checkCanceled();
+            indicator.setIndeterminate(false);
+
+            message = generateCommitMessage(indicator, includedChanges);
+        }
+
+        @Override
+        public void onSuccess() {
+            if (activeTask != this || cancelled || message == null) {
+                return;
+            }
+            onGenerated.accept(message);
+        }
+
+        @Override
+        public void onFinished() {
+            if (activeTask == this) {
+                activeTask = null;
+            }
+        }
+    }
+}
@@ -1,69 +1,115 @@
 package org.sididev;
 
-import com.intellij.openapi.actionSystem.AnActionEvent;
-import com.intellij.openapi.vcs.VcsDataKeys;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
 
 /**
- * Handles injection of commit messages into the commit UI
+ * Handles injection of commit messages into the commit UI.
+ * Setter handles are resolved once per workflow UI class, absent ones included, and the text
+ * area found in a window is remembered on its root pane, so it goes away with the window's
+ * components. Used on the EDT only.
  */
 class CommitMessageInjector {
 
-    public static boolean injectMessage(AnActionEvent e, String message) {
+    /**
+     * How a message was injected
+     */
+    enum Strategy {
+        WORKFLOW_SET_COMMIT_MESSAGE,
+        WORKFLOW_SET_TEXT,
+        COMMIT_MESSAGE_UI,
+        TEXT_AREA,
+        NONE
+    }
+
+    private static final Logger LOG = Logger.getInstance(CommitMessageInjector.class);
+
+    // Components visited at most when searching for the commit text area
+    private static final int MAX_VISITED_COMPONENTS = 4_096;
+
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, String.class);
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Handles> HANDLES = new ClassValue<Handles>() {
+        @Override
+        protected Handles computeValue(Class<?> type) {
+            return new Handles(type);
+        }
+    };
+
+    // Client property of a root pane holding the commit text area found below it
+    private static final Object TEXT_AREA_KEY = new Object();
+
+    public static boolean injectMessage(Object commitWorkflowUi, java.awt.Component component, String message) {
+        return inject(commitWorkflowUi, component, message) != Strategy.NONE;
+    }
+
+    /**
+     * Inject the message with the first strategy that works
+     */
+    static Strategy inject(Object commitWorkflowUi, java.awt.Component component, String message) {
+        Strategy strategy;
         try {
             // Method 1: Try VCS workflow UI
-            if (tryVcsWorkflowInjection(e, message)) {
-                return true;
-            }
+            strategy = tryVcsWorkflowInjection(commitWorkflowUi, message);
 
             // Method 2: Try direct UI component search
-            return tryDirectUIInjection(e, message);
-
+            if (strategy == Strategy.NONE && tryDirectUIInjection(component, message)) {
+                strategy = Strategy.TEXT_AREA;
+            }
         } catch (Exception ignored) {
-            return false;
+            strategy = Strategy.NONE;
         }
-    }
 
-    private static boolean tryVcsWorkflowInjection(AnActionEvent e, String message) {
-        Object commitWorkflowUi = e.getData(VcsDataKeys.COMMIT_WORKFLOW_UI);
-        if (commitWorkflowUi == null) return false;
+        LOG.debug("Commit message injection: " + strategy);
+        return strategy;
+    }
 
-        try {
-            // Try common method names via reflection
-            String[] methodNames = {"setCommitMessage", "setText"};
+    private static Strategy tryVcsWorkflowInjection(Object commitWorkflowUi, String message) {
+        if (commitWorkflowUi == null) return Strategy.NONE;
 
-            for (String methodName : methodNames) {
-                try {
-                    java.lang.reflect.Method method = commitWorkflowUi.getClass().getMethod(methodName, String.class);
-                    method.invoke(commitWorkflowUi, message);
-                    return true;
-                } catch (Exception ignored) {}
-            }
+        Handles handles = HANDLES.get(commitWorkflowUi.getClass());
+        if (invokeSetter(handles.setCommitMessage, commitWorkflowUi, message)) {
+            return Strategy.WORKFLOW_SET_COMMIT_MESSAGE;
+        }
+        if (invokeSetter(handles.setText, commitWorkflowUi, message)) {
+            return Strategy.WORKFLOW_SET_TEXT;
+        }
 
-            // Try getting commit message UI component
+        // Try getting commit message UI component
+        if (handles.getCommitMessageUi != null) {
             try {
-                java.lang.reflect.Method method = commitWorkflowUi.getClass().getMethod("getCommitMessageUi");
-                Object commitMessageUi = method.invoke(commitWorkflowUi);
-                if (commitMessageUi != null) {
-                    java.lang.reflect.Method setTextMethod = commitMessageUi.getClass().getMethod("setText", String.class);
-                    setTextMethod.invoke(commitMessageUi, message);
-                    return true;
+                Object commitMessageUi = (Object) handles.getCommitMessageUi.invokeExact(commitWorkflowUi);
+                if (commitMessageUi != null
+                        && invokeSetter(HANDLES.get(commitMessageUi.getClass()).setText, commitMessageUi, message)) {
+                    return Strategy.COMMIT_MESSAGE_UI;
                 }
-            } catch (Exception ignored) {}
-
-        } catch (Exception ignored) {}
+            } catch (Throwable ignored) {}
+        }
 
-        return false;
+        return Strategy.NONE;
     }
 
-    private static boolean tryDirectUIInjection(AnActionEvent e, String message) {
+    private static boolean invokeSetter(MethodHandle setter, Object target, String message) {
+        if (setter == null) return false;
         try {
-            java.awt.Component component = null;
-            if (e.getInputEvent() instanceof java.awt.event.MouseEvent) {
-                component = ((java.awt.event.MouseEvent) e.getInputEvent()).getComponent();
-            }
+            setter.invokeExact(target, message);
+            return true;
+        } catch (Throwable ignored) {
+            return false;
+        }
+    }
 
+    private static boolean tryDirectUIInjection(java.awt.Component component, String message) {
+        try {
             if (component != null) {
-                javax.swing.JTextArea textArea = findCommitTextArea(component);
+                javax.swing.JTextArea textArea = commitTextArea(component);
                 if (textArea != null) {
                     textArea.setText(message);
                     return true;
@@ -75,25 +121,91 @@ class CommitMessageInjector {
         return false;
     }
 
-    private static javax.swing.JTextArea findCommitTextArea(java.awt.Component component) {
-        if (component instanceof javax.swing.JTextArea) {
-            javax.swing.JTextArea textArea = (javax.swing.JTextArea) component;
-            // Check if this looks like a commit message field
-            if (textArea.getRows() > 1 || textArea.getColumns() > 30) {
-                return textArea;
-            }
+    /**
+     * Commit text area of the component's window, remembered while it stays in that window
+     */
+    private static javax.swing.JTextArea commitTextArea(java.awt.Component component) {
+        javax.swing.JRootPane rootPane = javax.swing.SwingUtilities.getRootPane(component);
+        if (rootPane == null) {
+            return findCommitTextArea(component);
         }
 
-        if (component instanceof java.awt.Container) {
-            java.awt.Container container = (java.awt.Container) component;
-            for (java.awt.Component child : container.getComponents()) {
-                javax.swing.JTextArea result = findCommitTextArea(child);
-                if (result != null) {
-                    return result;
+        Object cached = rootPane.getClientProperty(TEXT_AREA_KEY);
+        if (cached instanceof javax.swing.JTextArea && ((javax.swing.JTextArea) cached).isDisplayable()
+                && javax.swing.SwingUtilities.getRootPane((javax.swing.JTextArea) cached) == rootPane) {
+            return (javax.swing.JTextArea) cached;
+        }
+
+        javax.swing.JTextArea found = findCommitTextArea(component);
+        rootPane.putClientProperty(TEXT_AREA_KEY, found);
+        return found;
+    }
+
+    /**
+     * Depth-first search for a multi-line text area, visiting a bounded number of components
+     */
+    private static javax.swing.JTextArea findCommitTextArea(java.awt.Component root) {
+        ArrayDeque<java.awt.Component> stack = new ArrayDeque<>();
+        stack.push(root);
+        int visited = 0;
+
+        while (!stack.isEmpty() && visited++ < MAX_VISITED_COMPONENTS) {
+            java.awt.Component component = stack.pop();
+            if (component instanceof javax.swing.JTextArea) {
+                javax.swing.JTextArea textArea = (javax.swing.JTextArea) component;
+                // Check if this looks like a commit message field
+                if (textArea.getRows() > 1 || textArea.getColumns() > 30) {
+                    return textArea;
+                }
+            }
+
+            if (component instanceof java.awt.Container) {
+                // Pushed in reverse so children are visited in their declared order
+                java.awt.Component[] children = ((java.awt.Container) component).getComponents();
+                for (int i = children.length - 1; i >= 0; i--) {
+                    stack.push(children[i]);
                 }
             }
         }
 
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Handles of one class, null where the method does not exist or is not accessible
+     */
+    private static final class Handles {
+        final MethodHandle setCommitMessage;
+        final MethodHandle setText;
+        final MethodHandle getCommitMessageUi;
+
+        Handles(Class<?> type) {
+            setCommitMessage = find(type, "setCommitMessage", SETTER, String.class);
+            setText = find(type, "setText", SETTER, String.class);
+            getCommitMessageUi = find(type, "getCommitMessageUi", GETTER);
+        }
+
+        /**
+         * Public method looked up on the first public class or interface declaring it, since
+         * implementation classes of the commit UI are usually not public themselves
+         */
+        private static MethodHandle find(Class<?> type, String name, MethodType callType, Class<?>... parameters) {
+            ArrayDeque<Class<?>> queue = new ArrayDeque<>();
+            queue.add(type);
+            while (!queue.isEmpty()) {
+                Class<?> candidate = queue.poll();
+                if (Modifier.isPublic(candidate.getModifiers())) {
+                    try {
+                        Method method = candidate.getMethod(name, parameters);
+                        return MethodHandles.publicLookup().unreflect(method).asType(callType);
+                    } catch (ReflectiveOperationException | RuntimeException ignored) {}
+                }
+                if (candidate.getSuperclass() != null) queue.add(candidate.getSuperclass());
+                for (Class<?> superInterface : candidate.getInterfaces()) {
+                    queue.add(superInterface);
+                }
+            }
+            return null;
+        }
+    }
+}
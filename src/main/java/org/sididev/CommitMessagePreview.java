@@ -0,0 +1,185 @@
+package org.sididev;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.InclusionListener;
+import com.intellij.util.Alarm;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.vcs.commit.CommitMessageUi;
+import com.intellij.vcs.commit.CommitWorkflowUi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Live preview of the message for the changes included in a commit dialog. Inclusion changes are
+ * debounced, and a regeneration cancels the one still running, so toggling many files quickly costs
+ * one generation after the last toggle. The included files are kept in a {@link ChangeSummary.Live}
+ * between regenerations: only toggled files are analyzed again and the summary is updated by delta.
+ * The preview is built from path analysis only. Line counts, moves found by content and changed
+ * declarations are left to an explicit generation, as they read file contents, so the type and scope
+ * of a preview may differ from those of Generate for the same files, e.g. feat instead of refactor.
+ * The message field is only written while it is empty or still holds the previous preview, so a typed
+ * message is never replaced.
+ */
+final class CommitMessagePreview implements InclusionListener, Disposable {
+
+    static final int DEFAULT_DELAY_MILLIS = 300;
+
+    // Previews by commit UI, removed when the UI is disposed; guarded by itself
+    private static final Map<CommitWorkflowUi, CommitMessagePreview> PREVIEWS = new HashMap<>();
+    // One regeneration at a time over all previews; a cancelled one finishes before the next starts
+    private static final Executor EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "Smart Commit Preview", 1);
+    private static final int CANCEL_CHECK_STEP = 256;
+
+    private final Project project;
+    private final CommitWorkflowUi ui;
+    private final Alarm alarm;
+
+    // Confined to the EDT: the message last written to the field
+    private String shown;
+    private volatile boolean disposed;
+
+    // Guarded by this: the included files with their analysis, and their summary
+    private PathClassifier classifier;
+    private ChangeAnalyzer analyzer;
+    private final Map<String, Included> included = new LinkedHashMap<>();
+    private ChangeSummary.Live summary;
+
+    private CommitMessagePreview(Project project, CommitWorkflowUi ui) {
+        this.project = project;
+        this.ui = ui;
+        this.alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+    }
+
+    /**
+     * Start previewing in the commit UI unless it already is or was disposed; callable from any thread,
+     * concurrent calls for one UI attach a single preview
+     */
+    static void attach(Project project, CommitWorkflowUi ui) {
+        CommitMessagePreview preview;
+        synchronized (PREVIEWS) {
+            if (PREVIEWS.containsKey(ui) || Disposer.isDisposed(ui)) return;
+            preview = new CommitMessagePreview(project, ui);
+            PREVIEWS.put(ui, preview);
+            // Owned by the UI before another attach can see it, so it is removed with the UI
+            Disposer.register(ui, preview);
+        }
+        ApplicationManager.getApplication().invokeLater(() -> {
+            if (preview.disposed) return;
+            ui.addInclusionListener(preview, preview);
+            preview.inclusionChanged();
+        }, ModalityState.any());
+    }
+
+    @Override
+    public void inclusionChanged() {
+        alarm.cancelAllRequests();
+        alarm.addRequest(this::regenerate,
+                Math.max(0, SmartCommitSettings.getInstance(project).getState().livePreviewDelayMillis));
+    }
+
+    private void regenerate() {
+        if (!SmartCommitSettings.getInstance(project).getState().livePreviewEnabled) return;
+        List<Change> changes = new ArrayList<>(ui.getIncludedChanges());
+        ReadAction.nonBlocking(() -> generate(changes))
+                .coalesceBy(this)
+                .expireWith(this)
+                .finishOnUiThread(ModalityState.any(), this::show)
+                .submit(EXECUTOR);
+    }
+
+    /**
+     * Message for the included changes, or "" if there are none
+     */
+    private synchronized String generate(List<Change> changes) {
+        GenerationMetrics.Timer timer = GenerationMetrics.getInstance(project).start(GenerationMetrics.Stage.PREVIEW);
+        String outcome = "cancelled";
+        try {
+            SmartCommitSettings settings = SmartCommitSettings.getInstance(project);
+            SmartCommitSettings.State state = settings.getState();
+            PathClassifier current = settings.getClassifier();
+            if (current != classifier) {
+                classifier = current;
+                analyzer = new ChangeAnalyzer(current, PathMetadataCache.getInstance(project));
+                included.clear();
+                summary = new ChangeSummary.Live(project.getBasePath());
+            }
+
+            Map<String, Change> byPath = new HashMap<>(changes.size() * 2);
+            for (Change change : changes) {
+                String path = analyzer.extractFilePath(change);
+                if (path != null) byPath.put(path, change);
+            }
+
+            // Each file is removed or added together with its summary counts, so a cancelled run
+            // leaves a consistent model for the next one to continue from
+            int visited = 0;
+            int removed = 0;
+            Iterator<Map.Entry<String, Included>> iterator = included.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (++visited % CANCEL_CHECK_STEP == 0) ProgressManager.checkCanceled();
+                Map.Entry<String, Included> entry = iterator.next();
+                if (!entry.getValue().change.equals(byPath.get(entry.getKey()))) {
+                    summary.remove(entry.getKey());
+                    iterator.remove();
+                    removed++;
+                }
+            }
+            int added = 0;
+            for (Map.Entry<String, Change> entry : byPath.entrySet()) {
+                if (++visited % CANCEL_CHECK_STEP == 0) ProgressManager.checkCanceled();
+                if (included.containsKey(entry.getKey())) continue;
+                FileChange fc = analyzer.analyzeChange(entry.getValue());
+                included.put(entry.getKey(), new Included(entry.getValue(), fc));
+                summary.put(fc);
+                added++;
+            }
+            outcome = "+" + added + " -" + removed;
+
+            if (included.isEmpty()) return "";
+            return CommitMessageGenerator.getInstance(project).createBuilder(settings).buildMessage(
+                    summary.copy(Math.max(1, state.bodyEntriesPerOperation)).summarize(LineStats.EMPTY));
+        } finally {
+            timer.stop(included.size(), outcome);
+        }
+    }
+
+    private void show(String message) {
+        CommitMessageUi messageUi = ui.getCommitMessageUi();
+        String text = messageUi.getText();
+        if (!text.isEmpty() && !text.equals(shown)) return;
+        if (!message.equals(text)) messageUi.setText(message);
+        shown = message;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        synchronized (PREVIEWS) {
+            PREVIEWS.remove(ui);
+        }
+    }
+
+    private static final class Included {
+        final Change change;
+        final FileChange fileChange;
+
+        Included(Change change, FileChange fileChange) {
+            this.change = change;
+            this.fileChange = fileChange;
+        }
+    }
+}
@@ -5,9 +5,12 @@ package org.sididev;
  */
 class FileChange {
     String fileName;
-    String extension;
     String directory;
-    String operation;
     String path;
-    String context;
+    ChangeOperation operation;
+    // Path before a move, or null
+    String previousPath;
+    FileContext context;
+    // Interned id, see FileExtensions
+    int extension = FileExtensions.NONE;
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+package org.sididev;
+
+/**
+ * Area of the project a changed file belongs to
+ */
+enum FileContext {
+    TEST("test"),
+    CONFIG("config"),
+    API("api"),
+    AUTH("auth"),
+    DATABASE("database"),
+    UI("ui"),
+    STYLE("style"),
+    DOCS("docs"),
+    BUILD("build"),
+    FILE("file");
+
+    static final FileContext[] VALUES = values();
+
+    final String id;
+
+    FileContext(String id) {
+        this.id = id;
+    }
+
+    int bit() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * Context with the given id, or null if there is none
+     */
+    static FileContext fromId(String id) {
+        for (FileContext context : VALUES) {
+            if (context.id.equals(id)) return context;
+        }
+        return null;
+    }
+}
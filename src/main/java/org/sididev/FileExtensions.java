@@ -0,0 +1,170 @@
+package org.sididev;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Interning table mapping lowercase file extensions to small integer ids.
+ * The extensions the message heuristics care about have fixed ids below 64,
+ * so checks against them are single bit tests on {@link ChangeStats}.
+ * Lookups are lock-free and do not allocate once an extension is known. The table lives as long as
+ * the process, so it is capped: past {@link #MAX_EXTENSIONS}, new extensions all share {@link #OTHER}.
+ */
+final class FileExtensions {
+
+    static final int NONE = -1;
+
+    static final int JAVA = 0;
+    static final int PHP = 1;
+    static final int JS = 2;
+    static final int PY = 3;
+    static final int KT = 4;
+    static final int TS = 5;
+    static final int CSS = 6;
+    static final int SCSS = 7;
+    static final int SASS = 8;
+    static final int LESS = 9;
+    static final int JSON = 10;
+    static final int XML = 11;
+    static final int YML = 12;
+    static final int YAML = 13;
+    static final int PROPERTIES = 14;
+    static final int GRADLE = 15;
+    static final int MAVEN = 16;
+    static final int MD = 17;
+    static final int TXT = 18;
+    static final int RST = 19;
+    static final int TEST = 20;
+    static final int VUE = 21;
+    static final int JSX = 22;
+    static final int HTML = 23;
+    static final int SQL = 24;
+    /** Every extension met after the table is full; its name is empty */
+    static final int OTHER = 25;
+
+    static final int MAX_EXTENSIONS = 4_096;
+
+    private static final String[] WELL_KNOWN = {
+            "java", "php", "js", "py", "kt", "ts", "css", "scss", "sass", "less",
+            "json", "xml", "yml", "yaml", "properties", "gradle", "maven", "md", "txt", "rst",
+            "test", "vue", "jsx", "html", "sql", ""
+    };
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // Names by id and an open-addressing table of ids; both arrays double when full. Names and slots
+    // are written in place under the lock, and a slot is released only after its name was written.
+    private static volatile Table table = new Table(new String[64], new int[128]);
+    private static int size;
+
+    static {
+        for (String name : WELL_KNOWN) {
+            intern(name, 0, name.length());
+        }
+    }
+
+    private FileExtensions() {
+    }
+
+    /**
+     * Id of the extension of a file name (the part after the last dot, case-insensitive),
+     * or {@link #NONE} when the name has no dot
+     */
+    static int idOf(String fileName) {
+        if (fileName == null) return NONE;
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) return NONE;
+        return intern(fileName, dot + 1, fileName.length());
+    }
+
+    /**
+     * Lowercase extension for an id, or null for {@link #NONE}
+     */
+    static String name(int id) {
+        return id == NONE ? null : table.names[id];
+    }
+
+    static long bit(int id) {
+        return 1L << id;
+    }
+
+    private static int intern(String source, int start, int end) {
+        int hash = hash(source, start, end);
+        int id = table.find(source, start, end, hash);
+        return id != NONE ? id : insert(source, start, end, hash);
+    }
+
+    private static synchronized int insert(String source, int start, int end, int hash) {
+        Table current = table;
+        int id = current.find(source, start, end, hash);
+        if (id != NONE) return id;
+        if (size == MAX_EXTENSIONS) return OTHER;
+
+        id = size;
+        if (id == current.names.length || (id + 1) * 2 > current.slots.length) {
+            String[] names = Arrays.copyOf(current.names, current.names.length * 2);
+            int[] slots = new int[current.slots.length * 2];
+            for (int i = 0; i < id; i++) {
+                Table.place(slots, hash(names[i], 0, names[i].length()), i);
+            }
+            // Readers of the previous table miss only ids added from now on, and come here for them
+            current = new Table(names, slots);
+            table = current;
+        }
+        current.names[id] = lowerCase(source, start, end);
+        Table.place(current.slots, hash, id);
+        size = id + 1;
+        return id;
+    }
+
+    // Char-by-char so that the stored name keeps the length of the looked-up region
+    private static String lowerCase(String source, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = Character.toLowerCase(source.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static int hash(String source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(source.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Table {
+        final String[] names;
+        // id + 1 per slot, 0 marks an empty slot; kept at most half full
+        final int[] slots;
+
+        Table(String[] names, int[] slots) {
+            this.names = names;
+            this.slots = slots;
+        }
+
+        int find(String source, int start, int end, int hash) {
+            int mask = slots.length - 1;
+            int length = end - start;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int slot = (int) SLOTS.getAcquire(slots, i);
+                if (slot == 0) return NONE;
+                String name = names[slot - 1];
+                if (name.length() == length && name.regionMatches(true, 0, source, start, length)) {
+                    return slot - 1;
+                }
+            }
+        }
+
+        static void place(int[] slots, int hash, int id) {
+            int mask = slots.length - 1;
+            int i = hash & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            SLOTS.setRelease(slots, i, id + 1);
+        }
+    }
+}
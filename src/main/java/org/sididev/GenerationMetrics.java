@@ -0,0 +1,249 @@
+package org.sididev;
+
+import com.intellij.openapi.project.Project;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Project service timing the stages of commit message generation. Every stage emits a
+ * {@link StageEvent} for flight recordings; when enabled in the settings, durations and changeset
+ * sizes of the last {@link #WINDOW} generations are also kept in rolling histograms, along with
+ * cache hit rates, injection strategies and fallback counts, for the diagnostic view.
+ */
+public final class GenerationMetrics {
+
+    static final int WINDOW = 256;
+
+    enum Stage {
+        GENERATION("Whole generation"),
+        LINE_STATS("Line counting"),
+        RENAMES("Rename detection"),
+        SYMBOLS("Symbol analysis"),
+        COLLECT("Change collection"),
+        ANALYZE("File analysis"),
+        SUMMARIZE("Statistics"),
+        BUILD("Message building"),
+        INJECT("Injection"),
+        PREVIEW("Live preview"),
+        LEARN("History learning");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    enum Fallback {
+        GENERATION_FAILED("Generation failed, default message used"),
+        INJECTION_FAILED("Injection failed, message dialog shown");
+
+        final String label;
+
+        Fallback(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Project project;
+
+    private final RollingHistogram[] durations = new RollingHistogram[Stage.values().length];
+    // Files handled by the same runs, to report the time spent per file
+    private final RollingHistogram[] stageFiles = new RollingHistogram[Stage.values().length];
+    private final RollingHistogram changesetSizes = new RollingHistogram(WINDOW);
+    private final LongAdder[] strategies = new LongAdder[CommitMessageInjector.Strategy.values().length];
+    private final LongAdder[] fallbacks = new LongAdder[Fallback.values().length];
+    private final LongAdder lineStatsLookups = new LongAdder();
+    private final LongAdder lineStatsHits = new LongAdder();
+
+    public GenerationMetrics(Project project) {
+        this.project = project;
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = new RollingHistogram(WINDOW);
+            stageFiles[i] = new RollingHistogram(WINDOW);
+        }
+        Arrays.setAll(strategies, i -> new LongAdder());
+        Arrays.setAll(fallbacks, i -> new LongAdder());
+    }
+
+    public static GenerationMetrics getInstance(Project project) {
+        return project.getService(GenerationMetrics.class);
+    }
+
+    /**
+     * Start timing a stage; the returned timer must be stopped once, on any thread
+     */
+    Timer start(Stage stage) {
+        return new Timer(stage, isEnabled());
+    }
+
+    void recordChangesetSize(int files) {
+        if (isEnabled()) changesetSizes.record(files);
+    }
+
+    void recordLineStats(LineStats lineStats) {
+        if (!isEnabled()) return;
+        lineStatsLookups.add(lineStats.files() + lineStats.skipped());
+        lineStatsHits.add(lineStats.cached());
+    }
+
+    void recordInjection(CommitMessageInjector.Strategy strategy) {
+        if (isEnabled()) strategies[strategy.ordinal()].increment();
+    }
+
+    /**
+     * Count a fallback. Counted even when histograms are disabled, since fallbacks are rare.
+     */
+    void recordFallback(Fallback fallback) {
+        fallbacks[fallback.ordinal()].increment();
+    }
+
+    void reset() {
+        for (int i = 0; i < durations.length; i++) {
+            durations[i].clear();
+            stageFiles[i].clear();
+        }
+        changesetSizes.clear();
+        for (LongAdder counter : strategies) counter.reset();
+        for (LongAdder counter : fallbacks) counter.reset();
+        lineStatsLookups.reset();
+        lineStatsHits.reset();
+    }
+
+    private boolean isEnabled() {
+        return SmartCommitSettings.getInstance(project).getState().metricsEnabled;
+    }
+
+    /**
+     * Plain-text report of the collected metrics
+     */
+    String report() {
+        StringBuilder out = new StringBuilder(2_048);
+        if (!isEnabled()) {
+            out.append("Histograms are disabled in the settings; only fallbacks are counted.\n\n");
+        }
+
+        out.append(String.format(Locale.ROOT, "Stage durations (ms) of the last %d runs%n", WINDOW));
+        out.append(String.format(Locale.ROOT, "%-20s %6s %9s %9s %9s %9s %11s%n",
+                "Stage", "Runs", "p50", "p95", "p99", "Max", "us/file"));
+        for (Stage stage : Stage.values()) {
+            long[] samples = durations[stage.ordinal()].snapshot();
+            long files = sum(stageFiles[stage.ordinal()].snapshot());
+            out.append(String.format(Locale.ROOT, "%-20s %6d %9.1f %9.1f %9.1f %9.1f %11s%n",
+                    stage.label, samples.length,
+                    percentile(samples, 50) / 1e6, percentile(samples, 95) / 1e6,
+                    percentile(samples, 99) / 1e6, percentile(samples, 100) / 1e6,
+                    files > 0 ? String.format(Locale.ROOT, "%.2f", sum(samples) / 1e3 / files) : "-"));
+        }
+
+        long[] sizes = changesetSizes.snapshot();
+        out.append(String.format(Locale.ROOT, "%nChangeset size (files): p50 %d, p95 %d, p99 %d, max %d%n",
+                percentile(sizes, 50), percentile(sizes, 95), percentile(sizes, 99), percentile(sizes, 100)));
+
+        PathMetadataCache metadataCache = PathMetadataCache.getInstance(project);
+        out.append("\nCache hit rates\n");
+        out.append("  Path metadata:     ").append(ratio(metadataCache.getHits(),
+                metadataCache.getHits() + metadataCache.getMisses())).append('\n');
+        out.append("  Line counts:       ").append(ratio(lineStatsHits.sum(), lineStatsLookups.sum())).append('\n');
+
+        out.append("\nInjection strategies\n");
+        for (CommitMessageInjector.Strategy strategy : CommitMessageInjector.Strategy.values()) {
+            out.append(String.format(Locale.ROOT, "  %-28s %d%n",
+                    strategy.name().toLowerCase(Locale.ROOT), strategies[strategy.ordinal()].sum()));
+        }
+
+        out.append("\nFallbacks\n");
+        for (Fallback fallback : Fallback.values()) {
+            out.append(String.format(Locale.ROOT, "  %-40s %d%n", fallback.label, fallbacks[fallback.ordinal()].sum()));
+        }
+        return out.toString();
+    }
+
+    private static String ratio(long part, long total) {
+        return total == 0 ? "n/a" : String.format(Locale.ROOT, "%.1f%% (%d/%d)", 100.0 * part / total, part, total);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) sum += value;
+        return sum;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted samples, 0 when there are none
+     */
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    /**
+     * Times one run of a stage and reports it to the flight recorder and, if enabled, the histograms
+     */
+    final class Timer {
+        private final Stage stage;
+        private final boolean histogram;
+        private final StageEvent event = new StageEvent();
+        private final long start;
+
+        private Timer(Stage stage, boolean histogram) {
+            this.stage = stage;
+            this.histogram = histogram;
+            event.begin();
+            start = histogram ? System.nanoTime() : 0;
+        }
+
+        void stop(int files, String outcome) {
+            if (histogram) {
+                durations[stage.ordinal()].record(System.nanoTime() - start);
+                stageFiles[stage.ordinal()].record(Math.max(0, files));
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage.label;
+                event.files = files;
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The last samples recorded, overwritten in order once full
+     */
+    static final class RollingHistogram {
+        private final long[] samples;
+        private int next;
+        private int size;
+
+        RollingHistogram(int capacity) {
+            samples = new long[capacity];
+        }
+
+        synchronized void record(long value) {
+            samples[next] = value;
+            next = (next + 1) % samples.length;
+            if (size < samples.length) size++;
+        }
+
+        /**
+         * Recorded samples in ascending order
+         */
+        long[] snapshot() {
+            long[] copy;
+            synchronized (this) {
+                copy = Arrays.copyOf(samples, size);
+            }
+            Arrays.sort(copy);
+            return copy;
+        }
+
+        synchronized void clear() {
+            next = 0;
+            size = 0;
+        }
+    }
+}
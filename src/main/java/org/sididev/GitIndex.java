@@ -0,0 +1,344 @@
+package org.sididev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The entries of a git index file, versions 2 to 4, read from a mapped buffer. Entries are not
+ * materialized: parsing records where each one starts and where its path is, and paths are only
+ * decoded when asked for. Version 4 paths are prefix compressed, so those are expanded once into a
+ * byte arena. The cache tree extension is kept, as it lets a comparison skip directories whose
+ * staged tree is already known. Split and sparse indexes are not supported.
+ */
+final class GitIndex {
+
+    private static final int SIGNATURE = 0x44495243; // "DIRC"
+    private static final int TREE_EXTENSION = 0x54524545; // "TREE"
+    private static final int LINK_EXTENSION = 0x6c696e6b; // "link"
+    private static final int SPARSE_EXTENSION = 0x73646972; // "sdir"
+
+    // Offsets within an entry: stat data, then mode, object id and flags
+    private static final int MODE = 24;
+    private static final int ID = 40;
+    private static final int FLAGS = 60;
+    private static final int PATH = 62;
+
+    private static final int EXTENDED_FLAG = 0x4000;
+    private static final int STAGE_MASK = 0x3000;
+    private static final int NAME_MASK = 0x0fff;
+    private static final int INTENT_TO_ADD_FLAG = 0x2000;
+
+    private final ByteBuffer data;
+    private final int size;
+    // Per entry: offset in the data, and offset and length of its path in the path buffer
+    private final int[] entryOffsets;
+    private final int[] pathOffsets;
+    private final int[] pathLengths;
+    // The data itself, or the arena of expanded version 4 paths
+    private final ByteBuffer paths;
+    private final CacheTree cacheTree;
+
+    private GitIndex(ByteBuffer data, int size, int[] entryOffsets, int[] pathOffsets, int[] pathLengths,
+                     ByteBuffer paths, CacheTree cacheTree) {
+        this.data = data;
+        this.size = size;
+        this.entryOffsets = entryOffsets;
+        this.pathOffsets = pathOffsets;
+        this.pathLengths = pathLengths;
+        this.paths = paths;
+        this.cacheTree = cacheTree;
+    }
+
+    /**
+     * @throws IOException if the file cannot be read, fails its checksum, is damaged or uses an unsupported
+     *                     format; never a runtime exception, so callers can always fall back to git
+     */
+    static GitIndex read(Path file) throws IOException {
+        ByteBuffer data = GitObjectStore.map(file);
+        try {
+            verifyChecksum(data);
+            return parse(data);
+        } catch (RuntimeException e) {
+            throw new IOException("Damaged index " + file, e);
+        }
+    }
+
+    /**
+     * Check the trailing SHA-1 of the content; git writes zeros instead when index.skipHash is set
+     */
+    private static void verifyChecksum(ByteBuffer data) throws IOException {
+        int end = data.capacity() - GitObjectStore.ID_LENGTH;
+        if (end < 12) throw new IOException("Not a git index");
+        byte[] checksum = new byte[GitObjectStore.ID_LENGTH];
+        data.get(end, checksum);
+        boolean skipped = true;
+        for (byte b : checksum) skipped &= b == 0;
+        if (skipped) return;
+
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        sha1.update(data.duplicate().position(0).limit(end));
+        if (!MessageDigest.isEqual(sha1.digest(), checksum)) throw new IOException("Index checksum mismatch");
+    }
+
+    private static GitIndex parse(ByteBuffer data) throws IOException {
+        int end = data.capacity() - GitObjectStore.ID_LENGTH;
+        if (end < 12 || data.getInt(0) != SIGNATURE) throw new IOException("Not a git index");
+        int version = data.getInt(4);
+        if (version < 2 || version > 4) throw new IOException("Unsupported index version " + version);
+        int size = data.getInt(8);
+        if (size < 0 || size > end / PATH) throw new IOException("Damaged index");
+
+        int[] entryOffsets = new int[size];
+        int[] pathOffsets = new int[size];
+        int[] pathLengths = new int[size];
+        byte[] arena = version == 4 ? new byte[Math.max(64, end)] : null;
+        int arenaLength = 0;
+        int previousOffset = 0;
+        int previousLength = 0;
+
+        int p = 12;
+        for (int i = 0; i < size; i++) {
+            entryOffsets[i] = p;
+            int flags = data.getShort(p + FLAGS) & 0xffff;
+            int path = p + PATH;
+            if ((flags & EXTENDED_FLAG) != 0) {
+                if (version < 3) throw new IOException("Extended flags in a version 2 index");
+                path += 2;
+            }
+
+            if (version < 4) {
+                int length = flags & NAME_MASK;
+                if (length == NAME_MASK) {
+                    length = 0;
+                    while (data.get(path + length) != 0) length++;
+                }
+                pathOffsets[i] = path;
+                pathLengths[i] = length;
+                // Entries are padded with 1 to 8 NULs to a multiple of 8 bytes
+                p += (path - p + length + 8) & ~7;
+            } else {
+                // A varint of bytes to drop from the end of the previous path, then the NUL-terminated rest
+                int c = data.get(path++) & 0xff;
+                int strip = c & 0x7f;
+                while ((c & 0x80) != 0) {
+                    c = data.get(path++) & 0xff;
+                    strip = ((strip + 1) << 7) | (c & 0x7f);
+                }
+                if (strip > previousLength) throw new IOException("Damaged index");
+                int suffix = 0;
+                while (data.get(path + suffix) != 0) suffix++;
+
+                int keep = previousLength - strip;
+                int length = keep + suffix;
+                if (arenaLength + length > arena.length) {
+                    arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+                }
+                System.arraycopy(arena, previousOffset, arena, arenaLength, keep);
+                data.get(path, arena, arenaLength + keep, suffix);
+                pathOffsets[i] = arenaLength;
+                pathLengths[i] = length;
+                previousOffset = arenaLength;
+                previousLength = length;
+                arenaLength += length;
+                p = path + suffix + 1;
+            }
+        }
+
+        CacheTree cacheTree = null;
+        while (p + 8 <= end) {
+            int signature = data.getInt(p);
+            int length = data.getInt(p + 4);
+            if (length < 0 || p + 8 + length > end) throw new IOException("Damaged index extension");
+            if (signature == LINK_EXTENSION) throw new IOException("Split indexes are not supported");
+            if (signature == SPARSE_EXTENSION) throw new IOException("Sparse indexes are not supported");
+            if (signature == TREE_EXTENSION) {
+                int[] position = {p + 8};
+                cacheTree = CacheTree.parse(data, position, p + 8 + length);
+            }
+            p += 8 + length;
+        }
+
+        ByteBuffer paths = arena != null ? ByteBuffer.wrap(arena, 0, arenaLength) : data;
+        return new GitIndex(data, size, entryOffsets, pathOffsets, pathLengths, paths, cacheTree);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int mode(int entry) {
+        return data.getInt(entryOffsets[entry] + MODE);
+    }
+
+    /**
+     * Merge stage: 0 normally, 1 to 3 for the sides of a conflict
+     */
+    int stage(int entry) {
+        return (data.getShort(entryOffsets[entry] + FLAGS) & STAGE_MASK) >> 12;
+    }
+
+    /**
+     * Whether the entry was added with {@code git add -N}, recording the path but not staging content
+     */
+    boolean isIntentToAdd(int entry) {
+        int offset = entryOffsets[entry];
+        if ((data.getShort(offset + FLAGS) & EXTENDED_FLAG) == 0) return false;
+        return (data.getShort(offset + PATH) & INTENT_TO_ADD_FLAG) != 0;
+    }
+
+    byte[] id(int entry) {
+        byte[] id = new byte[GitObjectStore.ID_LENGTH];
+        data.get(entryOffsets[entry] + ID, id);
+        return id;
+    }
+
+    /**
+     * Whether the entry has the object id stored in {@code id} at {@code offset}
+     */
+    boolean hasId(int entry, byte[] id, int offset) {
+        int position = entryOffsets[entry] + ID;
+        for (int i = 0; i < GitObjectStore.ID_LENGTH; i++) {
+            if (data.get(position + i) != id[offset + i]) return false;
+        }
+        return true;
+    }
+
+    int pathLength(int entry) {
+        return pathLengths[entry];
+    }
+
+    byte pathByte(int entry, int index) {
+        return paths.get(pathOffsets[entry] + index);
+    }
+
+    /**
+     * Whether two entries have the same first {@code length} path bytes
+     */
+    boolean samePrefix(int entry, int other, int length) {
+        if (pathLengths[entry] < length || pathLengths[other] < length) return false;
+        int a = pathOffsets[entry];
+        int b = pathOffsets[other];
+        for (int i = 0; i < length; i++) {
+            if (paths.get(a + i) != paths.get(b + i)) return false;
+        }
+        return true;
+    }
+
+    String path(int entry) {
+        byte[] bytes = new byte[pathLengths[entry]];
+        paths.get(pathOffsets[entry], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Root of the cache tree extension, or null if the index has none
+     */
+    CacheTree cacheTree() {
+        return cacheTree;
+    }
+
+    /**
+     * A directory of the cache tree: the tree object the staged entries below it would be written
+     * as, valid until an entry below it changes
+     */
+    static final class CacheTree {
+        private final int entryCount;
+        private final byte[] id;
+        private final Map<String, CacheTree> children;
+
+        private CacheTree(int entryCount, byte[] id, Map<String, CacheTree> children) {
+            this.entryCount = entryCount;
+            this.id = id;
+            this.children = children;
+        }
+
+        private static CacheTree parse(ByteBuffer data, int[] position, int end) throws IOException {
+            int p = position[0];
+            int nameEnd = p;
+            while (data.get(nameEnd) != 0) nameEnd++;
+            // The name is read by the parent; the root has an empty one
+            p = nameEnd + 1;
+
+            int space = p;
+            while (data.get(space) != ' ') space++;
+            int newline = space + 1;
+            while (data.get(newline) != '\n') newline++;
+            int entryCount;
+            int subtreeCount;
+            try {
+                entryCount = Integer.parseInt(ascii(data, p, space));
+                subtreeCount = Integer.parseInt(ascii(data, space + 1, newline));
+            } catch (NumberFormatException e) {
+                throw new IOException("Damaged cache tree", e);
+            }
+            p = newline + 1;
+
+            // Invalidated directories have no object id
+            byte[] id = null;
+            if (entryCount >= 0) {
+                id = new byte[GitObjectStore.ID_LENGTH];
+                data.get(p, id);
+                p += id.length;
+            }
+            if (p > end || subtreeCount < 0) throw new IOException("Damaged cache tree");
+
+            Map<String, CacheTree> children = new HashMap<>(Math.max(4, subtreeCount * 2));
+            for (int i = 0; i < subtreeCount; i++) {
+                int childStart = p;
+                int childNameEnd = p;
+                while (data.get(childNameEnd) != 0) childNameEnd++;
+                byte[] name = new byte[childNameEnd - childStart];
+                data.get(childStart, name);
+                position[0] = p;
+                CacheTree child = parse(data, position, end);
+                p = position[0];
+                children.put(new String(name, StandardCharsets.UTF_8), child);
+            }
+            position[0] = p;
+            return new CacheTree(entryCount, id, children);
+        }
+
+        private static String ascii(ByteBuffer data, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            data.get(start, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Number of index entries below the directory, or -1 if it was invalidated
+         */
+        int entryCount() {
+            return entryCount;
+        }
+
+        /**
+         * Whether the directory is valid and would be written as the tree stored in {@code id} at {@code offset}
+         */
+        boolean matches(byte[] treeId, int offset) {
+            if (id == null) return false;
+            for (int i = 0; i < id.length; i++) {
+                if (id[i] != treeId[offset + i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Subdirectory of that name, or null if the cache tree has none
+         */
+        CacheTree child(String name) {
+            return children.get(name);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package org.sididev;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only access to the objects of a local git repository without running git: loose objects and
+ * version 2 pack indexes with their packs, including offset and reference deltas and the object
+ * directories listed as alternates. Files are memory-mapped, except on Windows where a live mapping
+ * would keep git from deleting or replacing them. Packs over 2 GiB are not supported.
+ * Not thread-safe.
+ */
+final class GitObjectStore {
+
+    static final int COMMIT = 1;
+    static final int TREE = 2;
+    static final int BLOB = 3;
+    static final int TAG = 4;
+    private static final int OFS_DELTA = 6;
+    private static final int REF_DELTA = 7;
+
+    static final int ID_LENGTH = 20;
+    private static final int PACK_INDEX_MAGIC = 0xff744f63;
+    // Delta bases kept decompressed, in bytes
+    private static final int BASE_CACHE_BYTES = 32 << 20;
+
+    private final List<Path> objectDirectories = new ArrayList<>();
+    private final List<Pack> packs = new ArrayList<>();
+    private final Inflater inflater = new Inflater();
+
+    // Decompressed delta bases by pack and offset, least recently used first
+    private final LinkedHashMap<Long, RawObject> baseCache = new LinkedHashMap<Long, RawObject>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RawObject> eldest) {
+            if (baseCacheBytes <= BASE_CACHE_BYTES) return false;
+            baseCacheBytes -= eldest.getValue().data.length;
+            return true;
+        }
+    };
+    private long baseCacheBytes;
+
+    GitObjectStore(Path objectsDirectory) throws IOException {
+        addObjectDirectory(objectsDirectory, 0);
+    }
+
+    private void addObjectDirectory(Path directory, int depth) throws IOException {
+        if (objectDirectories.contains(directory) || !Files.isDirectory(directory)) return;
+        objectDirectories.add(directory);
+
+        Path packDirectory = directory.resolve("pack");
+        if (Files.isDirectory(packDirectory)) {
+            try (DirectoryStream<Path> indexes = Files.newDirectoryStream(packDirectory, "pack-*.idx")) {
+                for (Path index : indexes) {
+                    String name = index.getFileName().toString();
+                    Path pack = packDirectory.resolve(name.substring(0, name.length() - 4) + ".pack");
+                    if (Files.exists(pack)) packs.add(new Pack(map(index), pack));
+                }
+            }
+        }
+
+        // Alternates may list further alternates; git stops at a depth of 5 as well
+        Path alternates = directory.resolve("info").resolve("alternates");
+        if (depth < 5 && Files.exists(alternates)) {
+            for (String line : Files.readAllLines(alternates, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                addObjectDirectory(directory.resolve(line).normalize(), depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Content of an object, which must be of the expected type
+     *
+     * @throws IOException if the object is missing, damaged or of another type
+     */
+    byte[] read(byte[] id, int expectedType) throws IOException {
+        RawObject object = read(id);
+        if (object.type != expectedType) {
+            throw new IOException("Object " + hex(id, 0) + " has type " + object.type + ", expected " + expectedType);
+        }
+        return object.data;
+    }
+
+    private RawObject read(byte[] id) throws IOException {
+        for (Pack pack : packs) {
+            long offset = pack.find(id);
+            if (offset >= 0) return readPacked(pack, offset);
+        }
+        for (Path directory : objectDirectories) {
+            String hex = hex(id, 0);
+            Path loose = directory.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+            if (Files.exists(loose)) return readLoose(loose);
+        }
+        throw new IOException("Object " + hex(id, 0) + " not found");
+    }
+
+    private RawObject readLoose(Path file) throws IOException {
+        byte[] compressed = Files.readAllBytes(file);
+        inflater.reset();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, compressed.length * 2));
+        byte[] buffer = new byte[8_192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated object " + file);
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged object " + file, e);
+        }
+
+        byte[] raw = out.toByteArray();
+        int space = indexOf(raw, (byte) ' ', 0);
+        int nul = indexOf(raw, (byte) 0, 0);
+        if (space < 0 || nul < space) throw new IOException("Damaged object header " + file);
+        String type = new String(raw, 0, space, StandardCharsets.US_ASCII);
+        byte[] data = new byte[raw.length - nul - 1];
+        System.arraycopy(raw, nul + 1, data, 0, data.length);
+        return new RawObject(typeOf(type), data);
+    }
+
+    private RawObject readPacked(Pack pack, long offset) throws IOException {
+        // Follow the delta chain down to its base, then apply the deltas on the way back up
+        List<byte[]> deltas = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        RawObject base = null;
+        ByteBuffer data = pack.data();
+        long position = offset;
+
+        while (base == null) {
+            RawObject cached = baseCache.get(key(pack, position));
+            if (cached != null) {
+                base = cached;
+                break;
+            }
+
+            int p = checkedPosition(position);
+            int c = data.get(p++) & 0xff;
+            int type = (c >> 4) & 7;
+            long size = c & 15;
+            for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+                c = data.get(p++) & 0xff;
+                size |= (long) (c & 0x7f) << shift;
+            }
+
+            if (type == OFS_DELTA) {
+                c = data.get(p++) & 0xff;
+                long distance = c & 0x7f;
+                while ((c & 0x80) != 0) {
+                    c = data.get(p++) & 0xff;
+                    distance = ((distance + 1) << 7) | (c & 0x7f);
+                }
+                deltas.add(inflate(data, p, size));
+                offsets.add(position);
+                position -= distance;
+            } else if (type == REF_DELTA) {
+                byte[] baseId = new byte[ID_LENGTH];
+                data.get(p, baseId);
+                deltas.add(inflate(data, p + ID_LENGTH, size));
+                offsets.add(position);
+                base = read(baseId);
+            } else if (type >= COMMIT && type <= TAG) {
+                base = new RawObject(type, inflate(data, p, size));
+                if (!deltas.isEmpty()) cache(pack, position, base);
+            } else {
+                throw new IOException("Unknown object type " + type + " in " + pack.file);
+            }
+        }
+
+        RawObject result = base;
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            result = new RawObject(result.type, applyDelta(result.data, deltas.get(i)));
+            // Intermediate results are the bases of later objects of the same chain
+            if (i > 0) cache(pack, offsets.get(i), result);
+        }
+        return result;
+    }
+
+    private void cache(Pack pack, long offset, RawObject object) {
+        if (object.data.length > BASE_CACHE_BYTES / 8) return;
+        if (baseCache.put(key(pack, offset), object) == null) {
+            baseCacheBytes += object.data.length;
+        }
+    }
+
+    private long key(Pack pack, long offset) {
+        return (long) packs.indexOf(pack) << 40 | offset;
+    }
+
+    private byte[] inflate(ByteBuffer data, int position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) throw new IOException("Object too large");
+        byte[] out = new byte[(int) size];
+        inflater.reset();
+        ByteBuffer input = data.duplicate();
+        input.position(position);
+        inflater.setInput(input);
+        try {
+            int n = 0;
+            while (n < out.length) {
+                int read = inflater.inflate(out, n, out.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated packed object");
+                }
+                n += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged packed object", e);
+        }
+        return out;
+    }
+
+    /**
+     * Apply a git delta: copy instructions referencing the base and literal inserts
+     */
+    static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+        int p = 0;
+        long baseSize = 0;
+        int c;
+        int shift = 0;
+        do {
+            c = delta[p++] & 0xff;
+            baseSize |= (long) (c & 0x7f) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        if (baseSize != base.length) throw new IOException("Delta base size mismatch");
+
+        long resultSize = 0;
+        shift = 0;
+        do {
+            c = delta[p++] & 0xff;
+            resultSize |= (long) (c & 0x7f) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        if (resultSize > Integer.MAX_VALUE - 8) throw new IOException("Object too large");
+
+        byte[] result = new byte[(int) resultSize];
+        int r = 0;
+        while (p < delta.length) {
+            int op = delta[p++] & 0xff;
+            if ((op & 0x80) != 0) {
+                long copyOffset = 0;
+                int copySize = 0;
+                if ((op & 0x01) != 0) copyOffset |= delta[p++] & 0xff;
+                if ((op & 0x02) != 0) copyOffset |= (delta[p++] & 0xff) << 8;
+                if ((op & 0x04) != 0) copyOffset |= (delta[p++] & 0xff) << 16;
+                if ((op & 0x08) != 0) copyOffset |= (long) (delta[p++] & 0xff) << 24;
+                if ((op & 0x10) != 0) copySize |= delta[p++] & 0xff;
+                if ((op & 0x20) != 0) copySize |= (delta[p++] & 0xff) << 8;
+                if ((op & 0x40) != 0) copySize |= (delta[p++] & 0xff) << 16;
+                if (copySize == 0) copySize = 0x10000;
+                if (copyOffset + copySize > base.length || r + copySize > result.length) {
+                    throw new IOException("Damaged delta");
+                }
+                System.arraycopy(base, (int) copyOffset, result, r, copySize);
+                r += copySize;
+            } else if (op != 0) {
+                if (p + op > delta.length || r + op > result.length) throw new IOException("Damaged delta");
+                System.arraycopy(delta, p, result, r, op);
+                p += op;
+                r += op;
+            } else {
+                throw new IOException("Damaged delta");
+            }
+        }
+        if (r != result.length) throw new IOException("Damaged delta");
+        return result;
+    }
+
+    private static int checkedPosition(long position) throws IOException {
+        if (position < 0 || position > Integer.MAX_VALUE) throw new IOException("Pack offset out of range");
+        return (int) position;
+    }
+
+    private static int typeOf(String type) throws IOException {
+        switch (type) {
+            case "commit": return COMMIT;
+            case "tree": return TREE;
+            case "blob": return BLOB;
+            case "tag": return TAG;
+            default: throw new IOException("Unknown object type " + type);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    static String hex(byte[] bytes, int offset) {
+        StringBuilder hex = new StringBuilder(ID_LENGTH * 2);
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int b = bytes[offset + i] & 0xff;
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 15, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Object id from 40 hex digits, or null if the text is not one
+     */
+    static byte[] parseHex(String text) {
+        if (text.length() != ID_LENGTH * 2) return null;
+        byte[] id = new byte[ID_LENGTH];
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int high = Character.digit(text.charAt(2 * i), 16);
+            int low = Character.digit(text.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            id[i] = (byte) (high << 4 | low);
+        }
+        return id;
+    }
+
+    /**
+     * Whole file as a buffer: mapped, or read into the heap on Windows
+     */
+    static ByteBuffer map(Path file) throws IOException {
+        if (System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows")) {
+            return ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(file + " is larger than 2 GiB");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static final class RawObject {
+        final int type;
+        final byte[] data;
+
+        RawObject(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A pack with its version 2 index; the pack itself is only opened once an object is read from it
+     */
+    private static final class Pack {
+        private final ByteBuffer index;
+        private final Path file;
+        private final int count;
+        private ByteBuffer data;
+
+        Pack(ByteBuffer index, Path file) throws IOException {
+            if (index.capacity() < 8 + 256 * 4 || index.getInt(0) != PACK_INDEX_MAGIC || index.getInt(4) != 2) {
+                throw new IOException("Unsupported pack index for " + file);
+            }
+            this.index = index;
+            this.file = file;
+            this.count = index.getInt(8 + 255 * 4);
+        }
+
+        ByteBuffer data() throws IOException {
+            if (data == null) data = map(file);
+            return data;
+        }
+
+        /**
+         * Offset of the object in the pack, or -1 if the pack does not have it
+         */
+        long find(byte[] id) {
+            int first = id[0] & 0xff;
+            int low = first == 0 ? 0 : index.getInt(8 + (first - 1) * 4);
+            int high = index.getInt(8 + first * 4) - 1;
+            int ids = 8 + 256 * 4;
+
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int cmp = compare(ids + middle * ID_LENGTH, id);
+                if (cmp < 0) {
+                    low = middle + 1;
+                } else if (cmp > 0) {
+                    high = middle - 1;
+                } else {
+                    int offsets = ids + count * (ID_LENGTH + 4);
+                    int offset = index.getInt(offsets + middle * 4);
+                    if (offset >= 0) return offset;
+                    // Large offsets are stored in a separate table of 64-bit values
+                    return index.getLong(offsets + count * 4 + (offset & 0x7fffffff) * 8);
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int position, byte[] id) {
+            for (int i = 0; i < ID_LENGTH; i++) {
+                int cmp = Integer.compare(index.get(position + i) & 0xff, id[i] & 0xff);
+                if (cmp != 0) return cmp;
+            }
+            return 0;
+        }
+    }
+}
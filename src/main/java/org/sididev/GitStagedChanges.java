@@ -0,0 +1,434 @@
+package org.sididev;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Staged changes of a repository read from its files, like {@code git diff --cached --name-status
+ * --no-renames} but without running git: the {@link GitIndex} is merged with the tree of HEAD from
+ * the {@link GitObjectStore}. Directories whose cache tree entry still matches the tree of HEAD are
+ * skipped without reading them, so a small change in a large repository costs little more than
+ * parsing the index. Renames are found by an optional {@link RenameDetector}, as git does, and are
+ * otherwise reported as a removal and an addition.
+ * <p>
+ * The environment variables git sets for hooks are honored. Repositories using a format or layout
+ * not supported here make {@link #read} throw, so callers can fall back to running git.
+ */
+final class GitStagedChanges {
+
+    interface Sink {
+        /**
+         * @param status       git status letter: A, D, M, R, T or U
+         * @param path         path relative to the work tree
+         * @param previousPath path of a renamed file in HEAD, otherwise null
+         */
+        void accept(char status, String path, String previousPath);
+    }
+
+    private static final int TYPE_MASK = 0170000;
+    private static final int DIRECTORY = 0040000;
+    private static final int GITLINK = 0160000;
+
+    private final Path workTree;
+    private final Path gitDirectory;
+    private final Path commonDirectory;
+    private final Path indexFile;
+
+    private GitStagedChanges(Path workTree, Path gitDirectory, Path commonDirectory, Path indexFile) {
+        this.workTree = workTree;
+        this.gitDirectory = gitDirectory;
+        this.commonDirectory = commonDirectory;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Repository containing the directory
+     *
+     * @param environment variables such as {@code GIT_DIR} and {@code GIT_INDEX_FILE}, which git sets for hooks
+     * @throws IOException if there is no repository, or it is set up in a way not supported here
+     */
+    static GitStagedChanges open(Path directory, Map<String, String> environment) throws IOException {
+        for (String unsupported : List.of("GIT_OBJECT_DIRECTORY", "GIT_ALTERNATE_OBJECT_DIRECTORIES",
+                "GIT_NAMESPACE", "GIT_QUARANTINE_PATH")) {
+            if (environment.containsKey(unsupported)) throw new IOException(unsupported + " is not supported");
+        }
+        directory = directory.toAbsolutePath().normalize();
+
+        Path workTree;
+        Path gitDirectory;
+        String gitDir = environment.get("GIT_DIR");
+        if (gitDir != null) {
+            gitDirectory = directory.resolve(gitDir).normalize();
+            String configuredWorkTree = environment.get("GIT_WORK_TREE");
+            workTree = configuredWorkTree != null ? directory.resolve(configuredWorkTree).normalize() : directory;
+        } else {
+            workTree = directory;
+            while (workTree != null && !Files.exists(workTree.resolve(".git"))) {
+                workTree = workTree.getParent();
+            }
+            if (workTree == null) throw new IOException("Not in a git repository: " + directory);
+            gitDirectory = gitDirectory(workTree.resolve(".git"));
+        }
+
+        Path commonDirectory = gitDirectory;
+        String commonDir = environment.get("GIT_COMMON_DIR");
+        if (commonDir != null) {
+            commonDirectory = directory.resolve(commonDir).normalize();
+        } else if (Files.exists(gitDirectory.resolve("commondir"))) {
+            commonDirectory = gitDirectory.resolve(readLine(gitDirectory.resolve("commondir"))).normalize();
+        }
+
+        String indexFile = environment.get("GIT_INDEX_FILE");
+        Path index = indexFile != null ? directory.resolve(indexFile).normalize() : gitDirectory.resolve("index");
+
+        if (Files.isDirectory(commonDirectory.resolve("reftable"))) {
+            throw new IOException("Reftable repositories are not supported");
+        }
+        Path config = commonDirectory.resolve("config");
+        if (Files.exists(config)) {
+            for (String line : Files.readAllLines(config, StandardCharsets.UTF_8)) {
+                String setting = line.replace(" ", "").replace("\t", "").toLowerCase(Locale.ROOT);
+                if (setting.startsWith("objectformat=") && !setting.equals("objectformat=sha1")) {
+                    throw new IOException("Only SHA-1 repositories are supported");
+                }
+            }
+        }
+        return new GitStagedChanges(workTree, gitDirectory, commonDirectory, index);
+    }
+
+    /**
+     * A {@code .git} directory, or the directory a {@code .git} file of a linked work tree or submodule points to
+     */
+    private static Path gitDirectory(Path dotGit) throws IOException {
+        if (Files.isDirectory(dotGit)) return dotGit;
+        String line = readLine(dotGit);
+        if (!line.startsWith("gitdir:")) throw new IOException("Unrecognized " + dotGit);
+        return dotGit.getParent().resolve(line.substring("gitdir:".length()).trim()).normalize();
+    }
+
+    Path workTree() {
+        return workTree;
+    }
+
+    /**
+     * The git directory shared by all work trees of the repository
+     */
+    Path commonDirectory() {
+        return commonDirectory;
+    }
+
+    /**
+     * Commit HEAD points to, in hex; null on a branch without commits
+     */
+    String head() throws IOException {
+        byte[] head = resolve("HEAD");
+        return head != null ? GitObjectStore.hex(head, 0) : null;
+    }
+
+    /**
+     * Push every staged change to the sink, in path order
+     *
+     * @throws IOException if the repository cannot be read, or uses a format not supported here
+     */
+    void read(Sink sink) throws IOException {
+        read(sink, null);
+    }
+
+    /**
+     * Push every staged change to the sink. With a rename detector, removed and added files are held
+     * back until all other changes were pushed, then pushed as renames where they pair up.
+     *
+     * @throws IOException if the repository cannot be read, or uses a format not supported here
+     */
+    void read(Sink sink, RenameDetector renames) throws IOException {
+        byte[] head = resolve("HEAD");
+        // Without an index nothing was ever staged, unless HEAD exists and the index was deleted
+        if (!Files.exists(indexFile)) {
+            if (head == null) return;
+            throw new IOException("Missing index " + indexFile);
+        }
+        GitIndex index = GitIndex.read(indexFile);
+        GitObjectStore store = new GitObjectStore(commonDirectory.resolve("objects"));
+
+        byte[] tree = null;
+        if (head != null) {
+            byte[] commit = store.read(head, GitObjectStore.COMMIT);
+            String firstLine = new String(commit, 0, Math.min(commit.length, 45), StandardCharsets.US_ASCII);
+            tree = firstLine.startsWith("tree ") ? GitObjectStore.parseHex(firstLine.substring(5)) : null;
+            if (tree == null) throw new IOException("Damaged commit " + GitObjectStore.hex(head, 0));
+        }
+        Comparison comparison = new Comparison(index, store, sink, renames != null);
+        comparison.compare(tree);
+        if (renames != null) comparison.pairRenames(renames);
+    }
+
+    /**
+     * Object id a ref points to, following symbolic refs; null for a branch without commits
+     */
+    private byte[] resolve(String ref) throws IOException {
+        for (int depth = 0; depth < 5; depth++) {
+            // HEAD and other pseudo refs belong to the work tree, refs/ are shared by all work trees
+            Path file = (ref.startsWith("refs/") ? commonDirectory : gitDirectory).resolve(ref);
+            if (!Files.exists(file)) return packedRef(ref);
+
+            String content = readLine(file);
+            if (!content.startsWith("ref:")) {
+                byte[] id = GitObjectStore.parseHex(content);
+                if (id == null) throw new IOException("Unrecognized ref " + ref);
+                return id;
+            }
+            ref = content.substring("ref:".length()).trim();
+        }
+        throw new IOException("Too many levels of symbolic refs");
+    }
+
+    private byte[] packedRef(String ref) throws IOException {
+        Path packedRefs = commonDirectory.resolve("packed-refs");
+        if (!Files.exists(packedRefs)) return null;
+        for (String line : Files.readAllLines(packedRefs, StandardCharsets.UTF_8)) {
+            if (line.length() > 41 && line.charAt(40) == ' ' && line.endsWith(ref)
+                    && line.length() == 41 + ref.length()) {
+                return GitObjectStore.parseHex(line.substring(0, 40));
+            }
+        }
+        return null;
+    }
+
+    private static String readLine(Path file) throws IOException {
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        int newline = content.indexOf('\n');
+        return (newline >= 0 ? content.substring(0, newline) : content).trim();
+    }
+
+    /**
+     * Merge of the index with the trees of HEAD. Both are sorted the same way within a directory:
+     * by name bytes, directory names comparing as if they ended with '/'.
+     */
+    private static final class Comparison {
+        private final GitIndex index;
+        private final GitObjectStore store;
+        private final Sink sink;
+        private final int size;
+        // Removed and added files held back for rename detection, or null
+        private final List<RenameDetector.Candidate> removed;
+        private final List<RenameDetector.Candidate> added;
+
+        Comparison(GitIndex index, GitObjectStore store, Sink sink, boolean detectRenames) {
+            this.index = index;
+            this.store = store;
+            this.sink = sink;
+            this.size = index.size();
+            this.removed = detectRenames ? new ArrayList<>() : null;
+            this.added = detectRenames ? new ArrayList<>() : null;
+        }
+
+        void compare(byte[] rootTree) throws IOException {
+            int end = rootTree != null
+                    ? compare(rootTree, 0, "", 0, 0, index.cacheTree())
+                    : add(0, 0);
+            if (end != size) throw new IOException("Index entries out of order");
+        }
+
+        /**
+         * Compare a directory of HEAD with the index entries from {@code first} on that are below it
+         *
+         * @param prefix       path of the directory with a trailing '/', or "" for the root
+         * @param prefixLength length of the prefix in bytes
+         * @param cacheTree    the directory in the cache tree, or null
+         * @return the first index entry after the directory
+         */
+        private int compare(byte[] treeId, int idOffset, String prefix, int prefixLength, int first,
+                            GitIndex.CacheTree cacheTree) throws IOException {
+            if (cacheTree != null && cacheTree.matches(treeId, idOffset)) {
+                int end = first + cacheTree.entryCount();
+                if (end <= size && (end == first || inDirectory(end - 1, first, prefixLength))
+                        && (end == size || !inDirectory(end, first, prefixLength))) {
+                    return end;
+                }
+            }
+
+            byte[] tree = store.read(copyId(treeId, idOffset), GitObjectStore.TREE);
+            int t = 0;
+            int i = first;
+            while (true) {
+                while (i < size && inDirectory(i, first, prefixLength) && index.isIntentToAdd(i)) i++;
+                boolean hasEntry = i < size && inDirectory(i, first, prefixLength);
+                boolean hasTreeEntry = t < tree.length;
+                if (!hasEntry && !hasTreeEntry) return i;
+
+                int mode = 0;
+                int nameStart = 0;
+                int nameEnd = 0;
+                if (hasTreeEntry) {
+                    int space = t;
+                    while (tree[space] != ' ') mode = mode * 8 + tree[space++] - '0';
+                    nameStart = space + 1;
+                    nameEnd = nameStart;
+                    while (tree[nameEnd] != 0) nameEnd++;
+                }
+                boolean treeDirectory = (mode & TYPE_MASK) == DIRECTORY;
+
+                int entryNameEnd = prefixLength;
+                if (hasEntry) {
+                    int length = index.pathLength(i);
+                    while (entryNameEnd < length && index.pathByte(i, entryNameEnd) != '/') entryNameEnd++;
+                }
+                boolean entryDirectory = hasEntry && entryNameEnd < index.pathLength(i);
+
+                int cmp = !hasEntry ? -1 : !hasTreeEntry ? 1
+                        : compareNames(tree, nameStart, nameEnd, treeDirectory, i, prefixLength, entryNameEnd, entryDirectory);
+                if (cmp < 0) {
+                    String path = prefix + new String(tree, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+                    if (treeDirectory) {
+                        remove(copyId(tree, nameEnd + 1), path + "/");
+                    } else {
+                        removeFile(path, mode, tree, nameEnd + 1);
+                    }
+                    t = nameEnd + 1 + GitObjectStore.ID_LENGTH;
+                } else if (cmp > 0) {
+                    i = entryDirectory ? add(i, entryNameEnd + 1) : addFile(i);
+                } else if (treeDirectory) {
+                    String name = new String(tree, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+                    i = compare(tree, nameEnd + 1, prefix + name + "/", entryNameEnd + 1, i,
+                            cacheTree != null ? cacheTree.child(name) : null);
+                    t = nameEnd + 1 + GitObjectStore.ID_LENGTH;
+                } else {
+                    int entryMode = index.mode(i);
+                    if (index.stage(i) != 0) {
+                        sink.accept('U', index.path(i), null);
+                    } else if ((entryMode & TYPE_MASK) != (mode & TYPE_MASK)) {
+                        sink.accept('T', index.path(i), null);
+                    } else if (entryMode != mode || !index.hasId(i, tree, nameEnd + 1)) {
+                        sink.accept('M', index.path(i), null);
+                    }
+                    i = nextPath(i);
+                    t = nameEnd + 1 + GitObjectStore.ID_LENGTH;
+                }
+            }
+        }
+
+        /**
+         * Report the entries from {@code first} on sharing its first {@code prefixLength} bytes as added
+         *
+         * @return the first index entry after them
+         */
+        private int add(int first, int prefixLength) {
+            int i = first;
+            while (i < size && inDirectory(i, first, prefixLength)) {
+                i = index.isIntentToAdd(i) ? i + 1 : addFile(i);
+            }
+            return i;
+        }
+
+        private int addFile(int entry) {
+            if (index.stage(entry) != 0) {
+                sink.accept('U', index.path(entry), null);
+            } else if (added != null && (index.mode(entry) & TYPE_MASK) != GITLINK) {
+                byte[] id = index.id(entry);
+                added.add(new RenameDetector.Candidate(index.path(entry), () -> blob(id)));
+            } else {
+                sink.accept('A', index.path(entry), null);
+            }
+            return nextPath(entry);
+        }
+
+        private void removeFile(String path, int mode, byte[] tree, int idOffset) {
+            if (removed != null && (mode & TYPE_MASK) != GITLINK) {
+                byte[] id = copyId(tree, idOffset);
+                removed.add(new RenameDetector.Candidate(path, () -> blob(id)));
+            } else {
+                sink.accept('D', path, null);
+            }
+        }
+
+        private InputStream blob(byte[] id) throws IOException {
+            return new ByteArrayInputStream(store.read(id, GitObjectStore.BLOB));
+        }
+
+        /**
+         * Push the held back files, as renames where the detector pairs them
+         */
+        void pairRenames(RenameDetector renames) {
+            int[] pairs = renames.pair(removed, added);
+            boolean[] paired = new boolean[removed.size()];
+            for (int r : pairs) {
+                if (r >= 0) paired[r] = true;
+            }
+            for (int r = 0; r < removed.size(); r++) {
+                if (!paired[r]) sink.accept('D', removed.get(r).path, null);
+            }
+            for (int a = 0; a < added.size(); a++) {
+                String previousPath = pairs[a] >= 0 ? removed.get(pairs[a]).path : null;
+                sink.accept(previousPath != null ? 'R' : 'A', added.get(a).path, previousPath);
+            }
+        }
+
+        /**
+         * Report all files of a tree of HEAD as removed
+         */
+        private void remove(byte[] treeId, String prefix) throws IOException {
+            byte[] tree = store.read(treeId, GitObjectStore.TREE);
+            int t = 0;
+            while (t < tree.length) {
+                int mode = 0;
+                while (tree[t] != ' ') mode = mode * 8 + tree[t++] - '0';
+                int nameStart = t + 1;
+                int nameEnd = nameStart;
+                while (tree[nameEnd] != 0) nameEnd++;
+                String path = prefix + new String(tree, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+                if ((mode & TYPE_MASK) == DIRECTORY) {
+                    remove(copyId(tree, nameEnd + 1), path + "/");
+                } else {
+                    removeFile(path, mode, tree, nameEnd + 1);
+                }
+                t = nameEnd + 1 + GitObjectStore.ID_LENGTH;
+            }
+        }
+
+        /**
+         * First entry after the stages of the entry's path
+         */
+        private int nextPath(int entry) {
+            int length = index.pathLength(entry);
+            int next = entry + 1;
+            while (next < size && index.pathLength(next) == length && index.samePrefix(next, entry, length)) next++;
+            return next;
+        }
+
+        private boolean inDirectory(int entry, int first, int prefixLength) {
+            return prefixLength == 0 || index.samePrefix(entry, first, prefixLength);
+        }
+
+        /**
+         * Order of a tree entry name and an index entry name, in git's tree order
+         */
+        private int compareNames(byte[] tree, int nameStart, int nameEnd, boolean treeDirectory,
+                                 int entry, int entryNameStart, int entryNameEnd, boolean entryDirectory) {
+            int treeLength = nameEnd - nameStart;
+            int entryLength = entryNameEnd - entryNameStart;
+            int common = Math.min(treeLength, entryLength);
+            for (int k = 0; k < common; k++) {
+                int cmp = (tree[nameStart + k] & 0xff) - (index.pathByte(entry, entryNameStart + k) & 0xff);
+                if (cmp != 0) return cmp;
+            }
+            int treeNext = treeLength > common ? tree[nameStart + common] & 0xff : treeDirectory ? '/' : 0;
+            int entryNext = entryLength > common ? index.pathByte(entry, entryNameStart + common) & 0xff
+                    : entryDirectory ? '/' : 0;
+            return treeNext - entryNext;
+        }
+
+        private static byte[] copyId(byte[] bytes, int offset) {
+            byte[] id = new byte[GitObjectStore.ID_LENGTH];
+            System.arraycopy(bytes, offset, id, 0, id.length);
+            return id;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.sididev;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Learns the {@link HistoryModel} of a repository from its git log and keeps it up to date. The model
+ * is stored in the common git directory, where it is shared by all work trees and never committed,
+ * and records the commit it was learned up to, so an update reads only the log of newer commits.
+ */
+final class HistoryLearner {
+
+    static final int DEFAULT_MAX_COMMITS = 5_000;
+    private static final String MODEL_DIRECTORY = "smart-commit";
+    // Each update writes a new version, history.<version>.bin, instead of replacing the file a reader
+    // may still have mapped, which Windows refuses; older versions are deleted once they can be.
+    // A version is reserved as an empty file first, so concurrent updates never take the same one.
+    private static final String MODEL_PREFIX = "history.";
+    private static final String MODEL_SUFFIX = ".bin";
+
+    private final PathClassifier classifier;
+    private final int maxCommits;
+
+    /**
+     * @param maxCommits newest commits learned when building a model from scratch
+     */
+    HistoryLearner(PathClassifier classifier, int maxCommits) {
+        this.classifier = classifier;
+        this.maxCommits = Math.max(1, maxCommits);
+    }
+
+    /**
+     * Where the newest model of a repository is stored; the file does not exist if none was learned yet
+     */
+    static Path modelFile(GitStagedChanges repository) throws IOException {
+        Path directory = repository.commonDirectory().resolve(MODEL_DIRECTORY);
+        return directory.resolve(MODEL_PREFIX + newestVersion(directory) + MODEL_SUFFIX);
+    }
+
+    /**
+     * Highest version of the written model files in the directory, 0 if there is none; reserved
+     * versions still being written are empty and skipped
+     */
+    private static long newestVersion(Path directory) throws IOException {
+        long newest = 0;
+        if (!Files.isDirectory(directory)) return newest;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, MODEL_PREFIX + "*" + MODEL_SUFFIX)) {
+            for (Path file : files) {
+                long fileVersion = version(file);
+                if (fileVersion > newest && written(file)) newest = fileVersion;
+            }
+        }
+        return newest;
+    }
+
+    private static boolean written(Path file) {
+        try {
+            return Files.size(file) > 0;
+        } catch (IOException e) {
+            // Deleted meanwhile
+            return false;
+        }
+    }
+
+    /**
+     * Reserve the version after the given model file by creating it empty, taking the next free one
+     * if a concurrent update reserved it first
+     */
+    private static Path reserveNextVersion(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        for (long version = version(file) + 1; ; version++) {
+            Path next = file.resolveSibling(MODEL_PREFIX + version + MODEL_SUFFIX);
+            try {
+                return Files.createFile(next);
+            } catch (FileAlreadyExistsException e) {
+                // Reserved by a concurrent update, e.g. the IDE and the learn command
+            }
+        }
+    }
+
+    /**
+     * Version of a model file, -1 if the name is not that of one
+     */
+    private static long version(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(MODEL_PREFIX) || !name.endsWith(MODEL_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(MODEL_PREFIX.length(), name.length() - MODEL_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Delete the model files older than the given one, leaving those that cannot be deleted yet,
+     * e.g. because a reader still has them open on Windows, to a later update
+     */
+    private static void deleteOlderModels(Path newest) {
+        long newestVersion = version(newest);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(newest.getParent(),
+                MODEL_PREFIX + "*" + MODEL_SUFFIX)) {
+            for (Path file : files) {
+                long fileVersion = version(file);
+                if (fileVersion >= 0 && fileVersion < newestVersion) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException ignored) {}
+                }
+            }
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Model of the repository learned up to HEAD. Commits after the one the stored model was learned up
+     * to are added to it; the model is built from the newest commits instead if there is none, it cannot
+     * be read, or its last commit is gone. Returns the stored model unchanged when it is up to date.
+     *
+     * @param rebuild build from the newest commits even if there is an up-to-date model
+     * @return the model, or null if HEAD has no commits yet
+     */
+    HistoryModel update(GitStagedChanges repository, boolean rebuild) throws IOException, InterruptedException {
+        Path file = modelFile(repository);
+        String head = repository.head();
+        HistoryModel model = null;
+        if (!rebuild) {
+            try {
+                model = HistoryModel.open(file);
+            } catch (NoSuchFileException e) {
+                // Not learned yet
+            } catch (IOException e) {
+                // Unreadable or from another version, built again below
+            }
+        }
+        if (head == null) return model;
+        if (model != null && model.lastCommit().equals(head)) return model;
+
+        String root = repository.workTree().toString().replace(File.separatorChar, '/');
+        HistoryModel.Counts counts = null;
+        if (model != null && !model.lastCommit().isEmpty()) {
+            counts = HistoryModel.Counts.of(model);
+            if (!learn(root, counts, Collections.singletonList(model.lastCommit() + "..HEAD"))) counts = null;
+        }
+        if (counts == null) {
+            counts = new HistoryModel.Counts();
+            if (!learn(root, counts, Collections.emptyList())) throw new IOException("git log failed in " + root);
+        }
+        counts.setLastCommit(head);
+        Path next = reserveNextVersion(file);
+        try {
+            counts.write(next);
+        } catch (IOException e) {
+            Files.deleteIfExists(next);
+            throw e;
+        }
+        deleteOlderModels(next);
+        return HistoryModel.open(next);
+    }
+
+    /**
+     * Learn the commits printed by {@code git log} with the given extra arguments, at most the configured
+     * number of them; false if git failed, e.g. because a commit in the arguments does not exist
+     */
+    private boolean learn(String root, HistoryModel.Counts counts, List<String> logArguments)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.add("log");
+        command.add("--no-merges");
+        command.add("--name-status");
+        command.add("-z");
+        command.add(HistoryReplay.LOG_FORMAT);
+        command.add("-n");
+        command.add(Integer.toString(maxCommits));
+        command.addAll(logArguments);
+
+        Process git = new ProcessBuilder(command)
+                .directory(new File(root))
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try (InputStream in = git.getInputStream()) {
+            learn(in, root, counts);
+        }
+        return git.waitFor() == 0;
+    }
+
+    /**
+     * Learn the conventional commits of log output in {@link HistoryReplay#LOG_FORMAT}
+     *
+     * @param root directory the logged paths are relative to
+     */
+    void learn(InputStream log, String root, HistoryModel.Counts counts) throws IOException, InterruptedException {
+        NameStatusReader reader = new NameStatusReader(new BufferedInputStream(log, 256 * 1024), classifier, root);
+        HistoryReplay.readCommits(reader, commit -> {
+            String[] header = HistoryReplay.parseHeader(commit.subject);
+            if (header == null || commit.size() == 0) return;
+            ChangeStats stats = new ChangeStats();
+            for (int i = 0; i < commit.size(); i++) {
+                stats.add(reader.analyze(commit.status(i), commit.path(i)));
+            }
+            counts.add(header[0], header[1], HistoryModel.features(stats, root));
+        });
+    }
+}
@@ -0,0 +1,504 @@
+package org.sididev;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Commit types and scopes learned from the conventional-commit history of a repository, predicted
+ * by naive Bayes over features of a changeset: its operations, file contexts, extensions and
+ * directory names. Features are 64-bit hashes looked up in an open-addressing table read straight
+ * from a memory-mapped model file, so opening a model costs a few label reads and a prediction a
+ * handful of lookups. Models are immutable; {@link Counts} learns new commits and writes a new file.
+ */
+final class HistoryModel {
+
+    /** Conventional commits a model must have learned before its predictions are used */
+    static final int MIN_COMMITS = 20;
+    /** Probability a prediction must reach to be used instead of the heuristics */
+    static final double MIN_CONFIDENCE = 0.6;
+
+    private static final int MAGIC = 0x5343484d; // "SCHM"
+    private static final int VERSION = 1;
+    private static final int SLOT_BYTES = 12;
+    // Directories holding less than this fraction of the files of a changeset are not features of it
+    private static final int DIRECTORY_SHARE = 8;
+
+    private final ByteBuffer data;
+    private final String lastCommit;
+    private final int commits;
+    private final Labels types;
+    private final Labels scopes;
+    private final int features;
+    private final int slots;
+    private final int slotMask;
+    private final int postings;
+
+    private HistoryModel(ByteBuffer data) throws IOException {
+        this.data = data;
+        try {
+            if (data.getInt() != MAGIC) throw new IOException("Not a history model");
+            if (data.getInt() != VERSION) throw new IOException("Unsupported history model version");
+            lastCommit = readString(data);
+            commits = data.getInt();
+            features = data.getInt();
+            types = new Labels(data, features);
+            scopes = new Labels(data, features);
+            int slotCount = data.getInt();
+            if (Integer.bitCount(slotCount) != 1) throw new IOException("Corrupt history model");
+            slots = data.position();
+            slotMask = slotCount - 1;
+            postings = slots + slotCount * SLOT_BYTES;
+            if (postings > data.limit()) throw new IOException("Truncated history model");
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt history model", e);
+        }
+    }
+
+    /**
+     * Map a model file; its feature table is only read when predicting
+     */
+    static HistoryModel open(Path file) throws IOException {
+        return new HistoryModel(GitObjectStore.map(file));
+    }
+
+    /**
+     * Hash of the newest commit learned, or "" if none was
+     */
+    String lastCommit() {
+        return lastCommit;
+    }
+
+    /**
+     * Conventional commits learned
+     */
+    int commits() {
+        return commits;
+    }
+
+    /**
+     * Most likely type and scope of a changeset; either is null when the model is not confident
+     * enough about it, the scope is "" when commits like it usually have none
+     *
+     * @param basePath root of the changed paths; directories above it are not features
+     */
+    Prediction predict(ChangeStats stats, String basePath) {
+        if (commits < MIN_COMMITS) return Prediction.NONE;
+        long[] hashes = features(stats, basePath);
+        int[] found = new int[hashes.length];
+        int foundCount = 0;
+        for (long hash : hashes) {
+            int posting = find(hash);
+            if (posting >= 0) found[foundCount++] = posting;
+        }
+        if (foundCount == 0) return Prediction.NONE;
+
+        // Types precede scopes in each posting, so the scope lists start where the type lists end
+        int[] next = new int[foundCount];
+        String type = types.best(data, found, next, foundCount);
+        String scope = scopes.best(data, next, next, foundCount);
+        return type == null && scope == null ? Prediction.NONE : new Prediction(type, scope);
+    }
+
+    /**
+     * Absolute position of the posting of a feature, or -1 if the model has not seen it
+     */
+    private int find(long hash) {
+        int slot = (int) hash & slotMask;
+        for (int probes = 0; probes <= slotMask; probes++, slot = (slot + 1) & slotMask) {
+            int position = slots + slot * SLOT_BYTES;
+            int posting = data.getInt(position + 8);
+            if (posting == 0) return -1;
+            if (data.getLong(position) == hash) return postings + posting - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Distinct feature hashes of a changeset, shared by learning and prediction
+     */
+    static long[] features(ChangeStats stats, String basePath) {
+        Features features = new Features();
+        int files = 0;
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            int count = stats.count(operation);
+            files += count;
+            if (count > 0) features.add("o:", operation.name());
+        }
+        for (FileContext context : FileContext.VALUES) {
+            if (stats.hasContext(context)) features.add("c:", context.name());
+        }
+        for (int i = 0; i < stats.extensionKinds(); i++) {
+            // Names, not ids: ids are assigned in the order extensions are met and differ between runs
+            features.add("e:", FileExtensions.name(stats.extensionAt(i)));
+        }
+        int total = files;
+        stats.paths().forEachDirectory(basePath, (segment, count) -> {
+            if ((long) count * DIRECTORY_SHARE >= total) features.add("d:", segment);
+        });
+        features.add("n:", files <= 1 ? "1" : files <= 3 ? "3" : files <= 10 ? "10" : files <= 50 ? "50" : "more");
+        return features.distinct();
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getShort() & 0xffff];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) bytes = Arrays.copyOf(bytes, 0xffff);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * A predicted type and scope, each null if unsure
+     */
+    static final class Prediction {
+        static final Prediction NONE = new Prediction(null, null);
+
+        final String type;
+        final String scope;
+
+        Prediction(String type, String scope) {
+            this.type = type;
+            this.scope = scope;
+        }
+    }
+
+    /**
+     * The types or the scopes of a model, with the smoothed terms of their scores
+     */
+    private static final class Labels {
+        final String[] names;
+        final int[] commits;
+        final long[] featureTotals;
+        // Log of the commits with the label plus one, and of the smoothed probability of an unseen feature
+        final double[] logPriors;
+        final double[] logUnseen;
+
+        Labels(ByteBuffer data, int features) {
+            int size = data.getInt();
+            names = new String[size];
+            commits = new int[size];
+            featureTotals = new long[size];
+            logPriors = new double[size];
+            logUnseen = new double[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = readString(data);
+                commits[i] = data.getInt();
+                featureTotals[i] = data.getLong();
+                logPriors[i] = Math.log(commits[i] + 1.0);
+                logUnseen[i] = -Math.log((double) featureTotals[i] + features);
+            }
+        }
+
+        /**
+         * Best label given the postings of the found features, if it is probable enough
+         *
+         * @param positions where the label lists of this kind start in each posting
+         * @param ends      receives the position after each list
+         */
+        String best(ByteBuffer data, int[] positions, int[] ends, int found) {
+            if (names.length == 0) return null;
+            double[] scores = new double[names.length];
+            for (int label = 0; label < scores.length; label++) {
+                scores[label] = logPriors[label] + found * logUnseen[label];
+            }
+            for (int i = 0; i < found; i++) {
+                int position = positions[i];
+                int size = data.getShort(position) & 0xffff;
+                position += 2;
+                for (int j = 0; j < size; j++, position += 6) {
+                    // Seen count c replaces the unseen term log(1/..) with log((c + 1)/..)
+                    scores[data.getShort(position) & 0xffff] += Math.log(data.getInt(position + 2) + 1.0);
+                }
+                ends[i] = position;
+            }
+
+            int best = 0;
+            for (int label = 1; label < scores.length; label++) {
+                if (scores[label] > scores[best]) best = label;
+            }
+            double sum = 0;
+            for (double score : scores) {
+                sum += Math.exp(score - scores[best]);
+            }
+            return 1 / sum >= MIN_CONFIDENCE ? names[best] : null;
+        }
+    }
+
+    /**
+     * Hashes of the features of one changeset
+     */
+    private static final class Features {
+        private long[] hashes = new long[32];
+        private int size;
+
+        void add(String kind, String value) {
+            if (value == null) return;
+            if (size == hashes.length) hashes = Arrays.copyOf(hashes, size * 2);
+            hashes[size++] = hash(kind, value);
+        }
+
+        long[] distinct() {
+            Arrays.sort(hashes, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || hashes[i] != hashes[distinct - 1]) hashes[distinct++] = hashes[i];
+            }
+            return Arrays.copyOf(hashes, distinct);
+        }
+
+        /**
+         * FNV-1a over the characters, finished with the MurmurHash3 mix so the low bits index the table well
+         */
+        private static long hash(String kind, String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < kind.length(); i++) {
+                hash = (hash ^ kind.charAt(i)) * 0x100000001b3L;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb93fe51a87d3L;
+            return hash ^ hash >>> 33;
+        }
+    }
+
+    /**
+     * Mutable counts a model is written from: commits per label and, per feature, the commits of each
+     * label that had it. Counts are kept exactly, so learning new commits on top of the counts read back
+     * from a model gives the same model as learning all commits at once.
+     */
+    static final class Counts {
+        // Label ids are written as unsigned shorts; further labels are not learned
+        private static final int MAX_LABELS = 0xffff;
+
+        private String lastCommit = "";
+        private int commits;
+        private final LabelCounts types = new LabelCounts();
+        private final LabelCounts scopes = new LabelCounts();
+        private final Map<Long, Posting> features = new HashMap<>();
+
+        /**
+         * Counts of an existing model, to learn further commits on top of
+         */
+        static Counts of(HistoryModel model) {
+            Counts counts = new Counts();
+            counts.lastCommit = model.lastCommit;
+            counts.commits = model.commits;
+            counts.types.copy(model.types);
+            counts.scopes.copy(model.scopes);
+            for (int slot = 0; slot <= model.slotMask; slot++) {
+                int position = model.slots + slot * SLOT_BYTES;
+                int offset = model.data.getInt(position + 8);
+                if (offset == 0) continue;
+                Posting posting = new Posting();
+                int next = posting.types.read(model.data, model.postings + offset - 1);
+                posting.scopes.read(model.data, next);
+                counts.features.put(model.data.getLong(position), posting);
+            }
+            return counts;
+        }
+
+        /**
+         * Learn a conventional commit
+         */
+        void add(String type, String scope, long[] hashes) {
+            int typeId = types.id(type);
+            int scopeId = scopes.id(scope);
+            if (typeId < 0 || scopeId < 0) return;
+            commits++;
+            types.commits[typeId]++;
+            scopes.commits[scopeId]++;
+            for (long hash : hashes) {
+                Posting posting = features.computeIfAbsent(hash, key -> new Posting());
+                posting.types.add(typeId);
+                posting.scopes.add(scopeId);
+                types.featureTotals[typeId]++;
+                scopes.featureTotals[scopeId]++;
+            }
+        }
+
+        void setLastCommit(String lastCommit) {
+            this.lastCommit = lastCommit != null ? lastCommit : "";
+        }
+
+        String lastCommit() {
+            return lastCommit;
+        }
+
+        int commits() {
+            return commits;
+        }
+
+        /**
+         * Write the model to a temporary file next to the target and move it over the target, so a
+         * model being read is never seen half written. The target must not be in use by readers, e.g.
+         * a version reserved by {@link HistoryLearner} that is still empty.
+         */
+        void write(Path file) throws IOException {
+            ByteArrayOutputStream postingBytes = new ByteArrayOutputStream(features.size() * 16);
+            DataOutputStream postingOut = new DataOutputStream(postingBytes);
+            int slotCount = Integer.highestOneBit(Math.max(4, features.size() * 2 - 1)) * 2;
+            long[] slotHashes = new long[slotCount];
+            int[] slotOffsets = new int[slotCount];
+            for (Map.Entry<Long, Posting> entry : features.entrySet()) {
+                long hash = entry.getKey();
+                int slot = (int) hash & (slotCount - 1);
+                while (slotOffsets[slot] != 0) slot = (slot + 1) & (slotCount - 1);
+                slotHashes[slot] = hash;
+                slotOffsets[slot] = postingOut.size() + 1;
+                entry.getValue().types.write(postingOut);
+                entry.getValue().scopes.write(postingOut);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(postingOut.size() + slotCount * SLOT_BYTES + 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, lastCommit);
+            out.writeInt(commits);
+            out.writeInt(features.size());
+            types.write(out);
+            scopes.write(out);
+            out.writeInt(slotCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                out.writeLong(slotHashes[slot]);
+                out.writeInt(slotOffsets[slot]);
+            }
+            postingBytes.writeTo(out);
+            out.flush();
+
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, bytes.toByteArray());
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Labels of one kind with the commits and feature occurrences counted for each
+     */
+    private static final class LabelCounts {
+        final List<String> names = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+        int[] commits = new int[8];
+        long[] featureTotals = new long[8];
+
+        /**
+         * Id of a label, added if new; -1 if there are too many labels already
+         */
+        int id(String name) {
+            Integer id = ids.get(name);
+            if (id != null) return id;
+            if (names.size() == Counts.MAX_LABELS) return -1;
+            int added = names.size();
+            names.add(name);
+            ids.put(name, added);
+            if (added == commits.length) {
+                commits = Arrays.copyOf(commits, added * 2);
+                featureTotals = Arrays.copyOf(featureTotals, added * 2);
+            }
+            return added;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                writeString(out, names.get(i));
+                out.writeInt(commits[i]);
+                out.writeLong(featureTotals[i]);
+            }
+        }
+
+        /**
+         * Take over the labels of a model with their counts
+         */
+        void copy(Labels labels) {
+            for (int i = 0; i < labels.names.length; i++) {
+                int id = id(labels.names[i]);
+                commits[id] = labels.commits[i];
+                featureTotals[id] = labels.featureTotals[i];
+            }
+        }
+    }
+
+    /**
+     * Commits per label that had one feature, as parallel arrays of label ids and counts
+     */
+    private static final class Posting {
+        final Postings types = new Postings();
+        final Postings scopes = new Postings();
+    }
+
+    private static final class Postings {
+        private int[] labels = new int[2];
+        private int[] counts = new int[2];
+        private int size;
+
+        void add(int label) {
+            for (int i = 0; i < size; i++) {
+                if (labels[i] == label) {
+                    counts[i]++;
+                    return;
+                }
+            }
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            labels[size] = label;
+            counts[size++] = 1;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(size);
+            for (int i = 0; i < size; i++) {
+                out.writeShort(labels[i]);
+                out.writeInt(counts[i]);
+            }
+        }
+
+        /**
+         * Read a list written by {@link #write}; the position after it
+         */
+        int read(ByteBuffer data, int position) {
+            int listSize = data.getShort(position) & 0xffff;
+            position += 2;
+            labels = new int[Math.max(2, listSize)];
+            counts = new int[Math.max(2, listSize)];
+            for (int i = 0; i < listSize; i++, position += 6) {
+                labels[i] = data.getShort(position) & 0xffff;
+                counts[i] = data.getInt(position + 2);
+            }
+            size = listSize;
+            return position;
+        }
+    }
+}
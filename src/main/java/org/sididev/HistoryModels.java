@@ -0,0 +1,99 @@
+package org.sididev;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Project service holding the {@link HistoryModel} of the repository the project directory is in.
+ * The model file is mapped on first use. When there is none yet, or HEAD moved past the commit it was
+ * learned up to, it is learned in the background, one update at a time, and generations use it once
+ * written; they never wait for git.
+ */
+public final class HistoryModels {
+
+    private static final Logger LOG = Logger.getInstance(HistoryModels.class);
+
+    private final Project project;
+    private final ExecutorService executor = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "Smart Commit History", 1);
+    private final AtomicBoolean updating = new AtomicBoolean();
+    private volatile HistoryModel model;
+    // HEAD at the last failed update, not tried again until HEAD moves
+    private volatile String failedHead;
+
+    public HistoryModels(Project project) {
+        this.project = project;
+    }
+
+    public static HistoryModels getInstance(Project project) {
+        return project.getService(HistoryModels.class);
+    }
+
+    /**
+     * Model to predict with, or null if none was learned yet; starts an update if it is missing or stale
+     */
+    HistoryModel model(SmartCommitSettings settings) {
+        String basePath = project.getBasePath();
+        if (basePath == null) return null;
+        GitStagedChanges repository;
+        String head;
+        try {
+            repository = GitStagedChanges.open(Paths.get(basePath), Collections.emptyMap());
+            head = repository.head();
+        } catch (IOException e) {
+            return model;
+        }
+
+        HistoryModel current = model;
+        if (current == null) {
+            try {
+                current = HistoryModel.open(HistoryLearner.modelFile(repository));
+                model = current;
+            } catch (IOException e) {
+                // Not learned yet, or unreadable and learned again below
+            }
+        }
+        if (head != null && !head.equals(failedHead) && (current == null || !head.equals(current.lastCommit()))) {
+            update(repository, head, settings);
+        }
+        return current;
+    }
+
+    private void update(GitStagedChanges repository, String head, SmartCommitSettings settings) {
+        if (!updating.compareAndSet(false, true)) return;
+        HistoryLearner learner = new HistoryLearner(settings.getClassifier(),
+                settings.getState().historyModelMaxCommits);
+        executor.execute(() -> {
+            if (project.isDisposed()) {
+                updating.set(false);
+                return;
+            }
+            GenerationMetrics.Timer timer = GenerationMetrics.getInstance(project).start(GenerationMetrics.Stage.LEARN);
+            int commits = -1;
+            String outcome = "failed";
+            try {
+                HistoryModel updated = learner.update(repository, false);
+                if (updated != null) {
+                    model = updated;
+                    commits = updated.commits();
+                    outcome = "learned";
+                }
+            } catch (IOException e) {
+                LOG.info("Cannot learn the commit history of " + repository.workTree(), e);
+                failedHead = head;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                timer.stop(commits, outcome);
+                updating.set(false);
+            }
+        });
+    }
+}
@@ -0,0 +1,304 @@
+package org.sididev;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays the type and scope heuristics over the history of a repository and reports how often
+ * they agree with the conventional-commit headers that were actually written. Commits are streamed
+ * from {@code git log --name-status -z} by one reader thread and analyzed by worker threads through
+ * a bounded queue, so memory does not grow with the length of the history.
+ */
+final class HistoryReplay {
+
+    // Output format of the log: commit headers are "\1<hash>\2<subject>" tokens, followed by name-status tokens
+    static final String LOG_FORMAT = "--format=%x01%H%x02%s";
+    private static final char HEADER_MARK = '\1';
+    private static final char SUBJECT_MARK = '\2';
+
+    private static final Pattern CONVENTIONAL = Pattern.compile("^(\\w+)(?:\\(([^)]*)\\))?!?: ");
+    private static final int QUEUE_CAPACITY_PER_WORKER = 64;
+    private static final Commit END = new Commit(null, null);
+
+    private final PathClassifier classifier;
+    private final String root;
+    private final int workers;
+    private HistoryModel historyModel;
+
+    HistoryReplay(PathClassifier classifier, String root, int workers) {
+        this.classifier = classifier;
+        this.root = root;
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Score the predictions of a history model, falling back to the heuristics as generation does.
+     * Commits the model learned from score higher than new ones would.
+     */
+    HistoryReplay withHistoryModel(HistoryModel historyModel) {
+        this.historyModel = historyModel;
+        return this;
+    }
+
+    /**
+     * Replay the history printed by {@code git log} with the given extra arguments in the root directory
+     */
+    Report replay(List<String> logArguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.add("log");
+        command.add("--no-merges");
+        command.add("--name-status");
+        command.add("-z");
+        command.add(LOG_FORMAT);
+        command.addAll(logArguments);
+
+        Process git = new ProcessBuilder(command)
+                .directory(new File(root))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        Report report;
+        try (InputStream in = git.getInputStream()) {
+            report = replay(in);
+        }
+        int exitCode = git.waitFor();
+        if (exitCode != 0) {
+            throw new IOException("git log exited with code " + exitCode);
+        }
+        return report;
+    }
+
+    /**
+     * Replay log output in {@link #LOG_FORMAT}
+     */
+    Report replay(InputStream log) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        BlockingQueue<Commit> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY_PER_WORKER * workers);
+        NameStatusReader reader = new NameStatusReader(new BufferedInputStream(log, 256 * 1024), classifier, root);
+
+        Worker[] threads = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Worker(queue, reader);
+            threads[i].start();
+        }
+
+        try {
+            readCommits(reader, queue::put);
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                queue.put(END);
+            }
+        }
+
+        Report report = new Report();
+        for (Worker worker : threads) {
+            worker.join();
+            report.merge(worker.report);
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Read log output in {@link #LOG_FORMAT}, passing each commit to the sink once all its files were read
+     */
+    static void readCommits(NameStatusReader reader, CommitSink sink) throws IOException, InterruptedException {
+        Commit commit = null;
+        String token;
+        while ((token = reader.nextToken()) != null) {
+            // Name-status output of a commit is preceded by a newline
+            if (!token.isEmpty() && token.charAt(0) == '\n') token = token.substring(1);
+            if (token.isEmpty()) continue;
+
+            if (token.charAt(0) == HEADER_MARK) {
+                if (commit != null) sink.accept(commit);
+                int subject = token.indexOf(SUBJECT_MARK);
+                commit = subject < 0 ? new Commit(token.substring(1), "")
+                        : new Commit(token.substring(1, subject), token.substring(subject + 1));
+            } else if (commit != null) {
+                char status = token.charAt(0);
+                String path = reader.nextToken();
+                if ((status == 'R' || status == 'C') && path != null) {
+                    String renamed = reader.nextToken();
+                    if (renamed != null) path = renamed;
+                }
+                if (path != null) commit.add(status, path);
+            }
+        }
+        if (commit != null) sink.accept(commit);
+    }
+
+    interface CommitSink {
+        void accept(Commit commit) throws InterruptedException;
+    }
+
+    /**
+     * Type and scope of a conventional-commit header as {type, scope}, scope being "" when absent;
+     * null if the header does not follow the convention
+     */
+    static String[] parseHeader(String header) {
+        Matcher matcher = CONVENTIONAL.matcher(header);
+        if (!matcher.lookingAt()) return null;
+        String scope = matcher.group(2);
+        return new String[]{matcher.group(1).toLowerCase(Locale.ROOT),
+                scope != null ? scope.trim().toLowerCase(Locale.ROOT) : ""};
+    }
+
+    /**
+     * A commit with its changed files, kept as status letters and paths until a worker analyzes it
+     */
+    static final class Commit {
+        final String hash;
+        final String subject;
+        private char[] statuses = new char[8];
+        private String[] paths = new String[8];
+        private int size;
+
+        Commit(String hash, String subject) {
+            this.hash = hash;
+            this.subject = subject;
+        }
+
+        void add(char status, String path) {
+            if (size == paths.length) {
+                statuses = Arrays.copyOf(statuses, size * 2);
+                paths = Arrays.copyOf(paths, size * 2);
+            }
+            statuses[size] = status;
+            paths[size] = path;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        char status(int index) {
+            return statuses[index];
+        }
+
+        String path(int index) {
+            return paths[index];
+        }
+    }
+
+    private final class Worker extends Thread {
+        private final BlockingQueue<Commit> queue;
+        private final NameStatusReader analyzer;
+        private final CommitMessageBuilder builder = new CommitMessageBuilder(classifier)
+                .withHistoryModel(historyModel);
+        final Report report = new Report();
+
+        Worker(BlockingQueue<Commit> queue, NameStatusReader analyzer) {
+            super("smart-commit-replay");
+            setDaemon(true);
+            this.queue = queue;
+            this.analyzer = analyzer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Commit commit;
+                while ((commit = queue.take()) != END) {
+                    try {
+                        replay(commit);
+                    } catch (RuntimeException e) {
+                        report.failures++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void replay(Commit commit) {
+            report.commits++;
+            String[] actual = parseHeader(commit.subject);
+            if (actual == null || commit.size == 0) return;
+
+            ChangeStats stats = new ChangeStats();
+            for (int i = 0; i < commit.size; i++) {
+                stats.add(analyzer.analyze(commit.statuses[i], commit.paths[i]));
+            }
+            String[] generated = builder.determineTypeAndScope(stats, LineStats.EMPTY, root);
+            report.record(actual[0], actual[1], generated[0], generated[1]);
+        }
+    }
+
+    /**
+     * Agreement counts; workers fill their own and the results are merged at the end
+     */
+    static final class Report {
+        long commits;
+        long conventional;
+        long typeMatches;
+        long scoped;
+        long scopeMatches;
+        long failures;
+        long nanos;
+        // Counts of "actual -> generated" type pairs
+        final Map<String, long[]> typeConfusion = new HashMap<>();
+
+        void record(String actualType, String actualScope, String type, String scope) {
+            conventional++;
+            if (actualType.equals(type)) {
+                typeMatches++;
+            } else {
+                typeConfusion.computeIfAbsent(actualType + " -> " + type, key -> new long[1])[0]++;
+            }
+            if (!actualScope.isEmpty()) {
+                scoped++;
+                if (actualScope.equals(scope)) scopeMatches++;
+            }
+        }
+
+        void merge(Report other) {
+            commits += other.commits;
+            conventional += other.conventional;
+            typeMatches += other.typeMatches;
+            scoped += other.scoped;
+            scopeMatches += other.scopeMatches;
+            failures += other.failures;
+            other.typeConfusion.forEach((pair, count) -> typeConfusion.computeIfAbsent(pair, key -> new long[1])[0] += count[0]);
+        }
+
+        void print(PrintStream out, int topConfusions) {
+            double seconds = nanos / 1e9;
+            out.printf("Commits replayed:        %d in %.1f s (%.0f commits/s)%n",
+                    commits, seconds, seconds > 0 ? commits / seconds : 0.0);
+            out.printf("Conventional commits:    %d%n", conventional);
+            out.printf("Type agreement:          %s%n", ratio(typeMatches, conventional));
+            out.printf("Scope agreement:         %s (of %d commits with a scope)%n", ratio(scopeMatches, scoped), scoped);
+            if (failures > 0) {
+                out.printf("Failed to analyze:       %d%n", failures);
+            }
+
+            List<Map.Entry<String, long[]>> confusions = new ArrayList<>(typeConfusion.entrySet());
+            confusions.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+            if (!confusions.isEmpty()) {
+                out.println("Most frequent type mismatches (actual -> generated):");
+                for (int i = 0; i < Math.min(topConfusions, confusions.size()); i++) {
+                    out.printf("  %-24s %d%n", confusions.get(i).getKey(), confusions.get(i).getValue()[0]);
+                }
+            }
+        }
+
+        private static String ratio(long part, long total) {
+            return total == 0 ? "n/a" : String.format("%.1f%% (%d/%d)", 100.0 * part / total, part, total);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.sididev;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton over lowercase ASCII keywords.
+ * Each keyword contributes a bit to one or more output channels, and matching a text
+ * against a channel returns the union of the bits of all keywords found in it.
+ * Matching is case-insensitive, runs in a single pass and does not allocate.
+ */
+final class KeywordAutomaton {
+
+    private static final int ALPHABET = 128;
+
+    // Dense goto table: transitions[state * ALPHABET + c]
+    private final int[] transitions;
+    // outputs[channel][state]: bits of every keyword ending in this state, including via failure links
+    private final long[][] outputs;
+
+    private KeywordAutomaton(int[] transitions, long[][] outputs) {
+        this.transitions = transitions;
+        this.outputs = outputs;
+    }
+
+    /**
+     * Union of the bits of all keywords of the given channel occurring in the text
+     */
+    long match(CharSequence text, int channel) {
+        if (text == null) return 0L;
+
+        long[] out = outputs[channel];
+        long result = 0L;
+        int state = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            int c = lowerCase(text.charAt(i));
+            if (c >= ALPHABET) {
+                // Keywords are ASCII, so no match can span this character
+                state = 0;
+                continue;
+            }
+            state = transitions[state * ALPHABET + c];
+            result |= out[state];
+        }
+        return result;
+    }
+
+    private static int lowerCase(char c) {
+        if (c < ALPHABET) {
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    static class Builder {
+        private final int channels;
+        private final List<int[]> trie = new ArrayList<>();
+        private final List<long[]> trieOutputs = new ArrayList<>();
+
+        Builder(int channels) {
+            this.channels = channels;
+            newState();
+        }
+
+        /**
+         * Register a keyword; finding it in a text of the given channel reports the given bit
+         */
+        Builder add(String keyword, int channel, int bit) {
+            if (keyword == null || keyword.isEmpty()) {
+                throw new IllegalArgumentException("Keyword must not be empty");
+            }
+            if (bit < 0 || bit >= Long.SIZE) {
+                throw new IllegalArgumentException("Keyword bit out of range: " + bit);
+            }
+
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int c = lowerCase(keyword.charAt(i));
+                if (c >= ALPHABET) {
+                    throw new IllegalArgumentException("Keywords must be ASCII: " + keyword);
+                }
+                int next = trie.get(state)[c];
+                if (next < 0) {
+                    next = newState();
+                    trie.get(state)[c] = next;
+                }
+                state = next;
+            }
+            trieOutputs.get(state)[channel] |= 1L << bit;
+            return this;
+        }
+
+        KeywordAutomaton build() {
+            int stateCount = trie.size();
+            int[] transitions = new int[stateCount * ALPHABET];
+            long[][] outputs = new long[channels][stateCount];
+            int[] failure = new int[stateCount];
+
+            for (int state = 0; state < stateCount; state++) {
+                for (int channel = 0; channel < channels; channel++) {
+                    outputs[channel][state] = trieOutputs.get(state)[channel];
+                }
+            }
+
+            // Breadth-first construction of failure links, folded into a complete goto table
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            int[] root = trie.get(0);
+            for (int c = 0; c < ALPHABET; c++) {
+                int next = root[c];
+                if (next < 0) {
+                    transitions[c] = 0;
+                } else {
+                    transitions[c] = next;
+                    failure[next] = 0;
+                    queue.add(next);
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int channel = 0; channel < channels; channel++) {
+                    outputs[channel][state] |= outputs[channel][failure[state]];
+                }
+
+                int[] edges = trie.get(state);
+                for (int c = 0; c < ALPHABET; c++) {
+                    int next = edges[c];
+                    int fallback = transitions[failure[state] * ALPHABET + c];
+                    if (next < 0) {
+                        transitions[state * ALPHABET + c] = fallback;
+                    } else {
+                        transitions[state * ALPHABET + c] = next;
+                        failure[next] = fallback;
+                        queue.add(next);
+                    }
+                }
+            }
+
+            return new KeywordAutomaton(transitions, outputs);
+        }
+
+        private int newState() {
+            int[] edges = new int[ALPHABET];
+            Arrays.fill(edges, -1);
+            trie.add(edges);
+            trieOutputs.add(new long[channels]);
+            return trie.size() - 1;
+        }
+    }
+}
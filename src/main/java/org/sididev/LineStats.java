@@ -0,0 +1,119 @@
+package org.sididev;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Added and removed line counts of the changes whose content was compared within the budget.
+ * Files that were not compared (binary, too large, out of time) are simply absent.
+ */
+final class LineStats {
+
+    /** Shared instance for when lines were not counted; it cannot be changed */
+    static final LineStats EMPTY = new LineStats();
+
+    // {added, removed} by path
+    private final Map<String, int[]> files = new HashMap<>();
+    private long added;
+    private long removed;
+    private int skipped;
+    private int cached;
+
+    void put(String path, int added, int removed) {
+        checkMutable();
+        int[] previous = files.put(path, new int[]{added, removed});
+        if (previous != null) {
+            this.added -= previous[0];
+            this.removed -= previous[1];
+        }
+        this.added += added;
+        this.removed += removed;
+    }
+
+    void skip() {
+        checkMutable();
+        skipped++;
+    }
+
+    /**
+     * Note that the last file put or skipped was answered from the cache
+     */
+    void countCached() {
+        checkMutable();
+        cached++;
+    }
+
+    /**
+     * Add the counts of another instance, whose files are expected to be distinct from these
+     */
+    void addAll(LineStats other) {
+        checkMutable();
+        other.files.forEach((path, counts) -> put(path, counts[0], counts[1]));
+        skipped += other.skipped;
+        cached += other.cached;
+    }
+
+    /**
+     * Paths of the files compared
+     */
+    Set<String> paths() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    boolean has(String path) {
+        return path != null && files.containsKey(path);
+    }
+
+    int added(String path) {
+        int[] counts = path != null ? files.get(path) : null;
+        return counts != null ? counts[0] : 0;
+    }
+
+    int removed(String path) {
+        int[] counts = path != null ? files.get(path) : null;
+        return counts != null ? counts[1] : 0;
+    }
+
+    /**
+     * Added plus removed lines of a file, 0 if it was not compared
+     */
+    int churn(String path) {
+        int[] counts = path != null ? files.get(path) : null;
+        return counts != null ? (int) Math.min(Integer.MAX_VALUE, (long) counts[0] + counts[1]) : 0;
+    }
+
+    /**
+     * Number of files compared
+     */
+    int files() {
+        return files.size();
+    }
+
+    /**
+     * Number of files left out because they were binary, too large or the budget ran out
+     */
+    int skipped() {
+        return skipped;
+    }
+
+    /**
+     * Number of files, compared or skipped, whose counts came from the cache
+     */
+    int cached() {
+        return cached;
+    }
+
+    long added() {
+        return added;
+    }
+
+    long removed() {
+        return removed;
+    }
+
+    private void checkMutable() {
+        if (this == EMPTY) throw new UnsupportedOperationException("LineStats.EMPTY cannot be changed");
+    }
+}
@@ -0,0 +1,290 @@
+package org.sididev;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Line counts by path and revision pair, kept across IDE sessions in an append-only file in the
+ * system directory. Every record carries a checksum; a damaged tail is cut off on load and an
+ * unknown format version discards the file. The file is rewritten with the live entries only
+ * once it holds too many superseded records.
+ */
+public final class LineStatsCache {
+
+    private static final Logger LOG = Logger.getInstance(LineStatsCache.class);
+
+    private static final int MAGIC = 0x53434c53; // "SCLS"
+    // Bump whenever the record layout or the way lines are counted changes
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+    // Counts stored for files whose lines cannot be counted, e.g. binary ones
+    static final int UNCOUNTABLE = -1;
+
+    private final Path file;
+    private final int maxEntries;
+
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> entries;
+    private final List<Entry> pending = new ArrayList<>();
+    private boolean loaded;
+    private int records;
+
+    public LineStatsCache(Project project) {
+        this(PathManager.getSystemDir().resolve("smartCommit").resolve(project.getLocationHash()).resolve("line-stats.bin"),
+                DEFAULT_MAX_ENTRIES);
+    }
+
+    LineStatsCache(Path file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > LineStatsCache.this.maxEntries;
+            }
+        };
+    }
+
+    public static LineStatsCache getInstance(Project project) {
+        return project.getService(LineStatsCache.class);
+    }
+
+    /**
+     * Counts stored for the path at exactly these revisions: {added, removed}, or
+     * {@link #UNCOUNTABLE} twice; null when unknown
+     */
+    synchronized int[] get(String path, String beforeVersion, String afterVersion) {
+        ensureLoaded();
+        Entry entry = entries.get(path);
+        if (entry == null || !entry.before.equals(beforeVersion) || !entry.after.equals(afterVersion)) {
+            return null;
+        }
+        return new int[]{entry.added, entry.removed};
+    }
+
+    synchronized void put(String path, String beforeVersion, String afterVersion, int added, int removed) {
+        ensureLoaded();
+        Entry entry = new Entry(path, beforeVersion, afterVersion, added, removed);
+        Entry previous = entries.put(path, entry);
+        if (!entry.equals(previous)) {
+            pending.add(entry);
+        }
+    }
+
+    /**
+     * Append the entries stored since the last flush, compacting the file when it has grown too much
+     */
+    synchronized void flush() {
+        if (pending.isEmpty()) return;
+
+        try {
+            if (records + pending.size() > 2 * entries.size() + 1024) {
+                compact();
+            } else {
+                append(pending);
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot write line stats cache " + file, e);
+        }
+        pending.clear();
+    }
+
+    synchronized int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        try {
+            load();
+        } catch (IOException e) {
+            LOG.warn("Cannot read line stats cache " + file + ", starting empty", e);
+            entries.clear();
+            records = 0;
+            deleteQuietly();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.isRegularFile(file)) return;
+
+        long valid = HEADER_BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.info("Discarding line stats cache of another format: " + file);
+                deleteQuietly();
+                return;
+            }
+
+            byte[] payload = new byte[256];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_BYTES) break;
+                if (payload.length < length) payload = new byte[Math.max(length, payload.length * 2)];
+
+                Entry entry;
+                try {
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) break;
+                    entry = Entry.read(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                } catch (IOException e) {
+                    break;
+                }
+                entries.put(entry.path, entry);
+                records++;
+                valid += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            // Shorter than the header: treat as empty
+            deleteQuietly();
+            return;
+        }
+
+        // Drop a damaged or partially written tail so later appends follow the last good record
+        if (Files.size(file) > valid) {
+            LOG.info("Truncating damaged line stats cache " + file + " to " + valid + " bytes");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private void append(List<Entry> batch) throws IOException {
+        boolean created = !Files.exists(file);
+        if (created) {
+            Files.createDirectories(file.getParent());
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            if (created) writeHeader(out);
+            writeRecords(out, batch);
+        }
+        records += batch.size();
+    }
+
+    private void compact() throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<Entry> live = new ArrayList<>(entries.values());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            writeHeader(out);
+            writeRecords(out, live);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = live.size();
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void writeRecords(OutputStream stream, List<Entry> batch) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream record = new DataOutputStream(buffer);
+        CRC32 crc = new CRC32();
+        for (Entry entry : batch) {
+            buffer.reset();
+            try {
+                entry.write(record);
+            } catch (UTFDataFormatException e) {
+                // A string too long for the record format, e.g. a path over 64 KB: keep it in memory only
+                continue;
+            }
+            if (buffer.size() > MAX_RECORD_BYTES) continue;
+
+            crc.reset();
+            crc.update(buffer.toByteArray(), 0, buffer.size());
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+    }
+
+    private void deleteQuietly() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Cannot delete line stats cache " + file, e);
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final String before;
+        final String after;
+        final int added;
+        final int removed;
+
+        Entry(String path, String before, String after, int added, int removed) {
+            this.path = path;
+            this.before = before;
+            this.after = after;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path);
+            out.writeUTF(before);
+            out.writeUTF(after);
+            out.writeInt(added);
+            out.writeInt(removed);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry other = (Entry) o;
+            return added == other.added && removed == other.removed && path.equals(other.path)
+                    && before.equals(other.before) && after.equals(other.after);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, before, after);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.sididev;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.ByteBackedContentRevision;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.changes.CurrentContentRevision;
+import com.intellij.openapi.vcs.history.VcsRevisionNumber;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Counts added and removed lines of changes by comparing line hashes of both revisions,
+ * like a diff that ignores line order. Local files are streamed, or memory-mapped above
+ * {@link #MMAP_THRESHOLD}, so no revision is held as a String. Reading stops at a per-file and
+ * total byte limit and at a time budget; files beyond them are left out of the result, and files
+ * whose size is known to exceed the limit are left out before any revision is loaded.
+ * Counts are looked up in and stored to an optional {@link LineStatsCache} by revision pair.
+ */
+final class LineStatsReader {
+
+    static final int DEFAULT_BUDGET_MILLIS = 250;
+    static final int DEFAULT_MAX_FILE_BYTES = 8 << 20;
+    static final int DEFAULT_MAX_TOTAL_BYTES = 64 << 20;
+
+    static final int MMAP_THRESHOLD = 1 << 20;
+    private static final int BUFFER_SIZE = 8_192;
+    // Content with a NUL byte in its first bytes is treated as binary, like git does
+    private static final int BINARY_PROBE = 8_000;
+    // Lines hashed between time budget and cancellation checks
+    private static final int CHECK_STEP = 4_096;
+
+    private final long budgetNanos;
+    private final long maxFileBytes;
+    private final long maxTotalBytes;
+    private final LineStatsCache cache;
+
+    LineStatsReader() {
+        this(DEFAULT_BUDGET_MILLIS, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_TOTAL_BYTES, null);
+    }
+
+    /**
+     * @param cache counts of earlier runs by revision pair, or null to compare every file
+     */
+    LineStatsReader(long budgetMillis, long maxFileBytes, long maxTotalBytes, LineStatsCache cache) {
+        this.budgetNanos = Math.max(1, budgetMillis) * 1_000_000L;
+        this.maxFileBytes = maxFileBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.cache = cache;
+    }
+
+    LineStats read(Collection<Change> changes, ProgressIndicator indicator) {
+        LineStats stats = new LineStats();
+        long deadline = System.nanoTime() + budgetNanos;
+        // A single file may use a quarter of the budget, so one slow file cannot starve the rest
+        long fileBudget = Math.max(1, budgetNanos / 4);
+        long totalBytes = 0;
+
+        try {
+            for (Change change : changes) {
+                indicator.checkCanceled();
+                if (fromCache(change, stats)) {
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                if (now >= deadline || totalBytes >= maxTotalBytes) {
+                    stats.skip();
+                    continue;
+                }
+
+                Budget budget = new Budget(Math.min(deadline, now + fileBudget),
+                        Math.min(maxFileBytes, maxTotalBytes - totalBytes), indicator);
+                try {
+                    compare(change, budget, stats);
+                } catch (SkipException e) {
+                    if (e == SkipException.BINARY) store(change, LineStatsCache.UNCOUNTABLE, LineStatsCache.UNCOUNTABLE);
+                    stats.skip();
+                } catch (ProcessCanceledException e) {
+                    throw e;
+                } catch (IOException | VcsException | RuntimeException e) {
+                    stats.skip();
+                }
+                totalBytes += budget.bytes;
+            }
+        } finally {
+            if (cache != null) cache.flush();
+        }
+        return stats;
+    }
+
+    private boolean fromCache(Change change, LineStats stats) {
+        if (cache == null) return false;
+        String path = path(change);
+        String beforeVersion = version(change.getBeforeRevision());
+        String afterVersion = version(change.getAfterRevision());
+        if (path == null || beforeVersion == null || afterVersion == null) return false;
+
+        int[] counts = cache.get(path, beforeVersion, afterVersion);
+        if (counts == null) return false;
+        if (counts[0] == LineStatsCache.UNCOUNTABLE) {
+            stats.skip();
+        } else {
+            stats.put(path, counts[0], counts[1]);
+        }
+        stats.countCached();
+        return true;
+    }
+
+    private void store(Change change, int added, int removed) {
+        if (cache == null) return;
+        String path = path(change);
+        String beforeVersion = version(change.getBeforeRevision());
+        String afterVersion = version(change.getAfterRevision());
+        if (path != null && beforeVersion != null && afterVersion != null) {
+            cache.put(path, beforeVersion, afterVersion, added, removed);
+        }
+    }
+
+    private static String path(Change change) {
+        ContentRevision named = change.getAfterRevision() != null ? change.getAfterRevision() : change.getBeforeRevision();
+        return named != null ? named.getFile().getPath() : null;
+    }
+
+    /**
+     * Identifies the content of a revision: size and modification time of local files, otherwise
+     * the path and VCS revision number. Null when the content cannot be identified.
+     */
+    private static String version(ContentRevision revision) {
+        if (revision == null) return "";
+        try {
+            if (revision instanceof CurrentContentRevision) {
+                Path file = Paths.get(revision.getFile().getPath());
+                return "local:" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+            }
+            VcsRevisionNumber number = revision.getRevisionNumber();
+            String id = number != null ? number.asString() : null;
+            return id == null || id.isEmpty() ? null : revision.getFile().getPath() + "@" + id;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void compare(Change change, Budget budget, LineStats stats)
+            throws IOException, VcsException, SkipException {
+        ContentRevision before = change.getBeforeRevision();
+        ContentRevision after = change.getAfterRevision();
+        String path = path(change);
+        if (path == null) return;
+
+        // Check sizes before loading anything, the base revision may be expensive to load
+        long afterSize = after != null ? knownSize(after) : 0;
+        long beforeSize = before != null ? knownSize(before) : 0;
+        budget.charge(0, afterSize + (beforeSize > 0 ? beforeSize : afterSize));
+
+        LineCounts beforeLines = new LineCounts();
+        if (before != null) {
+            readLines(before, budget, beforeLines::add);
+        }
+
+        int[] added = new int[1];
+        if (after != null) {
+            readLines(after, budget, hash -> {
+                if (!beforeLines.take(hash)) added[0]++;
+            });
+        }
+
+        stats.put(path, added[0], beforeLines.remaining());
+        store(change, added[0], beforeLines.remaining());
+    }
+
+    private void readLines(ContentRevision revision, Budget budget, LineSink sink)
+            throws IOException, VcsException, SkipException {
+        LineHasher hasher = new LineHasher(sink, budget);
+
+        if (revision instanceof CurrentContentRevision) {
+            Path file = Paths.get(revision.getFile().getPath());
+            long size = Files.size(file);
+            budget.charge(size, size);
+            if (size >= MMAP_THRESHOLD) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    hasher.feed(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                }
+            } else {
+                try (InputStream in = Files.newInputStream(file)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    for (int read; (read = in.read(buffer)) > 0; ) {
+                        hasher.feed(ByteBuffer.wrap(buffer, 0, read));
+                    }
+                }
+            }
+        } else if (revision instanceof ByteBackedContentRevision) {
+            byte[] content = ((ByteBackedContentRevision) revision).getContentAsBytes();
+            if (content == null) return;
+            budget.charge(content.length, content.length);
+            hasher.feed(ByteBuffer.wrap(content));
+        } else {
+            String content = revision.getContent();
+            if (content == null) return;
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            budget.charge(bytes.length, bytes.length);
+            hasher.feed(ByteBuffer.wrap(bytes));
+        }
+        hasher.finish();
+    }
+
+    /**
+     * Size of a revision known without loading it: that of the local file, or for a VCS revision
+     * that of the file still at its path, as an estimate. 0 if unknown.
+     */
+    private static long knownSize(ContentRevision revision) throws IOException {
+        if (revision instanceof CurrentContentRevision) {
+            return Files.size(Paths.get(revision.getFile().getPath()));
+        }
+        VirtualFile file = revision.getFile().getVirtualFile();
+        return file != null && file.isValid() && !file.isDirectory() ? file.getLength() : 0;
+    }
+
+    private interface LineSink {
+        void line(long hash);
+    }
+
+    private static final class Budget {
+        private final long deadline;
+        private final long maxBytes;
+        private final ProgressIndicator indicator;
+        private long bytes;
+
+        Budget(long deadline, long maxBytes, ProgressIndicator indicator) {
+            this.deadline = deadline;
+            this.maxBytes = maxBytes;
+            this.indicator = indicator;
+        }
+
+        /**
+         * Account for read bytes, failing if they or an upcoming read of {@code size} bytes exceed the limit
+         */
+        void charge(long read, long size) throws SkipException {
+            if (bytes + Math.max(read, size) > maxBytes) throw SkipException.OVER_BUDGET;
+            bytes += read;
+        }
+
+        void check() throws SkipException {
+            indicator.checkCanceled();
+            if (System.nanoTime() >= deadline) throw SkipException.OVER_BUDGET;
+        }
+    }
+
+    /**
+     * FNV-1a hashes of lines, fed in chunks. Carriage returns are ignored so CRLF and LF lines match.
+     */
+    private static final class LineHasher {
+        private static final long OFFSET = 0xcbf29ce484222325L;
+        private static final long PRIME = 0x100000001b3L;
+
+        private final LineSink sink;
+        private final Budget budget;
+        private long hash = OFFSET;
+        private boolean pending;
+        private long position;
+        private int lines;
+
+        LineHasher(LineSink sink, Budget budget) {
+            this.sink = sink;
+            this.budget = budget;
+        }
+
+        void feed(ByteBuffer buffer) throws SkipException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == 0 && position < BINARY_PROBE) throw SkipException.BINARY;
+                position++;
+
+                if (b == '\n') {
+                    endLine();
+                } else if (b != '\r') {
+                    hash = (hash ^ (b & 0xff)) * PRIME;
+                    pending = true;
+                }
+            }
+        }
+
+        void finish() throws SkipException {
+            if (pending) endLine();
+        }
+
+        private void endLine() throws SkipException {
+            sink.line(hash);
+            hash = OFFSET;
+            pending = false;
+            if (++lines % CHECK_STEP == 0) budget.check();
+        }
+    }
+
+    /**
+     * Multiset of line hashes in an open-addressing table
+     */
+    private static final class LineCounts {
+        private long[] keys = new long[64];
+        private int[] counts = new int[64];
+        private int used;
+        private int remaining;
+
+        void add(long hash) {
+            if ((used + 1) * 2 > keys.length) grow();
+            int slot = slot(keys, counts, hash);
+            if (counts[slot] == 0 && keys[slot] != hash) {
+                keys[slot] = hash;
+                used++;
+            }
+            counts[slot]++;
+            remaining++;
+        }
+
+        /**
+         * Remove one occurrence of the hash, false if there is none left
+         */
+        boolean take(long hash) {
+            int slot = slot(keys, counts, hash);
+            if (keys[slot] != hash || counts[slot] == 0) return false;
+            counts[slot]--;
+            remaining--;
+            return true;
+        }
+
+        int remaining() {
+            return remaining;
+        }
+
+        // Slots are never freed, a slot with a zero count and a different key is empty
+        private static int slot(long[] keys, int[] counts, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) * 0x9E3779B9 >>> 1 & mask;
+            while (counts[slot] != 0 || keys[slot] != 0) {
+                if (keys[slot] == hash) return slot;
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new int[oldCounts.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) {
+                    int slot = slot(keys, counts, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+            used = 0;
+            for (int count : counts) {
+                if (count != 0) used++;
+            }
+        }
+    }
+
+    /**
+     * Stack-less signal that a file is left out because it is binary or over budget
+     */
+    private static final class SkipException extends Exception {
+        static final SkipException BINARY = new SkipException();
+        static final SkipException OVER_BUDGET = new SkipException();
+
+        private SkipException() {
+            super(null, null, false, false);
+        }
+    }
+}
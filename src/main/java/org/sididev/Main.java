@@ -1,17 +1,299 @@
 package org.sididev;
 
-//TIP To <b>Run</b> code, press <shortcut actionId="Run"/> or
-// click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line entry point, for terminals, CI and git hooks. Only IDE-independent classes are
+ * loaded on this path, which keeps startup short enough to run on every commit.
+ * <pre>
+ * smart-commit [--stdin] [--root DIR]              print a message for the staged changes
+ * smart-commit hook MSG_FILE [SOURCE [SHA]] [...]  prepare-commit-msg hook
+ * smart-commit learn [--rebuild] [--max-commits N] [--root DIR]
+ *                                                  learn types and scopes from the history
+ * smart-commit replay [--threads N] [--model FILE] [--stdin] [--root DIR] [-- GIT_LOG_ARGS...]
+ *                                                  score type and scope heuristics against the history
+ * </pre>
+ * Staged changes are read from the repository files by {@link GitStagedChanges}, falling back to
+ * running {@code git diff --cached} for repositories it does not support. With --stdin the output of
+ * {@code git diff --cached --name-status -z} is read from standard input instead. Once a
+ * {@link HistoryModel} was learned, messages for the index use it as stored; the learn command or
+ * the IDE bring it up to date.
+ */
 public class Main {
+
+    private static final String USAGE = "usage: smart-commit [--stdin] [--root DIR]\n"
+            + "       smart-commit hook MSG_FILE [SOURCE [SHA]] [--stdin] [--root DIR]\n"
+            + "       smart-commit learn [--rebuild] [--max-commits N] [--root DIR]\n"
+            + "       smart-commit replay [--threads N] [--model FILE] [--stdin] [--root DIR] [-- GIT_LOG_ARGS...]";
+
+    // Commit sources for which the message was written by the user or by git itself
+    private static final List<String> KEEP_MESSAGE_SOURCES = Arrays.asList("message", "merge", "squash", "commit");
+    // Line above which git keeps the message, e.g. when it appends the diff for commit -v
+    private static final String SCISSORS = "# ------------------------ >8 ------------------------";
+
     public static void main(String[] args) {
-        //TIP Press <shortcut actionId="ShowIntentionActions"/> with your caret at the highlighted text
-        // to see how IntelliJ IDEA suggests fixing it.
-        System.out.printf("Hello and welcome!");
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    static int run(String[] args, InputStream stdin, PrintStream out, PrintStream err) {
+        if (args.length > 0 && args[0].equals("replay")) {
+            return replay(args, stdin, out, err);
+        }
+        if (args.length > 0 && args[0].equals("learn")) {
+            return learn(args, out, err);
+        }
+
+        boolean hook = args.length > 0 && args[0].equals("hook");
+        boolean fromStdin = false;
+        String root = System.getProperty("user.dir");
+        String[] positional = new String[3];
+        int positionalCount = 0;
+
+        for (int i = hook ? 1 : 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--stdin":
+                    fromStdin = true;
+                    break;
+                case "--root":
+                    if (++i == args.length) {
+                        err.println(USAGE);
+                        return 2;
+                    }
+                    root = args[i];
+                    break;
+                case "-h":
+                case "--help":
+                    out.println(USAGE);
+                    return 0;
+                default:
+                    if (!hook || positionalCount == positional.length) {
+                        err.println(USAGE);
+                        return 2;
+                    }
+                    positional[positionalCount++] = args[i];
+            }
+        }
+        if (hook && positionalCount == 0) {
+            err.println(USAGE);
+            return 2;
+        }
+        root = root.replace(File.separatorChar, '/');
+
+        try {
+            if (!hook) {
+                String message = generate(fromStdin ? stdin : null, root);
+                out.println(message != null ? message : "chore: no staged changes found");
+                return 0;
+            }
+
+            if (positional[1] != null && KEEP_MESSAGE_SOURCES.contains(positional[1])) {
+                return 0;
+            }
+            prepareCommitMessage(Paths.get(positional[0]), fromStdin ? stdin : null, root);
+            return 0;
+        } catch (IOException | InterruptedException e) {
+            err.println("smart-commit: " + e.getMessage());
+            // Never block a commit because no message could be suggested
+            return hook ? 0 : 1;
+        } catch (RuntimeException e) {
+            if (!hook) throw e;
+            err.println("smart-commit: no message suggested: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * Batch mode: replay the history of the repository, see {@link HistoryReplay}
+     */
+    private static int replay(String[] args, InputStream stdin, PrintStream out, PrintStream err) {
+        boolean fromStdin = false;
+        String root = System.getProperty("user.dir");
+        int threads = Runtime.getRuntime().availableProcessors();
+        String model = null;
+        List<String> logArguments = new ArrayList<>();
+
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--")) {
+                logArguments.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            }
+            try {
+                switch (args[i]) {
+                    case "--stdin":
+                        fromStdin = true;
+                        break;
+                    case "--root":
+                        root = args[++i];
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--model":
+                        model = args[++i];
+                        break;
+                    default:
+                        err.println(USAGE);
+                        return 2;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                err.println(USAGE);
+                return 2;
+            }
+        }
+        root = root.replace(File.separatorChar, '/');
+
+        try {
+            HistoryReplay replay = new HistoryReplay(PathClassifier.defaults(), root, threads)
+                    .withHistoryModel(model != null ? HistoryModel.open(Paths.get(model)) : null);
+            HistoryReplay.Report report = fromStdin ? replay.replay(stdin) : replay.replay(logArguments);
+            report.print(out, 10);
+            return 0;
+        } catch (IOException | InterruptedException e) {
+            err.println("smart-commit: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Learn the history of the repository, or the commits since it was last learned, see {@link HistoryLearner}
+     */
+    private static int learn(String[] args, PrintStream out, PrintStream err) {
+        boolean rebuild = false;
+        String root = System.getProperty("user.dir");
+        int maxCommits = HistoryLearner.DEFAULT_MAX_COMMITS;
+
+        for (int i = 1; i < args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "--rebuild":
+                        rebuild = true;
+                        break;
+                    case "--root":
+                        root = args[++i];
+                        break;
+                    case "--max-commits":
+                        maxCommits = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        err.println(USAGE);
+                        return 2;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                err.println(USAGE);
+                return 2;
+            }
+        }
+
+        try {
+            GitStagedChanges repository = GitStagedChanges.open(Paths.get(root), System.getenv());
+            HistoryModel model = new HistoryLearner(PathClassifier.defaults(), maxCommits).update(repository, rebuild);
+            if (model == null) {
+                out.println("No commits to learn from");
+            } else {
+                out.printf("Learned %d conventional commits up to %s into %s%n",
+                        model.commits(), model.lastCommit(), HistoryLearner.modelFile(repository));
+            }
+            return 0;
+        } catch (IOException | InterruptedException e) {
+            err.println("smart-commit: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Put a generated message in front of the commit message file, unless it already has content
+     */
+    private static void prepareCommitMessage(Path messageFile, InputStream nameStatus, String root)
+            throws IOException, InterruptedException {
+        String existing = Files.exists(messageFile)
+                ? new String(Files.readAllBytes(messageFile), StandardCharsets.UTF_8) : "";
+        for (String line : existing.split("\n", -1)) {
+            // Like git's cleanup, ignore everything below the scissors line, e.g. the diff of commit -v
+            if (line.equals(SCISSORS)) break;
+            if (!line.trim().isEmpty() && !line.startsWith("#")) return;
+        }
+
+        String message = generate(nameStatus, root);
+        if (message == null) return;
+
+        Files.write(messageFile, (message + "\n" + existing).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Message for the staged changes, or null if nothing is staged
+     *
+     * @param nameStatus name-status output to read, or null to read the repository of the root directory
+     */
+    static String generate(InputStream nameStatus, String root) throws IOException, InterruptedException {
+        if (nameStatus != null) {
+            return generate(nameStatus, root, PathClassifier.defaults());
+        }
+
+        try {
+            return generateFromIndex(root, PathClassifier.defaults());
+        } catch (IOException e) {
+            // Not supported without git, or not readable right now
+        }
+
+        Process git = new ProcessBuilder("git", "diff", "--cached", "--name-status", "-z")
+                .directory(new File(root))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String message;
+        try (InputStream in = git.getInputStream()) {
+            message = generate(in, root, PathClassifier.defaults());
+        }
+        int exitCode = git.waitFor();
+        if (exitCode != 0) {
+            throw new IOException("git diff exited with code " + exitCode);
+        }
+        return message;
+    }
+
+    private static String generateFromIndex(String root, PathClassifier classifier) throws IOException {
+        GitStagedChanges repository = GitStagedChanges.open(Paths.get(root), System.getenv());
+        String workTree = repository.workTree().toString().replace(File.separatorChar, '/');
+        NameStatusReader analyzer = new NameStatusReader(InputStream.nullInputStream(), classifier, workTree);
+        ChangeSummary summary = new ChangeSummary(ChangeSummary.DEFAULT_ENTRIES_PER_OPERATION).withBasePath(workTree);
+        repository.read((status, path, previousPath) -> summary.accept(analyzer.analyze(status, path, previousPath)),
+                new RenameDetector());
+        if (summary.size() == 0) {
+            return null;
+        }
+        return new CommitMessageBuilder(classifier)
+                .withHistoryModel(historyModel(repository))
+                .buildMessage(summary);
+    }
+
+    /**
+     * Model stored by the learn command or the IDE, read as it is; null if none was learned. It is not
+     * updated here: HEAD moves with every commit, so the hook would run git log and write a model each time.
+     */
+    private static HistoryModel historyModel(GitStagedChanges repository) {
+        try {
+            return HistoryModel.open(HistoryLearner.modelFile(repository));
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-        for (int i = 1; i <= 5; i++) {
-            //TIP Press <shortcut actionId="Debug"/> to start debugging your code. We have set one <icon src="AllIcons.Debugger.Db_set_breakpoint"/> breakpoint
-            // for you, but you can always add more by pressing <shortcut actionId="ToggleLineBreakpoint"/>.
-            System.out.println("i = " + i);
+    private static String generate(InputStream nameStatus, String root, PathClassifier classifier) throws IOException {
+        ChangeSummary summary = new ChangeSummary(ChangeSummary.DEFAULT_ENTRIES_PER_OPERATION).withBasePath(root);
+        new NameStatusReader(new BufferedInputStream(nameStatus, 64 * 1024), classifier, root).readAll(summary);
+        if (summary.size() == 0) {
+            return null;
         }
+        return new CommitMessageBuilder(classifier).buildMessage(summary);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+package org.sididev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A commit message template compiled into an array of segments. Templates are plain text with
+ * placeholders such as {@code {type}}; a placeholder written with a capital first letter, such as
+ * {@code {Verb}}, capitalizes its value. Text in square brackets is an optional section, left out
+ * when a placeholder directly inside it is empty, so {@code {type}[({scope})]: {description}} drops
+ * the parentheses when there is no scope. A backslash escapes the next character.
+ * Rendering appends straight to the caller's buffer in one pass over the segments.
+ */
+final class MessageTemplate {
+
+    /**
+     * Values a template can refer to; which ones are set depends on where the template is used
+     */
+    enum Placeholder {
+        /** Commit type, e.g. "feat" */
+        TYPE,
+        /** Commit scope, possibly empty */
+        SCOPE,
+        /** The short description of the change */
+        DESCRIPTION,
+        /** Action of the change, e.g. "add" */
+        VERB,
+        /** What was changed, e.g. "Java class" for a file or "Java implementation" for several */
+        KIND,
+        /** What the file is part of, e.g. "API endpoint" in a description or "API layer" in the body */
+        AREA,
+        /** Context of a single file whose area is not described, e.g. "style" in "add style stylesheet" */
+        QUALIFIER,
+        /** Id of the file context, e.g. "api" */
+        CONTEXT,
+        /** File name */
+        FILE,
+        /** Path of the file from the project root */
+        PATH,
+        /** Number of changed files */
+        COUNT,
+        /** Changed declarations of a file, e.g. "add Invoice.round and update Invoice.total" */
+        SYMBOLS;
+
+        static final Placeholder[] VALUES = values();
+
+        final String id = name().toLowerCase(Locale.ROOT);
+
+        int bit() {
+            return 1 << ordinal();
+        }
+
+        static int bits(Placeholder... placeholders) {
+            int bits = 0;
+            for (Placeholder placeholder : placeholders) bits |= placeholder.bit();
+            return bits;
+        }
+    }
+
+    private static final byte LITERAL = 0;
+    private static final byte VALUE = 1;
+    private static final byte CAPITALIZED_VALUE = 2;
+    private static final byte SECTION = 3;
+
+    // Per segment: its kind, the literal text, the placeholder ordinal or for a section the segment
+    // after its end, and for a section the placeholders that must be non-empty to render it
+    private final byte[] kinds;
+    private final String[] texts;
+    private final int[] arguments;
+    private final int[] required;
+    // Placeholders anywhere in the template
+    private final int used;
+
+    private MessageTemplate(byte[] kinds, String[] texts, int[] arguments, int[] required, int used) {
+        this.used = used;
+        this.kinds = kinds;
+        this.texts = texts;
+        this.arguments = arguments;
+        this.required = required;
+    }
+
+    /**
+     * @param allowed bits of the placeholders available where the template is used
+     * @throws IllegalArgumentException if the template is malformed or refers to an unavailable placeholder
+     */
+    static MessageTemplate compile(String source, int allowed) {
+        Segments segments = new Segments();
+        StringBuilder literal = new StringBuilder();
+        // Open sections as segment indexes, and the placeholders directly inside each
+        int[] sections = new int[8];
+        int[] sectionRequired = new int[8];
+        int depth = 0;
+
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                if (++i == source.length()) throw new IllegalArgumentException("Dangling '\\' in " + source);
+                literal.append(source.charAt(i));
+            } else if (c == '{') {
+                int end = source.indexOf('}', i);
+                if (end < 0) throw new IllegalArgumentException("Unclosed placeholder in " + source);
+                String name = source.substring(i + 1, end);
+                Placeholder placeholder = placeholder(name);
+                if (placeholder == null || (allowed & placeholder.bit()) == 0) {
+                    throw new IllegalArgumentException("Unknown placeholder {" + name + "} in " + source);
+                }
+                segments.literal(literal);
+                boolean capitalized = Character.isUpperCase(name.charAt(0));
+                segments.add(capitalized ? CAPITALIZED_VALUE : VALUE, null, placeholder.ordinal());
+                segments.used |= placeholder.bit();
+                if (depth > 0) sectionRequired[depth - 1] |= placeholder.bit();
+                i = end;
+            } else if (c == '[') {
+                segments.literal(literal);
+                if (depth == sections.length) {
+                    sections = Arrays.copyOf(sections, depth * 2);
+                    sectionRequired = Arrays.copyOf(sectionRequired, depth * 2);
+                }
+                sections[depth] = segments.add(SECTION, null, 0);
+                sectionRequired[depth++] = 0;
+            } else if (c == ']') {
+                if (depth == 0) throw new IllegalArgumentException("Unopened ']' in " + source);
+                segments.literal(literal);
+                depth--;
+                segments.arguments.set(sections[depth], segments.size());
+                segments.required.set(sections[depth], sectionRequired[depth]);
+            } else if (c == '}') {
+                throw new IllegalArgumentException("Unopened '}' in " + source);
+            } else {
+                literal.append(c);
+            }
+        }
+        if (depth > 0) throw new IllegalArgumentException("Unclosed '[' in " + source);
+        segments.literal(literal);
+        return segments.toTemplate();
+    }
+
+    /**
+     * Placeholder with the given id, or with its id capitalized; null if there is none
+     */
+    private static Placeholder placeholder(String name) {
+        if (name.isEmpty()) return null;
+        for (Placeholder placeholder : Placeholder.VALUES) {
+            String id = placeholder.id;
+            if (name.length() == id.length() && Character.toLowerCase(name.charAt(0)) == id.charAt(0)
+                    && name.regionMatches(1, id, 1, id.length() - 1)) {
+                return placeholder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the template refers to the placeholder, so its value needs to be computed
+     */
+    boolean uses(Placeholder placeholder) {
+        return (used & placeholder.bit()) != 0;
+    }
+
+    /**
+     * Append the template with the given values, indexed by placeholder ordinal; null counts as empty
+     */
+    StringBuilder render(StringBuilder out, CharSequence[] values) {
+        int i = 0;
+        while (i < kinds.length) {
+            switch (kinds[i]) {
+                case LITERAL:
+                    out.append(texts[i]);
+                    i++;
+                    break;
+                case VALUE:
+                    CharSequence value = values[arguments[i]];
+                    if (value != null) out.append(value);
+                    i++;
+                    break;
+                case CAPITALIZED_VALUE:
+                    CharSequence word = values[arguments[i]];
+                    if (word != null && word.length() > 0) {
+                        out.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+                    }
+                    i++;
+                    break;
+                default:
+                    i = present(values, required[i]) ? i + 1 : arguments[i];
+            }
+        }
+        return out;
+    }
+
+    private static boolean present(CharSequence[] values, int placeholders) {
+        for (int bits = placeholders; bits != 0; bits &= bits - 1) {
+            CharSequence value = values[Integer.numberOfTrailingZeros(bits)];
+            if (value == null || value.length() == 0) return false;
+        }
+        return true;
+    }
+
+    private static final class Segments {
+        final List<Byte> kinds = new ArrayList<>();
+        final List<String> texts = new ArrayList<>();
+        final List<Integer> arguments = new ArrayList<>();
+        final List<Integer> required = new ArrayList<>();
+        int used;
+
+        int add(byte kind, String text, int argument) {
+            kinds.add(kind);
+            texts.add(text);
+            arguments.add(argument);
+            required.add(0);
+            return kinds.size() - 1;
+        }
+
+        /**
+         * Add the pending literal text, if any, and clear it
+         */
+        void literal(StringBuilder text) {
+            if (text.length() == 0) return;
+            add(LITERAL, text.toString(), 0);
+            text.setLength(0);
+        }
+
+        int size() {
+            return kinds.size();
+        }
+
+        MessageTemplate toTemplate() {
+            int size = kinds.size();
+            byte[] kindArray = new byte[size];
+            int[] argumentArray = new int[size];
+            int[] requiredArray = new int[size];
+            for (int i = 0; i < size; i++) {
+                kindArray[i] = kinds.get(i);
+                argumentArray[i] = arguments.get(i);
+                requiredArray[i] = required.get(i);
+            }
+            return new MessageTemplate(kindArray, texts.toArray(new String[0]), argumentArray, requiredArray, used);
+        }
+    }
+}
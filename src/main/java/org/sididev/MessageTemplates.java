@@ -0,0 +1,102 @@
+package org.sididev;
+
+import org.sididev.MessageTemplate.Placeholder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The templates a commit message is assembled from, compiled once and shared by every message
+ * built with them. Invalid templates are replaced by their default and reported by {@link #errors()}.
+ */
+final class MessageTemplates {
+
+    static final String DEFAULT_HEADER = "{type}[({scope})]: {description}";
+    static final String DEFAULT_FILE_DESCRIPTION = "{verb}[ {qualifier}] {kind}[ {area}]";
+    static final String DEFAULT_FILES_DESCRIPTION = "{verb} {kind}";
+    static final String DEFAULT_BODY_FILE = "{file}[ ({area})]";
+    static final String DEFAULT_SYMBOLS_DESCRIPTION = "{symbols}[ in {file}]";
+
+    static final int HEADER_PLACEHOLDERS = Placeholder.bits(
+            Placeholder.TYPE, Placeholder.SCOPE, Placeholder.DESCRIPTION, Placeholder.COUNT);
+    static final int FILE_PLACEHOLDERS = Placeholder.bits(Placeholder.VERB, Placeholder.KIND, Placeholder.AREA,
+            Placeholder.QUALIFIER, Placeholder.CONTEXT, Placeholder.FILE, Placeholder.PATH);
+    static final int FILES_PLACEHOLDERS = Placeholder.bits(
+            Placeholder.VERB, Placeholder.KIND, Placeholder.CONTEXT, Placeholder.COUNT);
+    static final int SYMBOLS_PLACEHOLDERS = FILE_PLACEHOLDERS | Placeholder.SYMBOLS.bit();
+
+    static final MessageTemplates DEFAULT = compile(DEFAULT_HEADER, DEFAULT_FILE_DESCRIPTION,
+            DEFAULT_FILES_DESCRIPTION, DEFAULT_BODY_FILE, DEFAULT_SYMBOLS_DESCRIPTION);
+
+    /** First line: type, scope and short description */
+    final MessageTemplate header;
+    /** Short description of a single changed file */
+    final MessageTemplate fileDescription;
+    /** Short description of several changed files */
+    final MessageTemplate filesDescription;
+    /** A file listed in the body, before its changed lines */
+    final MessageTemplate bodyFile;
+    /** Short description of a single changed file whose changed declarations are known */
+    final MessageTemplate symbolsDescription;
+    // The configured templates, including invalid ones
+    private final String[] sources;
+    private final List<String> errors;
+
+    private MessageTemplates(String[] sources, MessageTemplate header, MessageTemplate fileDescription,
+                             MessageTemplate filesDescription, MessageTemplate bodyFile,
+                             MessageTemplate symbolsDescription, List<String> errors) {
+        this.sources = sources;
+        this.header = header;
+        this.fileDescription = fileDescription;
+        this.filesDescription = filesDescription;
+        this.bodyFile = bodyFile;
+        this.symbolsDescription = symbolsDescription;
+        this.errors = errors;
+    }
+
+    /**
+     * Compile the templates; null or empty ones use the default
+     */
+    static MessageTemplates compile(String header, String fileDescription, String filesDescription, String bodyFile,
+                                    String symbolsDescription) {
+        List<String> errors = new ArrayList<>();
+        return new MessageTemplates(
+                new String[]{header, fileDescription, filesDescription, bodyFile, symbolsDescription},
+                compile(header, DEFAULT_HEADER, HEADER_PLACEHOLDERS, errors),
+                compile(fileDescription, DEFAULT_FILE_DESCRIPTION, FILE_PLACEHOLDERS, errors),
+                compile(filesDescription, DEFAULT_FILES_DESCRIPTION, FILES_PLACEHOLDERS, errors),
+                compile(bodyFile, DEFAULT_BODY_FILE, FILE_PLACEHOLDERS, errors),
+                compile(symbolsDescription, DEFAULT_SYMBOLS_DESCRIPTION, SYMBOLS_PLACEHOLDERS, errors),
+                errors.isEmpty() ? Collections.emptyList() : errors);
+    }
+
+    private static MessageTemplate compile(String source, String defaultSource, int placeholders, List<String> errors) {
+        if (source != null && !source.isEmpty()) {
+            try {
+                return MessageTemplate.compile(source, placeholders);
+            } catch (IllegalArgumentException e) {
+                errors.add(e.getMessage());
+            }
+        }
+        return MessageTemplate.compile(defaultSource, placeholders);
+    }
+
+    /**
+     * Whether these templates were compiled from the given sources, so they can be reused for them
+     */
+    boolean compiledFrom(String header, String fileDescription, String filesDescription, String bodyFile,
+                         String symbolsDescription) {
+        return Objects.equals(sources[0], header) && Objects.equals(sources[1], fileDescription)
+                && Objects.equals(sources[2], filesDescription) && Objects.equals(sources[3], bodyFile)
+                && Objects.equals(sources[4], symbolsDescription);
+    }
+
+    /**
+     * Why configured templates were replaced by their default
+     */
+    List<String> errors() {
+        return errors;
+    }
+}
@@ -0,0 +1,111 @@
+package org.sididev;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.module.ModuleManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project service indexing the content roots of all modules, so generations can derive the scope
+ * from the module structure. The index is collected in a single read action on first use and
+ * kept until the project roots change; resolving files against it needs no read action at all.
+ * Must be used from background threads, since building the index takes a read action.
+ */
+public final class ModuleScopeIndex implements Disposable {
+
+    private final Project project;
+
+    // Incremented on every roots change, so an index collected during one is not used afterwards
+    private final AtomicInteger rootsVersion = new AtomicInteger();
+    private volatile Index index;
+
+    // Scopes derived from the index with the last mapping; guarded by this
+    private Index scopesIndex;
+    private Map<String, String> scopesMapping;
+    private ModuleScopes scopes;
+
+    public ModuleScopeIndex(Project project) {
+        this.project = project;
+        project.getMessageBus().connect(this).subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(ModuleRootEvent event) {
+                rootsVersion.incrementAndGet();
+                index = null;
+            }
+        });
+    }
+
+    public static ModuleScopeIndex getInstance(Project project) {
+        return project.getService(ModuleScopeIndex.class);
+    }
+
+    /**
+     * Scopes of the current module structure, module names mapped with the given mapping
+     * as described in {@link ModuleScopes#scopeOf}
+     */
+    ModuleScopes scopes(Map<String, String> mapping) {
+        Index current = index;
+        int version = rootsVersion.get();
+        if (current == null || current.version != version) {
+            current = ReadAction.compute(() -> collect(version));
+            index = current;
+        }
+
+        synchronized (this) {
+            if (scopes == null || scopesIndex != current || !scopesMapping.equals(mapping)) {
+                String[] rootScopes = new String[current.modules.length];
+                for (int i = 0; i < rootScopes.length; i++) {
+                    rootScopes[i] = ModuleScopes.scopeOf(current.modules[i], project.getName(), mapping);
+                }
+                scopes = new ModuleScopes(current.roots, rootScopes);
+                scopesIndex = current;
+                scopesMapping = new HashMap<>(mapping);
+            }
+            return scopes;
+        }
+    }
+
+    private Index collect(int version) {
+        List<String> roots = new ArrayList<>();
+        List<String> modules = new ArrayList<>();
+        for (Module module : ModuleManager.getInstance(project).getModules()) {
+            if (module.isDisposed()) continue;
+            for (VirtualFile root : ModuleRootManager.getInstance(module).getContentRoots()) {
+                roots.add(root.getPath());
+                modules.add(module.getName());
+            }
+        }
+        return new Index(version, roots.toArray(new String[0]), modules.toArray(new String[0]));
+    }
+
+    @Override
+    public void dispose() {
+        index = null;
+    }
+
+    /**
+     * Content roots and the name of the module of each
+     */
+    private static final class Index {
+        final int version;
+        final String[] roots;
+        final String[] modules;
+
+        Index(int version, String[] roots, String[] modules) {
+            this.version = version;
+            this.roots = roots;
+            this.modules = modules;
+        }
+    }
+}
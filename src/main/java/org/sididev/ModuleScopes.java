@@ -0,0 +1,118 @@
+package org.sididev;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content roots of the project modules with the scope each one stands for; an immutable snapshot
+ * built by {@link ModuleScopeIndex}. Changed files are attributed to the innermost content root
+ * containing them by looking the roots up in the {@link PathTrie} of the changeset, so resolving
+ * a changeset costs one lookup per content root instead of one per file.
+ */
+final class ModuleScopes {
+
+    static final ModuleScopes NONE = new ModuleScopes(new String[0], new String[0]);
+
+    // Gradle source set modules are named <project>.<module>.<source set>
+    private static final String[] SOURCE_SETS = {"main", "test", "testFixtures", "integrationTest", "jmh"};
+
+    // Content roots sorted by path, the scope of each ("" for none) and the innermost root containing each, or -1
+    private final String[] roots;
+    private final String[] scopes;
+    private final int[] enclosing;
+
+    /**
+     * @param roots  content root paths, separated by '/'
+     * @param scopes scope of the module of each root, "" for none
+     */
+    ModuleScopes(String[] roots, String[] scopes) {
+        // Sorted with '/' first, so a root is directly followed by the roots inside it
+        String[] keys = new String[roots.length];
+        Integer[] order = new Integer[roots.length];
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = roots[i].replace('/', '\0');
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+
+        this.roots = new String[roots.length];
+        this.scopes = new String[roots.length];
+        for (int i = 0; i < order.length; i++) {
+            this.roots[i] = roots[order[i]];
+            this.scopes[i] = scopes[order[i]];
+        }
+
+        // The roots containing the current one form a stack
+        enclosing = new int[roots.length];
+        int[] stack = new int[roots.length];
+        int top = 0;
+        for (int i = 0; i < this.roots.length; i++) {
+            while (top > 0 && !contains(this.roots[stack[top - 1]], this.roots[i])) top--;
+            enclosing[i] = top > 0 ? stack[top - 1] : -1;
+            stack[top++] = i;
+        }
+    }
+
+    /**
+     * Scope of the module holding more than half of the counted files, or null if no module does
+     */
+    String scope(PathTrie paths) {
+        int total = paths.count(PathTrie.ROOT);
+        if (roots.length == 0 || total <= 0) return null;
+
+        int[] below = new int[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            int node = paths.find(roots[i]);
+            below[i] = node != PathTrie.NONE ? paths.count(node) : 0;
+        }
+        // Files of nested roots belong to those, not to the roots around them
+        int[] own = below.clone();
+        for (int i = 0; i < roots.length; i++) {
+            if (enclosing[i] >= 0) own[enclosing[i]] -= below[i];
+        }
+
+        Map<String, int[]> files = new HashMap<>();
+        for (int i = 0; i < roots.length; i++) {
+            if (own[i] > 0 && !scopes[i].isEmpty()) {
+                int[] count = files.computeIfAbsent(scopes[i], scope -> new int[1]);
+                count[0] += own[i];
+                if (count[0] > total / 2) return scopes[i];
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return roots.length;
+    }
+
+    /**
+     * Scope for a module: the mapped value when the mapping has the module name, otherwise its last
+     * dotted part once a Gradle source set suffix is dropped, mapped again if the mapping has it.
+     * Empty for the root module of the project.
+     */
+    static String scopeOf(String moduleName, String projectName, Map<String, String> mapping) {
+        String mapped = mapping.get(moduleName);
+        if (mapped != null) return mapped.trim();
+
+        String name = moduleName;
+        int dot = name.lastIndexOf('.');
+        if (dot > 0 && Arrays.asList(SOURCE_SETS).contains(name.substring(dot + 1))) {
+            name = name.substring(0, dot);
+        }
+        if (name.equals(projectName)) return "";
+        dot = name.lastIndexOf('.');
+        if (dot >= 0) name = name.substring(dot + 1);
+
+        mapped = mapping.get(name);
+        if (mapped != null) return mapped.trim();
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean contains(String root, String path) {
+        return path.length() > root.length() && path.startsWith(root)
+                && (root.endsWith("/") || path.charAt(root.length()) == '/');
+    }
+}
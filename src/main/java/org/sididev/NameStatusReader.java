@@ -0,0 +1,114 @@
+package org.sididev;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Streams {@code git diff --name-status -z} output into analyzed {@link FileChange}s without the IDE.
+ * Entries are a status token followed by one path, or two for renames and copies; the new path is used,
+ * as the IDE analysis prefers the after revision, and the old path of a rename is kept as the previous one.
+ * The stream is read byte by byte and should be buffered.
+ */
+final class NameStatusReader {
+
+    private final InputStream in;
+    private final PathClassifier classifier;
+    // Repository root with a trailing slash, prepended so paths look like the IDE's absolute ones
+    private final String rootPrefix;
+
+    private byte[] token = new byte[256];
+    private int tokenLength;
+    private boolean eof;
+
+    NameStatusReader(InputStream in, PathClassifier classifier, String root) {
+        this.in = in;
+        this.classifier = classifier;
+        this.rootPrefix = root == null || root.isEmpty() ? "" : root.endsWith("/") ? root : root + "/";
+    }
+
+    /**
+     * Push every remaining entry to the sink
+     */
+    void readAll(Consumer<FileChange> sink) throws IOException {
+        FileChange fc;
+        while ((fc = next()) != null) {
+            sink.accept(fc);
+        }
+    }
+
+    /**
+     * Next entry, or null at the end of the stream
+     */
+    FileChange next() throws IOException {
+        String status = nextToken();
+        while (status != null && status.isEmpty()) {
+            status = nextToken();
+        }
+        if (status == null) return null;
+
+        char letter = status.charAt(0);
+        String path = nextToken();
+        String previousPath = null;
+        if (letter == 'R' || letter == 'C') {
+            String renamed = nextToken();
+            if (renamed != null) {
+                previousPath = path;
+                path = renamed;
+            }
+        }
+        if (path == null) return null;
+
+        return analyze(letter, path, letter == 'R' ? previousPath : null);
+    }
+
+    /**
+     * Analyze one entry like {@link ChangeAnalyzer#analyzeChange} does for an IDE change. Safe to call
+     * from several threads, it only reads the classifier and root.
+     */
+    FileChange analyze(char status, String path) {
+        return analyze(status, path, null);
+    }
+
+    /**
+     * @param previousPath path before a rename, or null
+     */
+    FileChange analyze(char status, String path, String previousPath) {
+        FileChange fc = new FileChange();
+        fc.operation = ChangeOperation.fromGitStatus(status);
+        fc.path = rootPrefix + path;
+        if (previousPath != null) fc.previousPath = rootPrefix + previousPath;
+
+        int slash = path.lastIndexOf('/');
+        PathMetadata metadata = PathMetadata.parse(fc.path, path.substring(slash + 1), classifier);
+        fc.fileName = metadata.fileName;
+        fc.extension = metadata.extension;
+        fc.directory = metadata.directory;
+        fc.context = metadata.context;
+        return fc;
+    }
+
+    /**
+     * Next NUL-terminated token, or null at the end of the stream
+     */
+    String nextToken() throws IOException {
+        if (eof) return null;
+
+        tokenLength = 0;
+        int b;
+        while ((b = in.read()) > 0) {
+            if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, token.length * 2);
+            }
+            token[tokenLength++] = (byte) b;
+        }
+        if (b < 0) {
+            eof = true;
+            if (tokenLength == 0) return null;
+        }
+
+        return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,97 @@
+package org.sididev;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Classifies file and directory names with a set of {@link ClassificationRule}s
+ * compiled into a single {@link KeywordAutomaton}.
+ * A classification is one pass over each name and allocates nothing.
+ */
+final class PathClassifier {
+
+    private static final int CONTEXT_NAME = 0;
+    private static final int CONTEXT_DIRECTORY = 1;
+    private static final int SCOPE_DIRECTORY = 2;
+
+    private static final PathClassifier DEFAULT = compile(ClassificationRule.defaults());
+
+    private final KeywordAutomaton automaton;
+    // Targets indexed by rule bit; bits are assigned in priority order, so the lowest set bit wins
+    private final FileContext[] contextTargets;
+    private final String[] scopeTargets;
+
+    private PathClassifier(KeywordAutomaton automaton, FileContext[] contextTargets, String[] scopeTargets) {
+        this.automaton = automaton;
+        this.contextTargets = contextTargets;
+        this.scopeTargets = scopeTargets;
+    }
+
+    static PathClassifier defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Compile rules into a classifier. At most 64 rules of each kind are supported.
+     */
+    static PathClassifier compile(List<ClassificationRule> rules) {
+        KeywordAutomaton.Builder builder = new KeywordAutomaton.Builder(3);
+        String[] contextIds = register(builder, rules, ClassificationRule.Kind.CONTEXT);
+        String[] scopeTargets = register(builder, rules, ClassificationRule.Kind.SCOPE);
+
+        FileContext[] contextTargets = new FileContext[contextIds.length];
+        for (int i = 0; i < contextIds.length; i++) {
+            contextTargets[i] = FileContext.fromId(contextIds[i]);
+            if (contextTargets[i] == null) {
+                throw new IllegalArgumentException("Unknown file context: " + contextIds[i]);
+            }
+        }
+        return new PathClassifier(builder.build(), contextTargets, scopeTargets);
+    }
+
+    private static String[] register(KeywordAutomaton.Builder builder, List<ClassificationRule> rules,
+                                     ClassificationRule.Kind kind) {
+        List<ClassificationRule> ofKind = new ArrayList<>();
+        for (ClassificationRule rule : rules) {
+            if (rule.kind == kind) ofKind.add(rule);
+        }
+        if (ofKind.size() > Long.SIZE) {
+            throw new IllegalArgumentException("Too many " + kind + " rules: " + ofKind.size() + " (max " + Long.SIZE + ")");
+        }
+
+        // Stable sort: rules with equal priority keep their declaration order
+        ofKind.sort(Comparator.comparingInt(rule -> rule.priority));
+
+        String[] targets = new String[ofKind.size()];
+        for (int bit = 0; bit < ofKind.size(); bit++) {
+            ClassificationRule rule = ofKind.get(bit);
+            targets[bit] = rule.target;
+            if (kind == ClassificationRule.Kind.CONTEXT) {
+                if (rule.matchesName()) builder.add(rule.keyword, CONTEXT_NAME, bit);
+                if (rule.matchesDirectory()) builder.add(rule.keyword, CONTEXT_DIRECTORY, bit);
+            } else {
+                builder.add(rule.keyword, SCOPE_DIRECTORY, bit);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Context of a file from its name and parent directory, {@link FileContext#FILE} when no rule matches
+     */
+    FileContext classifyFile(String fileName, String directory) {
+        if (fileName == null) return FileContext.FILE;
+
+        long matches = automaton.match(fileName, CONTEXT_NAME) | automaton.match(directory, CONTEXT_DIRECTORY);
+        return matches == 0L ? FileContext.FILE : contextTargets[Long.numberOfTrailingZeros(matches)];
+    }
+
+    /**
+     * Scope suggested by a directory name, or null when no rule matches
+     */
+    String classifyDirectory(String directory) {
+        long matches = automaton.match(directory, SCOPE_DIRECTORY);
+        return matches == 0L ? null : scopeTargets[Long.numberOfTrailingZeros(matches)];
+    }
+}
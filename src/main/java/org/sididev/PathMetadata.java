@@ -0,0 +1,42 @@
+package org.sididev;
+
+/**
+ * Parsed, classification-ready facts about a file path
+ */
+final class PathMetadata {
+    final String fileName;
+    final String directory;
+    final int extension;
+    final FileContext context;
+
+    PathMetadata(String fileName, String directory, int extension, FileContext context) {
+        this.fileName = fileName;
+        this.directory = directory;
+        this.extension = extension;
+        this.context = context;
+    }
+
+    static PathMetadata parse(String path, String fileName, PathClassifier classifier) {
+        String directory = parentDirectoryName(path);
+        return new PathMetadata(fileName, directory, FileExtensions.idOf(fileName), classifier.classifyFile(fileName, directory));
+    }
+
+    /**
+     * Name of the directory containing the last path segment, the same as
+     * {@code parts[parts.length - 2]} of {@code path.split("/")} but without splitting
+     */
+    static String parentDirectoryName(String path) {
+        if (path == null) return null;
+
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (end == 0) return null;
+
+        int last = path.lastIndexOf('/', end - 1);
+        if (last < 0) return null;
+        int previous = path.lastIndexOf('/', last - 1);
+        return path.substring(previous + 1, last);
+    }
+}
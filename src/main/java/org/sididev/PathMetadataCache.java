@@ -0,0 +1,127 @@
+package org.sididev;
+
+import com.intellij.openapi.project.Project;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of {@link PathMetadata} by path, shared across generations of a project.
+ * Entries are split over independently locked segments so parallel analysis does not contend
+ * on a single lock. Each entry keeps the classifier it was made with and is only returned for that
+ * classifier, so a generation still running with a replaced classifier neither reads nor leaves
+ * behind entries of the other. The cache is cleared whenever a different classifier is used.
+ */
+public final class PathMetadataCache {
+
+    static final int DEFAULT_CAPACITY = 32_768;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile PathClassifier classifier;
+
+    public PathMetadataCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PathMetadataCache(int capacity) {
+        int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    public static PathMetadataCache getInstance(Project project) {
+        return project.getService(PathMetadataCache.class);
+    }
+
+    /**
+     * Metadata for a path, parsed and classified on a miss
+     */
+    PathMetadata get(String path, String fileName, PathClassifier classifier) {
+        if (this.classifier != classifier) {
+            switchClassifier(classifier);
+        }
+
+        int h = path.hashCode();
+        Segment segment = segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(path);
+        }
+        if (entry != null && entry.classifier == classifier && Objects.equals(entry.metadata.fileName, fileName)) {
+            hits.increment();
+            return entry.metadata;
+        }
+
+        misses.increment();
+        PathMetadata metadata = PathMetadata.parse(path, fileName, classifier);
+        // Not kept once another classifier took over, which may have cleared this segment already
+        if (this.classifier == classifier) {
+            synchronized (segment) {
+                segment.put(path, new Entry(metadata, classifier));
+            }
+        }
+        return metadata;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private synchronized void switchClassifier(PathClassifier classifier) {
+        if (this.classifier == classifier) return;
+        clear();
+        this.classifier = classifier;
+    }
+
+    private static final class Entry {
+        final PathMetadata metadata;
+        final PathClassifier classifier;
+
+        Entry(PathMetadata metadata, PathClassifier classifier) {
+            this.metadata = metadata;
+            this.classifier = classifier;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, Entry> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.sididev;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Prefix tree of the directories of changed files, counting the files below each directory.
+ * Segments are interned and nodes are stored in parallel int arrays: adding a path costs one
+ * hash lookup per segment and only allocates for segments not seen before, so building the tree
+ * is linear in the total path length. Counts may go down again as changes are removed; nodes stay.
+ */
+final class PathTrie {
+
+    static final int ROOT = 0;
+    static final int NONE = -1;
+
+    // Per node; the root has no segment
+    private int size = 1;
+    private int[] parent = new int[16];
+    private int[] segment = new int[16];
+    private int[] depth = new int[16];
+    private int[] count = new int[16];
+    private int[] firstChild = new int[16];
+    private int[] nextSibling = new int[16];
+
+    // Open addressing table of nodes by (parent, segment), holding node + 1; 0 is empty
+    private int[] nodeTable = new int[32];
+
+    // Interned segments and an open addressing table of them by hash, holding id + 1
+    private String[] segments = new String[16];
+    private int[] segmentHashes = new int[16];
+    private int segmentCount;
+    private int[] segmentTable = new int[32];
+
+    PathTrie() {
+        parent[ROOT] = NONE;
+        segment[ROOT] = NONE;
+        firstChild[ROOT] = NONE;
+        nextSibling[ROOT] = NONE;
+    }
+
+    /**
+     * Count a file (delta 1) or stop counting it (delta -1) in each directory of its path
+     */
+    void add(String path, int delta) {
+        int end = path.lastIndexOf('/');
+        int node = ROOT;
+        count[ROOT] += delta;
+        int start = 0;
+        while (start < end) {
+            int slash = path.indexOf('/', start);
+            if (slash > start) {
+                node = child(node, intern(path, start, slash), true);
+                count[node] += delta;
+            }
+            start = slash + 1;
+        }
+    }
+
+    /**
+     * Add all counts of another tree
+     */
+    void merge(PathTrie other) {
+        // Nodes are created after their parent, so parents are always mapped first
+        int[] mapped = new int[other.size];
+        mapped[ROOT] = ROOT;
+        count[ROOT] += other.count[ROOT];
+        for (int node = 1; node < other.size; node++) {
+            String name = other.segments[other.segment[node]];
+            mapped[node] = child(mapped[other.parent[node]], intern(name, 0, name.length()), true);
+            count[mapped[node]] += other.count[node];
+        }
+    }
+
+    PathTrie copy() {
+        PathTrie copy = new PathTrie();
+        copy.size = size;
+        copy.parent = parent.clone();
+        copy.segment = segment.clone();
+        copy.depth = depth.clone();
+        copy.count = count.clone();
+        copy.firstChild = firstChild.clone();
+        copy.nextSibling = nextSibling.clone();
+        copy.nodeTable = nodeTable.clone();
+        copy.segments = segments.clone();
+        copy.segmentHashes = segmentHashes.clone();
+        copy.segmentCount = segmentCount;
+        copy.segmentTable = segmentTable.clone();
+        return copy;
+    }
+
+    /**
+     * Number of files counted at or below the node
+     */
+    int count(int node) {
+        return count[node];
+    }
+
+    /**
+     * Node of a directory, or {@link #NONE} if no counted path went through it
+     */
+    int find(String directory) {
+        int node = ROOT;
+        int start = 0;
+        int end = directory.length();
+        while (start < end) {
+            int slash = directory.indexOf('/', start);
+            if (slash < 0) slash = end;
+            if (slash > start) {
+                int id = find(directory, start, slash);
+                node = id < 0 ? NONE : child(node, id, false);
+                if (node == NONE) return NONE;
+            }
+            start = slash + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Visit the directories below {@code basePath} that still count files, by segment name and file count
+     *
+     * @param basePath directory whose own path segments are skipped, or null to visit them all
+     */
+    void forEachDirectory(String basePath, ObjIntConsumer<String> visitor) {
+        int base = basePath != null ? find(basePath) : NONE;
+        if (base == NONE) base = ROOT;
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = base;
+        while (top > 0) {
+            int node = stack[--top];
+            if (count[node] <= 0) continue;
+            if (node != base) visitor.accept(segmentOf(node), count[node]);
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = child;
+            }
+        }
+    }
+
+    /**
+     * Lowest directory below {@code from} that more than half of the files below {@code from} have in
+     * common: descends into the largest child while it holds such a majority
+     */
+    int dominant(int from) {
+        long majority = count[from] / 2;
+        int node = from;
+        while (true) {
+            int largest = NONE;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (largest == NONE || count[child] > count[largest]) largest = child;
+            }
+            if (largest == NONE || count[largest] <= majority) return node;
+            node = largest;
+        }
+    }
+
+    /**
+     * Scope for the counted files, considering directories below the base path only: the deepest
+     * directory with a scope from the dominant directory up, otherwise the directory with a scope
+     * holding the most files below the dominant one, the shallowest and then the first by name
+     * winning ties. Null when no directory has a scope.
+     *
+     * @param basePath directory whose own path segments are ignored, or null to consider them all
+     */
+    String scope(PathClassifier classifier, String basePath) {
+        int base = basePath != null ? find(basePath) : NONE;
+        if (base == NONE) base = ROOT;
+        if (count[base] <= 0) return null;
+
+        // Scope by segment id, classified at most once per segment
+        String[] scopes = new String[segmentCount];
+        boolean[] classified = new boolean[segmentCount];
+
+        int dominant = dominant(base);
+        for (int node = dominant; node != base; node = parent[node]) {
+            String scope = scope(node, classifier, scopes, classified);
+            if (scope != null) return scope;
+        }
+
+        int best = NONE;
+        int[] stack = new int[16];
+        int top = 0;
+        for (int child = firstChild[dominant]; child != NONE; child = nextSibling[child]) {
+            if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+            stack[top++] = child;
+        }
+        while (top > 0) {
+            int node = stack[--top];
+            if (count[node] <= 0) continue;
+            if (scope(node, classifier, scopes, classified) != null) {
+                if (best == NONE || count[node] > count[best]
+                        || (count[node] == count[best] && (depth[node] < depth[best]
+                        || (depth[node] == depth[best] && segmentOf(node).compareTo(segmentOf(best)) < 0)))) {
+                    best = node;
+                }
+                // Directories below have at most as many files and are deeper
+                continue;
+            }
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = child;
+            }
+        }
+        return best != NONE ? scopes[segment[best]] : null;
+    }
+
+    private String scope(int node, PathClassifier classifier, String[] scopes, boolean[] classified) {
+        int id = segment[node];
+        if (!classified[id]) {
+            scopes[id] = classifier.classifyDirectory(segments[id]);
+            classified[id] = true;
+        }
+        return scopes[id];
+    }
+
+    private String segmentOf(int node) {
+        return segments[segment[node]];
+    }
+
+    private int child(int parentNode, int segmentId, boolean create) {
+        int mask = nodeTable.length - 1;
+        int slot = mix(parentNode * 31 + segmentId) & mask;
+        int entry;
+        while ((entry = nodeTable[slot]) != 0) {
+            int node = entry - 1;
+            if (parent[node] == parentNode && segment[node] == segmentId) return node;
+            slot = (slot + 1) & mask;
+        }
+        if (!create) return NONE;
+
+        if (size == parent.length) {
+            int capacity = size * 2;
+            parent = Arrays.copyOf(parent, capacity);
+            segment = Arrays.copyOf(segment, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            count = Arrays.copyOf(count, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+        }
+        int node = size++;
+        parent[node] = parentNode;
+        segment[node] = segmentId;
+        depth[node] = depth[parentNode] + 1;
+        firstChild[node] = NONE;
+        nextSibling[node] = firstChild[parentNode];
+        firstChild[parentNode] = node;
+        nodeTable[slot] = node + 1;
+
+        if (size * 2 > nodeTable.length) {
+            nodeTable = new int[nodeTable.length * 2];
+            for (int i = 1; i < size; i++) {
+                int s = mix(parent[i] * 31 + segment[i]) & (nodeTable.length - 1);
+                while (nodeTable[s] != 0) s = (s + 1) & (nodeTable.length - 1);
+                nodeTable[s] = i + 1;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Id of the segment {@code text[start, end)}, or -1 if it was never interned
+     */
+    private int find(String text, int start, int end) {
+        int hash = hash(text, start, end);
+        int mask = segmentTable.length - 1;
+        int length = end - start;
+        for (int slot = mix(hash) & mask, entry; (entry = segmentTable[slot]) != 0; slot = (slot + 1) & mask) {
+            int id = entry - 1;
+            if (segmentHashes[id] == hash && segments[id].length() == length
+                    && text.regionMatches(start, segments[id], 0, length)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private int intern(String text, int start, int end) {
+        int id = find(text, start, end);
+        if (id >= 0) return id;
+
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+            segmentHashes = Arrays.copyOf(segmentHashes, segmentCount * 2);
+        }
+        id = segmentCount++;
+        segments[id] = text.substring(start, end);
+        segmentHashes[id] = hash(text, start, end);
+
+        if (segmentCount * 2 > segmentTable.length) {
+            segmentTable = new int[segmentTable.length * 2];
+            for (int i = 0; i < segmentCount - 1; i++) {
+                insertSegment(i);
+            }
+        }
+        insertSegment(id);
+        return id;
+    }
+
+    private void insertSegment(int id) {
+        int mask = segmentTable.length - 1;
+        int slot = mix(segmentHashes[id]) & mask;
+        while (segmentTable[slot] != 0) slot = (slot + 1) & mask;
+        segmentTable[slot] = id + 1;
+    }
+
+    private static int hash(String text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,30 @@
+package org.sididev;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.CheckinProjectPanel;
+import com.intellij.openapi.vcs.changes.CommitContext;
+import com.intellij.openapi.vcs.checkin.CheckinHandler;
+import com.intellij.openapi.vcs.checkin.CheckinHandlerFactory;
+import com.intellij.vcs.commit.AbstractCommitWorkflowHandler;
+import com.intellij.vcs.commit.CommitWorkflowHandler;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Attaches the live {@link CommitMessagePreview} when a commit UI creates its check-in handlers,
+ * which it does on the EDT as the commit dialog or tool window is set up. Contributes no handler itself.
+ */
+public final class PreviewCheckinHandlerFactory extends CheckinHandlerFactory {
+
+    @Override
+    public @NotNull CheckinHandler createHandler(@NotNull CheckinProjectPanel panel,
+                                                 @NotNull CommitContext commitContext) {
+        Project project = panel.getProject();
+        if (SmartCommitSettings.getInstance(project).getState().livePreviewEnabled) {
+            CommitWorkflowHandler workflowHandler = panel.getCommitWorkflowHandler();
+            if (workflowHandler instanceof AbstractCommitWorkflowHandler) {
+                CommitMessagePreview.attach(project, ((AbstractCommitWorkflowHandler<?, ?>) workflowHandler).getUi());
+            }
+        }
+        return CheckinHandler.DUMMY;
+    }
+}
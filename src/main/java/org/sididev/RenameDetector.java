@@ -0,0 +1,431 @@
+package org.sididev;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pairs removed and added files with mostly the same content, so moves and renames that arrive as a
+ * removal and an addition are described as moves. Each file is streamed once into a MinHash sketch of
+ * its distinct lines; sketches are indexed by bands of their values, so only files sharing a band
+ * are compared instead of every removed file with every added one. Files are sketched until a time
+ * budget runs out, those with the same name on both sides first, since relocated packages keep
+ * their file names. Files left unsketched when the budget runs out stay unpaired, unless enabled to
+ * take the remaining same-name pairs as moves after most checked same-name pairs proved to be moves:
+ * these are not compared, so a removed file and an unrelated new one of the same name are paired too.
+ */
+final class RenameDetector {
+
+    static final int DEFAULT_BUDGET_MILLIS = 500;
+    static final int DEFAULT_MIN_SIMILARITY = 50;
+    static final int DEFAULT_MAX_FILE_BYTES = 1 << 20;
+
+    // Sketch values per file, compared in bands of rows: pairs sharing half of their lines meet in
+    // at least one band with a probability of 99%
+    private static final int BIN_BITS = 5;
+    private static final int SKETCH_SIZE = 1 << BIN_BITS;
+    private static final int ROWS = 2;
+    private static final int BANDS = SKETCH_SIZE / ROWS;
+    // Bands shared by more files hold boilerplate common to many of them and are not compared
+    private static final int MAX_BUCKET_FILES = 64;
+    // Same-name pairs to check, and the share of them that must be moves, before taking the rest unchecked
+    private static final int MIN_CHECKED_NAME_PAIRS = 16;
+    private static final int MIN_CONFIRMED_PERCENT = 90;
+    // Added to the similarity of files with the same name, which win among equally similar ones
+    private static final double SAME_NAME_BONUS = 0.05;
+    private static final int BINARY_PROBE = 8_000;
+    private static final int BUFFER_SIZE = 8_192;
+    private static final int EMPTY_BIN = Integer.MAX_VALUE;
+
+    interface Source {
+        /**
+         * Content of the file, or null if it is not available
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * A removed or added file
+     */
+    static final class Candidate {
+        final String path;
+        final String fileName;
+        final Source source;
+
+        Candidate(String path, Source source) {
+            this.path = path;
+            this.fileName = path.substring(path.lastIndexOf('/') + 1);
+            this.source = source;
+        }
+    }
+
+    private final long budgetNanos;
+    private final double minSimilarity;
+    private final long maxFileBytes;
+    private final boolean pairUncheckedNames;
+
+    RenameDetector() {
+        this(DEFAULT_BUDGET_MILLIS, DEFAULT_MIN_SIMILARITY, DEFAULT_MAX_FILE_BYTES, false);
+    }
+
+    /**
+     * @param minSimilarity      percentage of distinct lines a removed and an added file must share
+     * @param pairUncheckedNames take same-name pairs left unsketched by the budget as moves, if most
+     *                           checked ones were
+     */
+    RenameDetector(long budgetMillis, int minSimilarity, long maxFileBytes, boolean pairUncheckedNames) {
+        this.budgetNanos = Math.max(1, budgetMillis) * 1_000_000L;
+        this.minSimilarity = Math.max(1, Math.min(100, minSimilarity)) / 100.0;
+        this.maxFileBytes = maxFileBytes;
+        this.pairUncheckedNames = pairUncheckedNames;
+    }
+
+    /**
+     * Removed file each added file was moved from
+     *
+     * @return per added file, the index of the removed file it was moved from, or -1
+     */
+    int[] pair(List<Candidate> removed, List<Candidate> added) {
+        int[] pairs = new int[added.size()];
+        Arrays.fill(pairs, -1);
+        if (removed.isEmpty() || added.isEmpty()) return pairs;
+        boolean[] removedPaired = new boolean[removed.size()];
+        long deadline = System.nanoTime() + budgetNanos;
+
+        // Pairs of files whose name is unique on both sides
+        Map<String, Integer> removedByName = uniqueNames(removed);
+        Map<String, Integer> addedByName = uniqueNames(added);
+        List<int[]> namePairs = new ArrayList<>();
+        addedByName.forEach((name, a) -> {
+            Integer r = removedByName.get(name);
+            if (a >= 0 && r != null && r >= 0) namePairs.add(new int[]{r, a});
+        });
+        namePairs.sort((x, y) -> Integer.compare(x[1], y[1]));
+
+        Sketch[] removedSketches = new Sketch[removed.size()];
+        Sketch[] addedSketches = new Sketch[added.size()];
+        boolean complete = true;
+        for (int i = 0; complete && i < namePairs.size(); i++) {
+            complete = sketch(removed, namePairs.get(i)[0], removedSketches, deadline)
+                    && sketch(added, namePairs.get(i)[1], addedSketches, deadline);
+        }
+        for (int r = 0; complete && r < removed.size(); r++) {
+            complete = sketch(removed, r, removedSketches, deadline);
+        }
+        for (int a = 0; complete && a < added.size(); a++) {
+            complete = sketch(added, a, addedSketches, deadline);
+        }
+
+        // Identical content first, preferring a file of the same name
+        Map<Long, List<Integer>> removedByContent = new HashMap<>();
+        for (int r = 0; r < removed.size(); r++) {
+            if (removedSketches[r] != null) {
+                removedByContent.computeIfAbsent(removedSketches[r].contentHash, hash -> new ArrayList<>()).add(r);
+            }
+        }
+        for (int a = 0; a < added.size(); a++) {
+            if (addedSketches[a] == null) continue;
+            List<Integer> same = removedByContent.get(addedSketches[a].contentHash);
+            if (same == null) continue;
+            int best = -1;
+            for (int r : same) {
+                if (removedPaired[r] || removedSketches[r].size != addedSketches[a].size) continue;
+                if (best < 0 || removed.get(r).fileName.equals(added.get(a).fileName)) best = r;
+            }
+            if (best >= 0) {
+                pairs[a] = best;
+                removedPaired[best] = true;
+            }
+        }
+
+        // Same-name pairs, remembering how many of them turned out to be moves
+        int checked = 0;
+        int confirmed = 0;
+        for (int[] namePair : namePairs) {
+            int r = namePair[0];
+            int a = namePair[1];
+            if (removedSketches[r] == null || addedSketches[a] == null) continue;
+            checked++;
+            if (pairs[a] == r) {
+                confirmed++;
+            } else if (pairs[a] < 0 && !removedPaired[r]
+                    && removedSketches[r].similarity(addedSketches[a]) >= minSimilarity) {
+                pairs[a] = r;
+                removedPaired[r] = true;
+                confirmed++;
+            }
+        }
+
+        pairSimilar(removed, added, removedSketches, addedSketches, pairs, removedPaired);
+
+        if (pairUncheckedNames && !complete && checked >= MIN_CHECKED_NAME_PAIRS
+                && confirmed * 100L >= checked * (long) MIN_CONFIRMED_PERCENT) {
+            for (int[] namePair : namePairs) {
+                int r = namePair[0];
+                int a = namePair[1];
+                if ((removedSketches[r] == null || addedSketches[a] == null) && pairs[a] < 0 && !removedPaired[r]) {
+                    pairs[a] = r;
+                    removedPaired[r] = true;
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Removed paths by the added path they were moved to, as found by {@link #pair}
+     */
+    static Map<String, String> movedFrom(List<Candidate> removed, List<Candidate> added, int[] pairs) {
+        Map<String, String> moves = new HashMap<>();
+        for (int a = 0; a < pairs.length; a++) {
+            if (pairs[a] >= 0) moves.put(added.get(a).path, removed.get(pairs[a]).path);
+        }
+        return moves;
+    }
+
+    /**
+     * Pair the remaining sketched files through the band index, most similar pairs first
+     */
+    private void pairSimilar(List<Candidate> removed, List<Candidate> added, Sketch[] removedSketches,
+                             Sketch[] addedSketches, int[] pairs, boolean[] removedPaired) {
+        BandIndex index = new BandIndex(removed.size());
+        for (int r = 0; r < removed.size(); r++) {
+            if (!removedPaired[r] && removedSketches[r] != null && removedSketches[r].lines > 0) {
+                index.add(removedSketches[r], r);
+            }
+        }
+        if (index.size == 0) return;
+
+        List<long[]> matches = new ArrayList<>();
+        int[] seen = new int[removed.size()];
+        Arrays.fill(seen, -1);
+        for (int a = 0; a < added.size(); a++) {
+            Sketch sketch = addedSketches[a];
+            if (pairs[a] >= 0 || sketch == null || sketch.lines == 0) continue;
+            for (int band = 0; band < BANDS; band++) {
+                int bucket = index.find(band, sketch.band(band));
+                if (bucket < 0 || index.bucketSizes[bucket] > MAX_BUCKET_FILES) continue;
+                for (int entry = index.bucketHeads[bucket]; entry >= 0; entry = index.next[entry]) {
+                    int r = index.files[entry];
+                    if (seen[r] == a) continue;
+                    seen[r] = a;
+                    Sketch other = removedSketches[r];
+                    // Files of very different sizes cannot share half of their content
+                    if (Math.min(sketch.size, other.size) * 4 < Math.max(sketch.size, other.size)) continue;
+                    double similarity = other.similarity(sketch);
+                    if (similarity < minSimilarity) continue;
+                    if (removed.get(r).fileName.equals(added.get(a).fileName)) similarity += SAME_NAME_BONUS;
+                    matches.add(new long[]{Double.doubleToLongBits(similarity), a, r});
+                }
+            }
+        }
+
+        matches.sort((x, y) -> {
+            int cmp = Double.compare(Double.longBitsToDouble(y[0]), Double.longBitsToDouble(x[0]));
+            return cmp != 0 ? cmp : x[1] != y[1] ? Long.compare(x[1], y[1]) : Long.compare(x[2], y[2]);
+        });
+        for (long[] match : matches) {
+            int a = (int) match[1];
+            int r = (int) match[2];
+            if (pairs[a] < 0 && !removedPaired[r]) {
+                pairs[a] = r;
+                removedPaired[r] = true;
+            }
+        }
+    }
+
+    /**
+     * Sketch a file unless done already or over budget; false once the budget ran out
+     */
+    private boolean sketch(List<Candidate> candidates, int index, Sketch[] sketches, long deadline) {
+        if (sketches[index] != null) return true;
+        if (System.nanoTime() >= deadline) return false;
+        try (InputStream in = candidates.get(index).source.open()) {
+            if (in == null) return true;
+            Sketch sketch = new Sketch();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                sketch.feed(buffer, read);
+                if (sketch.size > maxFileBytes) return true;
+            }
+            sketch.finish();
+            // Empty files carry nothing to recognize them by
+            if (sketch.size > 0) sketches[index] = sketch;
+        } catch (IOException e) {
+            // Left unpaired
+        }
+        return true;
+    }
+
+    /**
+     * Index of unique file names: name to file index, or -1 for names of several files
+     */
+    private static Map<String, Integer> uniqueNames(List<Candidate> candidates) {
+        Map<String, Integer> byName = new HashMap<>(candidates.size() * 2);
+        for (int i = 0; i < candidates.size(); i++) {
+            byName.merge(candidates.get(i).fileName, i, (first, second) -> -1);
+        }
+        return byName;
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    /**
+     * One-permutation MinHash of the distinct non-blank lines of a file, fed in chunks: each line is
+     * hashed once into one of the bins, which keep their minimum, instead of once per bin.
+     * Whitespace is ignored within lines, so reindented files still match, and a hash of the whole
+     * content identifies identical files.
+     */
+    private static final class Sketch {
+        private static final long OFFSET = 0xcbf29ce484222325L;
+        private static final long PRIME = 0x100000001b3L;
+
+        final int[] minimums = new int[SKETCH_SIZE];
+        long contentHash = OFFSET;
+        long size;
+        int lines;
+        private long line = OFFSET;
+        private boolean pending;
+        private boolean binary;
+
+        Sketch() {
+            Arrays.fill(minimums, EMPTY_BIN);
+        }
+
+        void feed(byte[] buffer, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                contentHash = (contentHash ^ (b & 0xff)) * PRIME;
+                if (b == 0 && size + i < BINARY_PROBE) binary = true;
+                if (binary) continue;
+                if (b == '\n') {
+                    endLine();
+                } else if (b != ' ' && b != '\t' && b != '\r') {
+                    line = (line ^ (b & 0xff)) * PRIME;
+                    pending = true;
+                }
+            }
+            size += length;
+        }
+
+        /**
+         * Complete the last line; binary content has no lines and is only matched exactly
+         */
+        void finish() {
+            if (pending) endLine();
+            if (binary) {
+                Arrays.fill(minimums, EMPTY_BIN);
+                lines = 0;
+                return;
+            }
+            // Empty bins of short files borrow from the next filled bin, so they still compare equal
+            // between files with the same lines
+            int[] filled = new int[SKETCH_SIZE];
+            for (int bin = 0; bin < SKETCH_SIZE && lines > 0; bin++) {
+                if (minimums[bin] != EMPTY_BIN) continue;
+                int distance = 1;
+                while (minimums[(bin + distance) % SKETCH_SIZE] == EMPTY_BIN) distance++;
+                int source = minimums[(bin + distance) % SKETCH_SIZE];
+                filled[bin] = (int) mix(source * 31L + distance) & 0x7fffffff;
+            }
+            for (int bin = 0; bin < SKETCH_SIZE; bin++) {
+                if (minimums[bin] == EMPTY_BIN) minimums[bin] = filled[bin];
+            }
+        }
+
+        private void endLine() {
+            if (pending) {
+                // The top bits of the hash pick the bin, the rest compete for its minimum
+                long h = mix(line);
+                int bin = (int) (h >>> (64 - BIN_BITS));
+                int value = (int) h & 0x7fffffff;
+                if (value < minimums[bin]) minimums[bin] = value;
+                lines++;
+            }
+            line = OFFSET;
+            pending = false;
+        }
+
+        long band(int band) {
+            return (long) minimums[band * ROWS] << 32 ^ (minimums[band * ROWS + 1] & 0xffffffffL);
+        }
+
+        /**
+         * Estimated share of distinct lines the files have in common
+         */
+        double similarity(Sketch other) {
+            if (lines == 0 || other.lines == 0) return contentHash == other.contentHash && size == other.size ? 1 : 0;
+            int equal = 0;
+            for (int i = 0; i < SKETCH_SIZE; i++) {
+                if (minimums[i] == other.minimums[i]) equal++;
+            }
+            return (double) equal / SKETCH_SIZE;
+        }
+    }
+
+    /**
+     * Files by band value in an open addressing table of buckets, each a linked list of files
+     */
+    private static final class BandIndex {
+        private long[] keys;
+        private int[] bands;
+        private int[] bucketHeads;
+        private int[] bucketSizes;
+        private int size;
+        // Per entry: file and next entry of the same bucket
+        private int[] files;
+        private int[] next;
+
+        BandIndex(int expectedFiles) {
+            int capacity = Integer.highestOneBit(Math.max(16, expectedFiles * BANDS * 2 - 1)) << 1;
+            keys = new long[capacity];
+            bands = new int[capacity];
+            bucketHeads = new int[capacity];
+            bucketSizes = new int[capacity];
+            Arrays.fill(bands, -1);
+            files = new int[expectedFiles * BANDS];
+            next = new int[expectedFiles * BANDS];
+        }
+
+        void add(Sketch sketch, int file) {
+            for (int band = 0; band < BANDS; band++) {
+                long key = sketch.band(band);
+                int slot = slot(band, key);
+                if (bands[slot] < 0) {
+                    bands[slot] = band;
+                    keys[slot] = key;
+                    bucketHeads[slot] = -1;
+                }
+                files[size] = file;
+                next[size] = bucketHeads[slot];
+                bucketHeads[slot] = size++;
+                bucketSizes[slot]++;
+            }
+        }
+
+        /**
+         * Bucket of a band value, or -1 if no file has it
+         */
+        int find(int band, long key) {
+            int slot = slot(band, key);
+            return bands[slot] < 0 ? -1 : slot;
+        }
+
+        private int slot(int band, long key) {
+            int mask = keys.length - 1;
+            int slot = (int) mix(key + band) & mask;
+            while (bands[slot] >= 0 && (bands[slot] != band || keys[slot] != key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.sididev;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.DialogWrapper;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Diagnostic action showing the stage timings, cache hit rates and fallbacks collected by
+ * {@link GenerationMetrics}, so slow or failing generations can be looked into without a profiler.
+ */
+public class ShowGenerationMetricsAction extends AnAction {
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+        new MetricsDialog(project, GenerationMetrics.getInstance(project)).show();
+    }
+
+    private static final class MetricsDialog extends DialogWrapper {
+        private final GenerationMetrics metrics;
+        private final JTextArea text = new JTextArea(28, 90);
+
+        MetricsDialog(Project project, GenerationMetrics metrics) {
+            super(project, false);
+            this.metrics = metrics;
+            setTitle("Smart Commit Metrics");
+            init();
+        }
+
+        @Override
+        protected JComponent createCenterPanel() {
+            text.setEditable(false);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+            text.setText(metrics.report());
+
+            JButton refresh = new JButton("Refresh");
+            refresh.addActionListener(event -> text.setText(metrics.report()));
+            JButton reset = new JButton("Reset");
+            reset.addActionListener(event -> {
+                metrics.reset();
+                text.setText(metrics.report());
+            });
+            JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+            buttons.add(refresh);
+            buttons.add(reset);
+
+            JPanel panel = new JPanel(new BorderLayout(0, 8));
+            panel.add(new JScrollPane(text), BorderLayout.CENTER);
+            panel.add(buttons, BorderLayout.SOUTH);
+            return panel;
+        }
+
+        @Override
+        protected Action[] createActions() {
+            return new Action[]{getOKAction()};
+        }
+    }
+}
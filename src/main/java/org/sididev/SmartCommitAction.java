@@ -1,15 +1,19 @@
 package org.sididev;
 
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vcs.VcsDataKeys;
 import com.intellij.openapi.vcs.changes.Change;
-import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.vcs.commit.CommitWorkflowUi;
+import org.jetbrains.annotations.NotNull;
 
 import java.awt.*;
 import java.awt.datatransfer.StringSelection;
-import java.util.*;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -18,6 +22,11 @@ import java.util.List;
  */
 public class SmartCommitAction extends AnAction {
 
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+
     @Override
     public void actionPerformed(AnActionEvent e) {
         Project project = e.getProject();
@@ -26,45 +35,43 @@ public class SmartCommitAction extends AnAction {
             return;
         }
 
-        try {
-            String message = generateCommitMessage(project);
-
-            // Try to inject message directly into commit field
-            boolean injected = CommitMessageInjector.injectMessage(e, message);
-
-            if (!injected) {
-                // Fallback: show message for manual copy-paste
-                showFallbackDialog(project, message);
-            }
-
-        } catch (Exception ex) {
-            Messages.showErrorDialog(project,
-                    "Error generating commit message: " + ex.getMessage(),
-                    "Smart Commit Generator");
+        // Capture the injection targets now: the event must not be used once the
+        // background generation completes
+        Object commitWorkflowUi = e.getData(VcsDataKeys.COMMIT_WORKFLOW_UI);
+        Component component = e.getInputEvent() instanceof MouseEvent
+                ? ((MouseEvent) e.getInputEvent()).getComponent()
+                : null;
+        // Describe what is checked in the dialog; without a dialog, the default changelist
+        List<Change> includedChanges = commitWorkflowUi instanceof CommitWorkflowUi
+                ? new ArrayList<>(((CommitWorkflowUi) commitWorkflowUi).getIncludedChanges())
+                : null;
+        // Usually attached when the commit UI was set up, unless the preview was enabled since
+        if (commitWorkflowUi instanceof CommitWorkflowUi
+                && SmartCommitSettings.getInstance(project).getState().livePreviewEnabled) {
+            CommitMessagePreview.attach(project, (CommitWorkflowUi) commitWorkflowUi);
         }
-    }
 
-    /**
-     * Generate intelligent commit message based on Git changes
-     */
-    private String generateCommitMessage(Project project) {
-        try {
-            ChangeListManager changeListManager = ChangeListManager.getInstance(project);
-            Collection<Change> changes = changeListManager.getDefaultChangeList().getChanges();
-
-            if (changes.isEmpty()) {
-                return "chore: no staged changes found";
+        GenerationMetrics metrics = GenerationMetrics.getInstance(project);
+        CommitMessageGenerator.getInstance(project).generate(includedChanges, message -> {
+            try {
+                // Try to inject message directly into commit field
+                GenerationMetrics.Timer timer = metrics.start(GenerationMetrics.Stage.INJECT);
+                CommitMessageInjector.Strategy strategy = CommitMessageInjector.inject(commitWorkflowUi, component, message);
+                timer.stop(-1, strategy.name());
+                metrics.recordInjection(strategy);
+
+                if (strategy == CommitMessageInjector.Strategy.NONE) {
+                    // Fallback: show message for manual copy-paste
+                    metrics.recordFallback(GenerationMetrics.Fallback.INJECTION_FAILED);
+                    showFallbackDialog(project, message);
+                }
+
+            } catch (Exception ex) {
+                Messages.showErrorDialog(project,
+                        "Error generating commit message: " + ex.getMessage(),
+                        "Smart Commit Generator");
             }
-
-            ChangeAnalyzer analyzer = new ChangeAnalyzer();
-            List<FileChange> fileChanges = analyzer.analyzeChanges(changes);
-
-            CommitMessageBuilder builder = new CommitMessageBuilder();
-            return builder.buildMessage(fileChanges);
-
-        } catch (Exception e) {
-            return "chore: update project files";
-        }
+        });
     }
 
     /**
@@ -0,0 +1,202 @@
+package org.sididev;
+
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-project settings of the commit message generator, stored in .idea/smartCommit.xml
+ */
+@State(name = "SmartCommitSettings", storages = @Storage("smartCommit.xml"))
+public final class SmartCommitSettings implements PersistentStateComponent<SmartCommitSettings.State> {
+
+    private static final Logger LOG = Logger.getInstance(SmartCommitSettings.class);
+
+    private State state = new State();
+    private volatile PathClassifier classifier;
+    private volatile MessageTemplates templates;
+
+    public static SmartCommitSettings getInstance(Project project) {
+        return project.getService(SmartCommitSettings.class);
+    }
+
+    @Override
+    public @NotNull State getState() {
+        return state;
+    }
+
+    @Override
+    public void loadState(@NotNull State state) {
+        this.state = state;
+        this.classifier = null;
+    }
+
+    /**
+     * Classifier compiled from the configured rules. Compiled once and reused until the settings change.
+     */
+    PathClassifier getClassifier() {
+        PathClassifier result = classifier;
+        if (result == null) {
+            result = compileClassifier(state);
+            classifier = result;
+        }
+        return result;
+    }
+
+    /**
+     * Message templates compiled from the configured ones, recompiled only when those change
+     */
+    MessageTemplates getTemplates() {
+        State current = state;
+        MessageTemplates result = templates;
+        if (result == null || !result.compiledFrom(current.headerTemplate, current.fileDescriptionTemplate,
+                current.filesDescriptionTemplate, current.bodyFileTemplate, current.symbolsDescriptionTemplate)) {
+            result = MessageTemplates.compile(current.headerTemplate, current.fileDescriptionTemplate,
+                    current.filesDescriptionTemplate, current.bodyFileTemplate, current.symbolsDescriptionTemplate);
+            for (String error : result.errors()) {
+                LOG.warn("Invalid message template, using the default: " + error);
+            }
+            templates = result;
+        }
+        return result;
+    }
+
+    private static PathClassifier compileClassifier(State state) {
+        if (state.rules.isEmpty() && state.includeDefaultRules) {
+            return PathClassifier.defaults();
+        }
+
+        List<ClassificationRule> rules = new ArrayList<>();
+        if (state.includeDefaultRules) {
+            rules.addAll(ClassificationRule.defaults());
+        }
+        for (RuleState ruleState : state.rules) {
+            ClassificationRule rule = ruleState.toRule();
+            if (rule != null) {
+                rules.add(rule);
+            } else {
+                LOG.warn("Ignoring invalid classification rule: " + ruleState.keyword + " -> " + ruleState.target);
+            }
+        }
+
+        try {
+            return PathClassifier.compile(rules);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Invalid classification rules, using defaults", e);
+            return PathClassifier.defaults();
+        }
+    }
+
+    public static class State {
+        /** Keep the built-in rules and add the configured ones on top */
+        public boolean includeDefaultRules = true;
+        public List<RuleState> rules = new ArrayList<>();
+        /** Files listed per operation in the commit body before the rest is counted only */
+        public int bodyEntriesPerOperation = ChangeSummary.DEFAULT_ENTRIES_PER_OPERATION;
+        /** Body size limits; larger bodies are summarized by location */
+        public int bodyMaxLines = CommitMessageBuilder.DEFAULT_BODY_LINES;
+        public int bodyMaxBytes = CommitMessageBuilder.DEFAULT_BODY_BYTES;
+        /** Changesets of at least this many files are analyzed on all cores */
+        public int parallelAnalysisThreshold = ChangeAnalyzer.DEFAULT_PARALLEL_THRESHOLD;
+        /** Compare file contents to count changed lines, within the limits below */
+        public boolean lineStatsEnabled = true;
+        public int lineStatsBudgetMillis = LineStatsReader.DEFAULT_BUDGET_MILLIS;
+        public int lineStatsMaxFileBytes = LineStatsReader.DEFAULT_MAX_FILE_BYTES;
+        public int lineStatsMaxTotalBytes = LineStatsReader.DEFAULT_MAX_TOTAL_BYTES;
+        /** Use the module holding most changed files as the scope */
+        public boolean moduleScopesEnabled = true;
+        /** Scope by module name, or by the module name without project prefix and source set; "" for none */
+        public Map<String, String> moduleScopes = new LinkedHashMap<>();
+        /** With changes from several VCS roots, write one message section per root instead of a merged one */
+        public boolean messagePerRoot = false;
+        /** Also split the changes of a root by changelist */
+        public boolean partitionByChangelist = false;
+        /**
+         * Name the declarations added, updated and removed in modified files, found by parsing both
+         * revisions; files left when the time budget of a generation runs out are described as a whole
+         */
+        public boolean symbolChangesEnabled = true;
+        public int symbolChangesBudgetMillis = SymbolChangeReader.DEFAULT_BUDGET_MILLIS;
+        /** Pair removed and added files with mostly the same content into moves */
+        public boolean renameDetectionEnabled = true;
+        public int renameDetectionBudgetMillis = RenameDetector.DEFAULT_BUDGET_MILLIS;
+        /** Percentage of distinct lines a removed and an added file must share to count as moved */
+        public int renameMinSimilarity = RenameDetector.DEFAULT_MIN_SIMILARITY;
+        /**
+         * When the rename budget runs out after most compared same-name pairs proved to be moves, take
+         * the remaining same-name pairs as moves without comparing them. Off, since an unrelated new
+         * file that happens to reuse the name of a removed one is then described as moved.
+         */
+        public boolean renamePairUncheckedSameNames = false;
+        /** Describe what is staged in the git index of each root, read from the repository files, instead of the included changes */
+        public boolean stagedFromGitIndex = false;
+        /**
+         * Message templates. Placeholders in braces, e.g. {type}, capitalized as {Type}; text in square
+         * brackets is left out when a placeholder in it is empty. The header can use {type}, {scope},
+         * {description} and {count}; the description of one file and the body entry of a file {verb},
+         * {kind}, {area}, {qualifier}, {context}, {file} and {path}; the description of several files
+         * {verb}, {kind}, {context} and {count}; the description of one file whose changed declarations
+         * are known the placeholders of a file and {symbols}. Empty for the default. A file description
+         * of "{verb} {kind}[ {area}]" leaves out the context the file type already implies, giving
+         * "add stylesheet" instead of "add style stylesheet".
+         */
+        public String headerTemplate = MessageTemplates.DEFAULT_HEADER;
+        public String fileDescriptionTemplate = MessageTemplates.DEFAULT_FILE_DESCRIPTION;
+        public String filesDescriptionTemplate = MessageTemplates.DEFAULT_FILES_DESCRIPTION;
+        public String bodyFileTemplate = MessageTemplates.DEFAULT_BODY_FILE;
+        public String symbolsDescriptionTemplate = MessageTemplates.DEFAULT_SYMBOLS_DESCRIPTION;
+        /**
+         * Regenerate the message in the commit dialog as files are included or excluded, this long after
+         * the last change. The message field is only written while empty or holding the previous preview.
+         */
+        public boolean livePreviewEnabled = false;
+        public int livePreviewDelayMillis = CommitMessagePreview.DEFAULT_DELAY_MILLIS;
+        /**
+         * Predict type and scope from the conventional commits of the repository, learned in the
+         * background from at most this many of the newest commits and then kept up to date. Off unless
+         * enabled, since learning runs git log and stores the model in the git directory.
+         */
+        public boolean historyModelEnabled = false;
+        public int historyModelMaxCommits = HistoryLearner.DEFAULT_MAX_COMMITS;
+        /** Keep stage timings of the last generations for Help | Diagnostic Tools | Smart Commit Metrics */
+        public boolean metricsEnabled = true;
+    }
+
+    /**
+     * Serialized form of a {@link ClassificationRule}
+     */
+    public static class RuleState {
+        /** "context" (target must be a known file context such as "api") or "scope" */
+        public String kind = "context";
+        public String keyword;
+        public String target;
+        /** "name", "directory" or "any" */
+        public String field = "any";
+        public int priority = 100;
+
+        ClassificationRule toRule() {
+            if (keyword == null || keyword.isEmpty() || target == null || target.isEmpty()) return null;
+            try {
+                ClassificationRule.Kind ruleKind = ClassificationRule.Kind.valueOf(kind.toUpperCase(Locale.ROOT));
+                if (ruleKind == ClassificationRule.Kind.CONTEXT && FileContext.fromId(target) == null) return null;
+                return new ClassificationRule(
+                        ruleKind,
+                        keyword.toLowerCase(Locale.ROOT),
+                        target,
+                        ClassificationRule.Field.valueOf(field.toUpperCase(Locale.ROOT)),
+                        priority);
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return null;
+            }
+        }
+    }
+}
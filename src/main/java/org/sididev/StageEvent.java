@@ -0,0 +1,30 @@
+package org.sididev;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one stage of a commit message generation. Costs next to nothing
+ * unless a recording with the event enabled is running.
+ */
+@Name("org.sididev.GenerationStage")
+@Label("Commit Message Generation Stage")
+@Category({"Smart Commit Generator"})
+@Description("Duration of one stage of a commit message generation")
+@StackTrace(false)
+final class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Files")
+    @Description("Number of changes the stage worked on, -1 when not applicable")
+    int files;
+
+    @Label("Outcome")
+    String outcome;
+}
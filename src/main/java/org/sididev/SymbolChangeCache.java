@@ -0,0 +1,66 @@
+package org.sididev;
+
+import com.intellij.openapi.project.Project;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Changed declarations by path, valid for one base revision and one modification stamp of the
+ * current document, so a file is parsed again only after it was edited or its base changed.
+ * Kept in memory for the session; bounded, least recently used entries are dropped first.
+ */
+public final class SymbolChangeCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 4_096;
+
+    private final Map<String, Entry> entries;
+
+    public SymbolChangeCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    SymbolChangeCache(int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static SymbolChangeCache getInstance(Project project) {
+        return project.getService(SymbolChangeCache.class);
+    }
+
+    /**
+     * Declarations stored for the path at exactly this base revision and modification stamp, null when unknown
+     */
+    synchronized SymbolChanges.Symbols get(String path, String beforeVersion, long modificationStamp) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.modificationStamp != modificationStamp || !entry.before.equals(beforeVersion)) {
+            return null;
+        }
+        return entry.symbols;
+    }
+
+    synchronized void put(String path, String beforeVersion, long modificationStamp, SymbolChanges.Symbols symbols) {
+        entries.put(path, new Entry(beforeVersion, modificationStamp, symbols));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        final String before;
+        final long modificationStamp;
+        final SymbolChanges.Symbols symbols;
+
+        Entry(String before, long modificationStamp, SymbolChanges.Symbols symbols) {
+            this.before = before;
+            this.modificationStamp = modificationStamp;
+            this.symbols = symbols;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.sididev;
+
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.ide.structureView.StructureViewModel;
+import com.intellij.ide.structureView.StructureViewTreeElement;
+import com.intellij.ide.structureView.TreeBasedStructureViewBuilder;
+import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.lang.LanguageStructureViewBuilder;
+import com.intellij.navigation.ItemPresentation;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.history.VcsRevisionNumber;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the declarations added, updated and removed in modified files by comparing the structure of
+ * both revisions: the top-level declarations and their members, as the Structure tool window shows
+ * them for any language with PSI support. Declarations whose text differs other than in whitespace
+ * count as updated, and a declaration whose members changed is described by those members. Each
+ * file is parsed in a non-blocking read action that gives way to write actions and is cancelled with
+ * the generation. Analysis stops at a deadline, which also cancels the read action of a file still
+ * being parsed, leaving the remaining files described at file level.
+ */
+final class SymbolChangeReader {
+
+    static final int DEFAULT_BUDGET_MILLIS = 300;
+    static final int DEFAULT_MAX_FILE_CHARS = 256 * 1024;
+
+    // Separates a member from its declaration, and a repeated name such as an overload from its number
+    private static final char MEMBER_SEPARATOR = '\0';
+    private static final char REPEAT_SEPARATOR = '\1';
+
+    private final Project project;
+    private final long deadline;
+    private final int maxFileChars;
+    private final SymbolChangeCache cache;
+
+    /**
+     * @param deadline     {@link System#nanoTime()} after which no further file is analyzed and the file
+     *                     being analyzed is given up
+     * @param maxFileChars larger files are described at file level
+     * @param cache        declarations of earlier runs, or null to analyze every file
+     */
+    SymbolChangeReader(Project project, long deadline, int maxFileChars, SymbolChangeCache cache) {
+        this.project = project;
+        this.deadline = deadline;
+        this.maxFileChars = maxFileChars;
+        this.cache = cache;
+    }
+
+    SymbolChanges read(Collection<Change> changes, ProgressIndicator indicator) {
+        SymbolChanges symbolChanges = new SymbolChanges();
+        // Cancelled with the generation, and by the timer at the deadline
+        ProgressIndicator readIndicator = new SensitiveProgressWrapper(indicator);
+        ScheduledFuture<?> timer = AppExecutorUtil.getAppScheduledExecutorService().schedule(
+                readIndicator::cancel, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        try {
+            for (Change change : changes) {
+                indicator.checkCanceled();
+                if (change.getBeforeRevision() == null || change.getAfterRevision() == null) continue;
+                if (System.nanoTime() >= deadline) {
+                    symbolChanges.skip();
+                    continue;
+                }
+                try {
+                    analyze(change, indicator, readIndicator, symbolChanges);
+                } catch (ProcessCanceledException e) {
+                    // Only the deadline: the file is left at file level
+                    if (indicator.isCanceled()) throw e;
+                    symbolChanges.skip();
+                } catch (VcsException | RuntimeException e) {
+                    symbolChanges.skip();
+                }
+            }
+        } finally {
+            timer.cancel(false);
+        }
+        return symbolChanges;
+    }
+
+    /**
+     * @param readIndicator cancelled with the generation or at the deadline
+     */
+    private void analyze(Change change, ProgressIndicator indicator, ProgressIndicator readIndicator,
+                         SymbolChanges symbolChanges) throws VcsException {
+        VirtualFile file = change.getVirtualFile();
+        if (file == null || !file.isValid() || file.getFileType().isBinary() || file.getLength() > maxFileChars) {
+            symbolChanges.skip();
+            return;
+        }
+        String path = file.getPath();
+        String beforeVersion = version(change.getBeforeRevision());
+        long modificationStamp = modificationStamp(file);
+        if (cache != null && beforeVersion != null) {
+            SymbolChanges.Symbols cached = cache.get(path, beforeVersion, modificationStamp);
+            if (cached != null) {
+                symbolChanges.put(path, cached);
+                symbolChanges.countCached();
+                return;
+            }
+        }
+
+        // The base revision may come from the VCS, so it is loaded before taking the read action
+        String beforeText = change.getBeforeRevision().getContent();
+        // Loading it may have taken up the rest of the budget
+        if (beforeText == null || beforeText.length() > maxFileChars || System.nanoTime() >= deadline) {
+            symbolChanges.skip();
+            return;
+        }
+        indicator.checkCanceled();
+        SymbolChanges.Symbols symbols = ReadAction.nonBlocking(() -> compare(file, beforeText))
+                .wrapProgress(readIndicator)
+                .executeSynchronously();
+        if (symbols == null) {
+            symbolChanges.skip();
+            return;
+        }
+        if (cache != null && beforeVersion != null) cache.put(path, beforeVersion, modificationStamp, symbols);
+        symbolChanges.put(path, symbols);
+    }
+
+    /**
+     * Changed declarations of the current file against the base text, null without a structure view
+     */
+    private SymbolChanges.Symbols compare(VirtualFile file, String beforeText) {
+        PsiFile current = currentPsi(file);
+        Map<String, Integer> after = current != null ? declarations(current) : null;
+        if (after == null) return null;
+        PsiFile base = PsiFileFactory.getInstance(project).createFileFromText(file.getName(), file.getFileType(),
+                beforeText);
+        Map<String, Integer> before = base != null ? declarations(base) : null;
+        return before != null ? diff(before, after) : null;
+    }
+
+    /**
+     * PSI of the file as edited, parsed from the document when it was not committed to the PSI yet
+     */
+    private PsiFile currentPsi(VirtualFile file) {
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        if (document != null && PsiDocumentManager.getInstance(project).isUncommited(document)) {
+            return PsiFileFactory.getInstance(project).createFileFromText(file.getName(), file.getFileType(),
+                    document.getImmutableCharSequence());
+        }
+        return PsiManager.getInstance(project).findFile(file);
+    }
+
+    /**
+     * Hashes of the top-level declarations and their members by key, null if the language has no
+     * structure view
+     */
+    private static Map<String, Integer> declarations(PsiFile file) {
+        StructureViewBuilder builder = LanguageStructureViewBuilder.INSTANCE.getStructureViewBuilder(file);
+        if (!(builder instanceof TreeBasedStructureViewBuilder)) return null;
+        StructureViewModel model = ((TreeBasedStructureViewBuilder) builder).createStructureViewModel(null);
+        try {
+            Map<String, Integer> declarations = new LinkedHashMap<>();
+            for (TreeElement element : model.getRoot().getChildren()) {
+                String key = add(declarations, "", element);
+                if (key == null) continue;
+                for (TreeElement member : element.getChildren()) {
+                    add(declarations, key + MEMBER_SEPARATOR, member);
+                }
+            }
+            return declarations;
+        } finally {
+            Disposer.dispose(model);
+        }
+    }
+
+    /**
+     * Add a declaration under a unique key; the key, or null if the element is not a named declaration
+     */
+    private static String add(Map<String, Integer> declarations, String prefix, TreeElement element) {
+        if (!(element instanceof StructureViewTreeElement)) return null;
+        Object value = ((StructureViewTreeElement) element).getValue();
+        if (!(value instanceof PsiElement)) return null;
+        String name = value instanceof PsiNamedElement ? ((PsiNamedElement) value).getName() : null;
+        if (name == null) {
+            ItemPresentation presentation = element.getPresentation();
+            name = presentation != null ? presentation.getPresentableText() : null;
+        }
+        if (name == null || name.isEmpty()) return null;
+
+        String key = prefix + name;
+        for (int repeat = 2; declarations.containsKey(key); repeat++) {
+            key = prefix + name + REPEAT_SEPARATOR + repeat;
+        }
+        declarations.put(key, hashIgnoringWhitespace(((PsiElement) value).getText()));
+        return key;
+    }
+
+    /**
+     * Added, updated and removed declarations between two sets of declarations by key
+     */
+    static SymbolChanges.Symbols diff(Map<String, Integer> before, Map<String, Integer> after) {
+        Set<String> added = new LinkedHashSet<>();
+        Set<String> updated = new LinkedHashSet<>();
+        Set<String> removed = new LinkedHashSet<>();
+        // Declarations with a changed member, described by their members instead
+        Set<String> owners = new LinkedHashSet<>();
+        for (Map.Entry<String, Integer> entry : after.entrySet()) {
+            Integer previous = before.get(entry.getKey());
+            if (previous == null) {
+                added.add(entry.getKey());
+                addOwner(owners, entry.getKey());
+            } else if (!previous.equals(entry.getValue())) {
+                updated.add(entry.getKey());
+                addOwner(owners, entry.getKey());
+            }
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                removed.add(key);
+                addOwner(owners, key);
+            }
+        }
+        updated.removeAll(owners);
+        if (added.isEmpty() && updated.isEmpty() && removed.isEmpty()) return SymbolChanges.Symbols.NONE;
+        return new SymbolChanges.Symbols(displayNames(added), displayNames(updated), displayNames(removed));
+    }
+
+    private static void addOwner(Set<String> owners, String key) {
+        int separator = key.indexOf(MEMBER_SEPARATOR);
+        if (separator >= 0) owners.add(key.substring(0, separator));
+    }
+
+    /**
+     * Names as shown in messages, e.g. "Invoice.total"; repeated names such as overloads are shown once
+     */
+    private static String[] displayNames(Set<String> keys) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String key : keys) {
+            StringBuilder name = new StringBuilder(key.length());
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c == MEMBER_SEPARATOR) {
+                    name.append('.');
+                } else if (c == REPEAT_SEPARATOR) {
+                    // The number runs up to the next member separator or the end
+                    while (i + 1 < key.length() && key.charAt(i + 1) != MEMBER_SEPARATOR) i++;
+                } else {
+                    name.append(c);
+                }
+            }
+            names.add(name.toString());
+        }
+        return names.toArray(new String[0]);
+    }
+
+    private static int hashIgnoringWhitespace(String text) {
+        int hash = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    private static long modificationStamp(VirtualFile file) {
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        return document != null ? document.getModificationStamp() : file.getModificationStamp();
+    }
+
+    /**
+     * Identifies the base revision by path and VCS revision number; null when it has none
+     */
+    private static String version(ContentRevision revision) {
+        VcsRevisionNumber number = revision.getRevisionNumber();
+        String id = number != null ? number.asString() : null;
+        return id == null || id.isEmpty() ? null : revision.getFile().getPath() + "@" + id;
+    }
+}
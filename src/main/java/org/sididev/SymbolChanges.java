@@ -0,0 +1,84 @@
+package org.sididev;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Declarations added, updated and removed in the modified files analyzed within the budget.
+ * Files that were not analyzed (no structure view, too large, out of time) or whose declarations
+ * did not change are absent, and are described at file level.
+ */
+final class SymbolChanges {
+
+    static final SymbolChanges EMPTY = new SymbolChanges();
+
+    private final Map<String, Symbols> files = new HashMap<>();
+    private int skipped;
+    private int cached;
+
+    void put(String path, Symbols symbols) {
+        if (!symbols.isEmpty()) files.put(path, symbols);
+    }
+
+    void skip() {
+        skipped++;
+    }
+
+    /**
+     * Note that the last file put was answered from the cache
+     */
+    void countCached() {
+        cached++;
+    }
+
+    /**
+     * Add the files of another instance, expected to be distinct from these
+     */
+    void addAll(SymbolChanges other) {
+        files.putAll(other.files);
+        skipped += other.skipped;
+        cached += other.cached;
+    }
+
+    /**
+     * Changed declarations of a file, or null if none are known
+     */
+    Symbols get(String path) {
+        return path != null ? files.get(path) : null;
+    }
+
+    /**
+     * Number of files left out because they could not be analyzed or the budget ran out
+     */
+    int skipped() {
+        return skipped;
+    }
+
+    /**
+     * Number of files whose declarations came from the cache
+     */
+    int cached() {
+        return cached;
+    }
+
+    /**
+     * Display names of the changed declarations of one file, e.g. "Invoice" or "Invoice.total"
+     */
+    static final class Symbols {
+        static final Symbols NONE = new Symbols(new String[0], new String[0], new String[0]);
+
+        final String[] added;
+        final String[] updated;
+        final String[] removed;
+
+        Symbols(String[] added, String[] updated, String[] removed) {
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+        }
+
+        boolean isEmpty() {
+            return added.length == 0 && updated.length == 0 && removed.length == 0;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.sididev;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Interned extension ids and primitive counters give the same answers as the String-keyed
+ * HashMap counters of the previous ChangeStats
+ */
+public class ChangeStatsTest {
+
+    // Well-known extensions in several cases, and others that are interned on first use
+    private static final String[] EXTENSIONS = {
+            "java", "JAVA", "Java", "php", "js", "py", "kt", "ts", "css", "scss", "sass", "less", "json", "xml",
+            "yml", "yaml", "properties", "gradle", "maven", "md", "MD", "txt", "rst", "test", "vue", "jsx", "html",
+            "sql", "go", "rs", "c", "h", "cpp", "hpp", "swift", "rb", "Rb", "log", "lock", "toml", "ini", "sh",
+            "bat", "png", "svg", "csv", "",
+    };
+
+    @Test
+    public void addedChangesMatchStringCounters() {
+        Random random = new Random(42);
+        for (int changeset = 0; changeset < 20_000; changeset++) {
+            ChangeStats stats = new ChangeStats();
+            Map<String, Integer> legacy = new HashMap<>();
+            int files = 1 + random.nextInt(random.nextBoolean() ? 5 : 60);
+            for (int i = 0; i < files; i++) {
+                FileChange fc = change(random, EXTENSIONS.length);
+                stats.add(fc);
+                increment(legacy, legacyExtension(fc.fileName));
+            }
+            assertSameExtensions(legacy, stats);
+        }
+    }
+
+    @Test
+    public void addedAndRemovedChangesMatchStringCounters() {
+        Random random = new Random(7);
+        for (int run = 0; run < 2_000; run++) {
+            ChangeStats stats = new ChangeStats();
+            Map<String, Integer> legacy = new HashMap<>();
+            List<FileChange> present = new ArrayList<>();
+            for (int step = 0; step < 50; step++) {
+                if (!present.isEmpty() && random.nextInt(3) == 0) {
+                    FileChange fc = present.remove(random.nextInt(present.size()));
+                    stats.remove(fc);
+                    decrement(legacy, legacyExtension(fc.fileName));
+                } else {
+                    // At most 12 kinds, so the old map never grew and shrinking it again changes no iteration order
+                    FileChange fc = change(random, 12);
+                    present.add(fc);
+                    stats.add(fc);
+                    increment(legacy, legacyExtension(fc.fileName));
+                }
+                assertSameExtensions(legacy, stats);
+            }
+        }
+    }
+
+    @Test
+    public void mergedStatsMatchSequentialStats() {
+        Random random = new Random(3);
+        for (int run = 0; run < 2_000; run++) {
+            ChangeStats sequential = new ChangeStats();
+            ChangeStats merged = new ChangeStats();
+            ChangeStats part = new ChangeStats();
+            for (int i = 0; i < 40; i++) {
+                FileChange fc = change(random, EXTENSIONS.length);
+                sequential.add(fc);
+                part.add(fc);
+                if (random.nextInt(8) == 0) {
+                    merged.merge(part);
+                    part = new ChangeStats();
+                }
+            }
+            merged.merge(part);
+            assertEquals(extensionNames(sequential), extensionNames(merged));
+            assertEquals(FileExtensions.name(sequential.mainExtension()), FileExtensions.name(merged.mainExtension()));
+        }
+    }
+
+    private static void assertSameExtensions(Map<String, Integer> legacy, ChangeStats stats) {
+        assertEquals(legacy.keySet(), extensionNames(stats));
+        for (int i = 0; i < stats.extensionKinds(); i++) {
+            int id = stats.extensionAt(i);
+            assertEquals(legacy.get(FileExtensions.name(id)).intValue(), stats.extensions[id]);
+        }
+        for (int id = FileExtensions.JAVA; id <= FileExtensions.SQL; id++) {
+            assertEquals(FileExtensions.name(id), legacy.containsKey(FileExtensions.name(id)),
+                    stats.hasAnyExtension(FileExtensions.bit(id)));
+        }
+        String legacyMain = legacy.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(null);
+        assertEquals(legacy.toString(), legacyMain, FileExtensions.name(stats.mainExtension()));
+    }
+
+    private static Set<String> extensionNames(ChangeStats stats) {
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < stats.extensionKinds(); i++) {
+            names.add(FileExtensions.name(stats.extensionAt(i)));
+        }
+        return names;
+    }
+
+    private static FileChange change(Random random, int kinds) {
+        FileChange fc = new FileChange();
+        int kind = random.nextInt(kinds + 1);
+        fc.fileName = kind == kinds ? "Makefile" : "File" + random.nextInt(100) + "." + EXTENSIONS[kind];
+        fc.extension = FileExtensions.idOf(fc.fileName);
+        fc.operation = ChangeOperation.VALUES[random.nextInt(ChangeOperation.VALUES.length)];
+        fc.context = FileContext.VALUES[random.nextInt(FileContext.VALUES.length)];
+        return fc;
+    }
+
+    /**
+     * Counted as CommitMessageBuilder.analyzeChangeStats did. put() appends a new key to its hash bucket,
+     * where merge() would prepend it, so this is what decides ties between extensions in one bucket.
+     */
+    private static void increment(Map<String, Integer> counts, String extension) {
+        if (extension != null) counts.put(extension, counts.getOrDefault(extension, 0) + 1);
+    }
+
+    private static void decrement(Map<String, Integer> counts, String extension) {
+        Integer count = extension != null ? counts.get(extension) : null;
+        if (count == null) return;
+        if (count > 1) {
+            counts.put(extension, count - 1);
+        } else {
+            counts.remove(extension);
+        }
+    }
+
+    /**
+     * ChangeAnalyzer.extractFileExtension before extensions were interned
+     */
+    private static String legacyExtension(String fileName) {
+        if (fileName != null && fileName.contains(".")) {
+            return fileName.substring(fileName.lastIndexOf(".") + 1).toLowerCase();
+        }
+        return null;
+    }
+}
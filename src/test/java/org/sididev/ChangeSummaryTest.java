@@ -0,0 +1,145 @@
+package org.sididev;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A live summary kept up to date by puts and removals summarizes exactly like a single pass over its
+ * changes in the order they were put
+ */
+public class ChangeSummaryTest {
+
+    private static final String BASE_PATH = "/project";
+    private static final String[] DIRECTORIES = {
+            "", "src/", "src/main/", "src/main/java/", "src/test/", "docs/", "config/", "web/ui/components/",
+    };
+
+    @Test
+    public void liveCopiesMatchAFreshSummary() {
+        Random random = new Random(11);
+        for (int run = 0; run < 500; run++) {
+            int maxEntries = 1 + random.nextInt(6);
+            ChangeSummary.Live live = new ChangeSummary.Live(BASE_PATH);
+            Map<String, FileChange> reference = new LinkedHashMap<>();
+            for (int step = 0; step < 200; step++) {
+                if (!reference.isEmpty() && random.nextInt(3) == 0) {
+                    List<String> paths = new ArrayList<>(reference.keySet());
+                    String path = paths.get(random.nextInt(paths.size()));
+                    live.remove(path);
+                    reference.remove(path);
+                } else {
+                    FileChange fc = change(random);
+                    live.put(fc);
+                    reference.remove(fc.path);
+                    reference.put(fc.path, fc);
+                }
+
+                if (step % 20 == 19) {
+                    LineStats lineStats = lineStats(random, reference);
+                    assertSameSummary(fresh(reference, maxEntries, lineStats),
+                            live.copy(maxEntries).summarize(lineStats), maxEntries);
+                }
+            }
+            assertEquals(reference.size(), live.size());
+        }
+    }
+
+    @Test
+    public void changesAfterTheCopyAreLeftOut() {
+        Random random = new Random(5);
+        ChangeSummary.Live live = new ChangeSummary.Live(BASE_PATH);
+        Map<String, FileChange> reference = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            FileChange fc = change(random);
+            live.put(fc);
+            reference.remove(fc.path);
+            reference.put(fc.path, fc);
+        }
+
+        ChangeSummary.Copy copy = live.copy(3);
+        LineStats lineStats = lineStats(random, reference);
+        for (int i = 0; i < 50; i++) {
+            FileChange fc = change(random);
+            fc.path = BASE_PATH + "/late/Late" + i + ".java";
+            live.put(fc);
+            lineStats.put(fc.path, 1_000, 1_000);
+        }
+        assertSameSummary(fresh(reference, 3, lineStats), copy.summarize(lineStats), 3);
+    }
+
+    private static FileChange change(Random random) {
+        FileChange fc = new FileChange();
+        fc.fileName = "File" + random.nextInt(40) + (random.nextBoolean() ? ".java" : ".md");
+        fc.directory = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+        fc.path = BASE_PATH + "/" + fc.directory + fc.fileName;
+        fc.extension = FileExtensions.idOf(fc.fileName);
+        fc.operation = ChangeOperation.VALUES[random.nextInt(ChangeOperation.VALUES.length)];
+        fc.context = FileContext.VALUES[random.nextInt(FileContext.VALUES.length)];
+        if (fc.operation == ChangeOperation.MOVE && random.nextBoolean()) {
+            fc.previousPath = BASE_PATH + "/" + DIRECTORIES[random.nextInt(DIRECTORIES.length)] + fc.fileName;
+        }
+        return fc;
+    }
+
+    /**
+     * Line counts for some of the changes, some of them without changed lines, and for other paths
+     */
+    private static LineStats lineStats(Random random, Map<String, FileChange> changes) {
+        LineStats lineStats = new LineStats();
+        for (String path : changes.keySet()) {
+            int kind = random.nextInt(4);
+            if (kind == 0) lineStats.put(path, 0, 0);
+            if (kind == 1) lineStats.put(path, random.nextInt(5), random.nextInt(5));
+        }
+        lineStats.put(BASE_PATH + "/absent/Absent.java", 100, 100);
+        return lineStats;
+    }
+
+    private static ChangeSummary fresh(Map<String, FileChange> changes, int maxEntries, LineStats lineStats) {
+        ChangeSummary summary = new ChangeSummary(maxEntries).withBasePath(BASE_PATH).withLineStats(lineStats);
+        for (FileChange fc : changes.values()) {
+            summary.accept(fc);
+        }
+        return summary;
+    }
+
+    private static void assertSameSummary(ChangeSummary expected, ChangeSummary actual, int maxEntries) {
+        assertEquals(expected.size(), actual.size());
+        assertSame(expected.first(), actual.first());
+        assertEquals(expected.otherMoveFiles(), actual.otherMoveFiles());
+        assertEquals(moves(expected), moves(actual));
+        for (ChangeOperation operation : ChangeOperation.VALUES) {
+            ChangeSummary.Group expectedGroup = expected.group(operation);
+            ChangeSummary.Group actualGroup = actual.group(operation);
+            assertEquals(operation.id, expectedGroup.count(), actualGroup.count());
+            assertEquals(expected.stats().count(operation), actual.stats().count(operation));
+            assertEquals(expectedGroup.omitted(), actualGroup.omitted());
+            assertEquals(expectedGroup.entries(), actualGroup.entries());
+            assertEquals(expectedGroup.topEntries(maxEntries), actualGroup.topEntries(maxEntries));
+            assertEquals(locations(expectedGroup), locations(actualGroup));
+            assertEquals(expectedGroup.otherLocationFiles(), actualGroup.otherLocationFiles());
+        }
+        assertEquals(expected.stats().mainExtension(), actual.stats().mainExtension());
+        assertEquals(expected.stats().contextBits, actual.stats().contextBits);
+    }
+
+    private static List<String> moves(ChangeSummary summary) {
+        List<String> moves = new ArrayList<>();
+        for (ChangeSummary.Move move : summary.moves()) moves.add(move.from + " -> " + move.to + ": " + move.count);
+        return moves;
+    }
+
+    private static List<String> locations(ChangeSummary.Group group) {
+        List<String> locations = new ArrayList<>();
+        for (ChangeSummary.Location location : group.locations()) locations.add(location.name + ": " + location.count);
+        return locations;
+    }
+}
@@ -0,0 +1,95 @@
+package org.sididev;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommitMessageBuilderTest {
+
+    private static final String[] FILE_NAMES = {
+            "Service.java", "app.js", "index.php", "tool.py", "main.css", "page.html", "package.json", "pom.xml",
+            "README.md", "build.gradle", "ci.yml", "values.yaml", "Makefile", "notes.txt",
+    };
+
+    @Test
+    public void defaultTemplatesDescribeSingleFilesAsBefore() {
+        CommitMessageBuilder builder = new CommitMessageBuilder();
+        for (String fileName : FILE_NAMES) {
+            for (ChangeOperation operation : ChangeOperation.VALUES) {
+                for (FileContext context : FileContext.VALUES) {
+                    FileChange fc = change(fileName, operation, context);
+                    ChangeSummary summary = new ChangeSummary(ChangeSummary.DEFAULT_ENTRIES_PER_OPERATION);
+                    summary.accept(fc);
+                    assertEquals(legacySingleFileDescription(fc), builder.generateShortDescription(summary));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void configuredTemplateLeavesOutTheQualifier() {
+        CommitMessageBuilder builder = new CommitMessageBuilder().withTemplates(
+                MessageTemplates.compile(null, "{verb} {kind}[ {area}]", null, null, null));
+        ChangeSummary summary = new ChangeSummary(ChangeSummary.DEFAULT_ENTRIES_PER_OPERATION);
+        summary.accept(change("main.css", ChangeOperation.ADD, FileContext.STYLE));
+        assertEquals("add stylesheet", builder.generateShortDescription(summary));
+    }
+
+    private static FileChange change(String fileName, ChangeOperation operation, FileContext context) {
+        FileChange fc = new FileChange();
+        fc.fileName = fileName;
+        fc.path = "/project/src/" + fileName;
+        fc.directory = "src";
+        fc.operation = operation;
+        fc.context = context;
+        fc.extension = FileExtensions.idOf(fileName);
+        return fc;
+    }
+
+    /**
+     * CommitMessageBuilder.generateSingleFileDescription before messages were assembled from templates
+     */
+    private static String legacySingleFileDescription(FileChange fc) {
+        String action = fc.operation.id;
+        String kind = legacyFileTypeDescription(fc);
+
+        if (fc.context != null && fc.context != FileContext.FILE) {
+            switch (fc.context) {
+                case CONFIG:
+                    return String.format("%s %s configuration", action, kind);
+                case API:
+                    return String.format("%s %s API endpoint", action, kind);
+                case UI:
+                    return String.format("%s %s component", action, kind);
+                case TEST:
+                    return String.format("%s %s tests", action, kind);
+                case DATABASE:
+                    return String.format("%s %s schema", action, kind);
+                case AUTH:
+                    return String.format("%s %s authentication", action, kind);
+                default:
+                    return String.format("%s %s %s", action, fc.context.id, kind);
+            }
+        }
+
+        return String.format("%s %s", action, kind);
+    }
+
+    private static String legacyFileTypeDescription(FileChange fc) {
+        switch (fc.extension) {
+            case FileExtensions.JAVA: return "Java class";
+            case FileExtensions.JS: return "JavaScript module";
+            case FileExtensions.PHP: return "PHP script";
+            case FileExtensions.PY: return "Python module";
+            case FileExtensions.CSS: return "stylesheet";
+            case FileExtensions.HTML: return "HTML template";
+            case FileExtensions.JSON: return "JSON config";
+            case FileExtensions.XML: return "XML config";
+            case FileExtensions.MD: return "documentation";
+            case FileExtensions.GRADLE: return "build script";
+            case FileExtensions.YML:
+            case FileExtensions.YAML: return "YAML config";
+            default: return fc.fileName;
+        }
+    }
+}
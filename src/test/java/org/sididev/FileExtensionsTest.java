@@ -0,0 +1,55 @@
+package org.sididev;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FileExtensionsTest {
+
+    @Test
+    public void wellKnownExtensionsHaveFixedIds() {
+        assertEquals(FileExtensions.JAVA, FileExtensions.idOf("Main.JAVA"));
+        assertEquals(FileExtensions.SQL, FileExtensions.idOf("schema.v2.sql"));
+        assertEquals(FileExtensions.OTHER, FileExtensions.idOf("trailing."));
+        assertEquals(FileExtensions.NONE, FileExtensions.idOf("Makefile"));
+        assertNull(FileExtensions.name(FileExtensions.NONE));
+    }
+
+    @Test
+    public void concurrentInsertionsAgreeOnIds() throws Exception {
+        // Enough new extensions to double the table a few times, far below the cap
+        int extensions = 1_000;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                boolean upperCase = thread % 2 == 0;
+                results.add(executor.submit(() -> {
+                    int[] ids = new int[extensions];
+                    for (int i = 0; i < extensions; i++) {
+                        String extension = "growth" + i;
+                        ids[i] = FileExtensions.idOf("file." + (upperCase ? extension.toUpperCase() : extension));
+                    }
+                    return ids;
+                }));
+            }
+            int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                int[] ids = result.get();
+                for (int i = 0; i < extensions; i++) {
+                    assertEquals(expected[i], ids[i]);
+                    assertEquals("growth" + i, FileExtensions.name(ids[i]));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
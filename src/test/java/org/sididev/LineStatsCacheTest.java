@@ -0,0 +1,172 @@
+package org.sididev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The line stats cache file written, reloaded and damaged on disk
+ */
+public class LineStatsCacheTest {
+
+    private static final int HEADER_BYTES = 8;
+
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("line-stats-test");
+        file = directory.resolve("cache").resolve("line-stats.bin");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void entriesSurviveAReload() {
+        LineStatsCache cache = cache();
+        cache.put("/p/A.java", "1", "2", 3, 4);
+        cache.put("/p/B.bin", "1", "2", LineStatsCache.UNCOUNTABLE, LineStatsCache.UNCOUNTABLE);
+        cache.flush();
+
+        LineStatsCache reloaded = cache();
+        assertArrayEquals(new int[]{3, 4}, reloaded.get("/p/A.java", "1", "2"));
+        assertArrayEquals(new int[]{LineStatsCache.UNCOUNTABLE, LineStatsCache.UNCOUNTABLE},
+                reloaded.get("/p/B.bin", "1", "2"));
+        assertNull(reloaded.get("/p/A.java", "1", "3"));
+    }
+
+    @Test
+    public void aTruncatedTailIsCutOff() throws IOException {
+        long[] ends = writeRecords("/p/A.java", "/p/B.java", "/p/C.java");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(ends[2] - 3);
+        }
+
+        LineStatsCache reloaded = cache();
+        assertEquals(2, reloaded.size());
+        assertNull(reloaded.get("/p/C.java", "1", "2"));
+        assertEquals(ends[1], Files.size(file));
+
+        // Later appends follow the last good record
+        reloaded.put("/p/D.java", "1", "2", 7, 8);
+        reloaded.flush();
+        LineStatsCache again = cache();
+        assertEquals(3, again.size());
+        assertArrayEquals(new int[]{7, 8}, again.get("/p/D.java", "1", "2"));
+    }
+
+    @Test
+    public void aChecksumMismatchDropsTheRecordAndTheRest() throws IOException {
+        long[] ends = writeRecords("/p/A.java", "/p/B.java", "/p/C.java");
+        // A byte of the path in the second record
+        flipByte(ends[0] + 4 + 2);
+
+        LineStatsCache reloaded = cache();
+        assertEquals(1, reloaded.size());
+        assertArrayEquals(new int[]{1, 1}, reloaded.get("/p/A.java", "1", "2"));
+        assertEquals(ends[0], Files.size(file));
+    }
+
+    @Test
+    public void anUnknownMagicDiscardsTheFile() throws IOException {
+        writeRecords("/p/A.java", "/p/B.java");
+        flipByte(0);
+
+        assertEquals(0, cache().size());
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void anUnknownVersionDiscardsTheFile() throws IOException {
+        writeRecords("/p/A.java", "/p/B.java");
+        flipByte(7);
+
+        assertEquals(0, cache().size());
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void supersededRecordsAreCompactedAway() throws IOException {
+        LineStatsCache cache = cache();
+        cache.put("/p/B.java", "1", "2", 5, 6);
+        cache.flush();
+        long oneRecord = Files.size(file) - HEADER_BYTES;
+        for (int i = 0; i < 2_000; i++) {
+            cache.put("/p/A.java", "1", "2", i, i);
+            cache.flush();
+        }
+
+        assertTrue(Files.size(file) < HEADER_BYTES + 1_100 * oneRecord);
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+        LineStatsCache reloaded = cache();
+        assertEquals(2, reloaded.size());
+        assertArrayEquals(new int[]{1_999, 1_999}, reloaded.get("/p/A.java", "1", "2"));
+        assertArrayEquals(new int[]{5, 6}, reloaded.get("/p/B.java", "1", "2"));
+    }
+
+    @Test
+    public void aPathTooLongToStoreIsSkipped() {
+        char[] name = new char[70_000];
+        Arrays.fill(name, 'a');
+        String longPath = "/p/" + new String(name);
+
+        LineStatsCache cache = cache();
+        cache.put("/p/A.java", "1", "2", 1, 2);
+        cache.put(longPath, "1", "2", 3, 4);
+        cache.put("/p/B.java", "1", "2", 5, 6);
+        cache.flush();
+        assertArrayEquals(new int[]{3, 4}, cache.get(longPath, "1", "2"));
+
+        LineStatsCache reloaded = cache();
+        assertEquals(2, reloaded.size());
+        assertNull(reloaded.get(longPath, "1", "2"));
+        assertArrayEquals(new int[]{5, 6}, reloaded.get("/p/B.java", "1", "2"));
+    }
+
+    private LineStatsCache cache() {
+        return new LineStatsCache(file, LineStatsCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * One flush per path, so the file ends after each record at the returned offsets
+     */
+    private long[] writeRecords(String... paths) throws IOException {
+        LineStatsCache cache = cache();
+        long[] ends = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            cache.put(paths[i], "1", "2", i + 1, i + 1);
+            cache.flush();
+            ends[i] = Files.size(file);
+        }
+        return ends;
+    }
+
+    private void flipByte(long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0x01);
+        }
+    }
+}
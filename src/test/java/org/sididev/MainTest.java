@@ -0,0 +1,156 @@
+package org.sididev;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The prepare-commit-msg hook on real repositories, including ones the index reader cannot handle.
+ * Needs git on the path.
+ */
+public class MainTest {
+
+    private Path repository;
+
+    @Before
+    public void createRepository() throws Exception {
+        repository = Files.createTempDirectory("smart-commit-test");
+        git("init", "-q");
+        Files.createDirectories(repository.resolve("src"));
+        Files.write(repository.resolve("src/App.java"), "class App {}\n".getBytes(StandardCharsets.UTF_8));
+        git("add", ".");
+        git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "init");
+        Files.write(repository.resolve("src/Added.java"), "class Added {}\n".getBytes(StandardCharsets.UTF_8));
+        git("add", ".");
+        // Writing the tree fills the cache tree extension of the index
+        git("write-tree");
+    }
+
+    @After
+    public void deleteRepository() throws IOException {
+        try (Stream<Path> files = Files.walk(repository)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void hookFallsBackToGitWhenTheCacheTreeIsDamaged() throws Exception {
+        byte[] index = index();
+        int tree = treeExtension(index);
+        // The entry count of the root directory follows its empty name
+        index[tree + 9] = 'x';
+        writeIndex(index, true);
+
+        assertDamaged();
+        assertHookSuggests("feat");
+    }
+
+    @Test
+    public void hookFallsBackToGitWhenTheChecksumDoesNotMatch() throws Exception {
+        byte[] index = index();
+        index[treeExtension(index) + 9] ^= 1;
+        writeIndex(index, false);
+
+        assertDamaged();
+        assertHookSuggests("feat");
+    }
+
+    @Test
+    public void hookIgnoresTheDiffBelowTheScissorsLine() throws Exception {
+        String template = "\n# Please enter the commit message\n"
+                + "# ------------------------ >8 ------------------------\n"
+                + "# Do not modify or remove the line above.\n"
+                + "diff --git a/src/Added.java b/src/Added.java\n"
+                + "+class Added {}\n";
+
+        String message = runHook(template);
+        assertTrue(message, message.startsWith("feat"));
+        assertTrue(message, message.endsWith(template));
+    }
+
+    @Test
+    public void hookKeepsAMessageAboveTheScissorsLine() throws Exception {
+        String template = "Typed message\n"
+                + "# ------------------------ >8 ------------------------\n"
+                + "diff --git a/src/Added.java b/src/Added.java\n";
+
+        assertEquals(template, runHook(template));
+    }
+
+    private void assertDamaged() {
+        try {
+            GitIndex.read(repository.resolve(".git/index"));
+            fail("Damaged index was read");
+        } catch (IOException e) {
+            // Expected, and not a runtime exception
+        }
+    }
+
+    private void assertHookSuggests(String type) throws IOException {
+        String message = runHook("\n# Please enter the commit message\n");
+        assertTrue(message, message.startsWith(type));
+    }
+
+    /**
+     * Run the hook on a message file with the given content and return its content afterwards
+     */
+    private String runHook(String template) throws IOException {
+        Path messageFile = repository.resolve(".git/COMMIT_EDITMSG");
+        Files.write(messageFile, template.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        int exitCode = Main.run(new String[]{"hook", messageFile.toString(), "--root", repository.toString()},
+                InputStream.nullInputStream(), new PrintStream(new ByteArrayOutputStream()), new PrintStream(err));
+
+        assertEquals(err.toString(), 0, exitCode);
+        return new String(Files.readAllBytes(messageFile), StandardCharsets.UTF_8);
+    }
+
+    private byte[] index() throws IOException {
+        return Files.readAllBytes(repository.resolve(".git/index"));
+    }
+
+    private static int treeExtension(byte[] index) {
+        for (int i = 12; i + 4 <= index.length; i++) {
+            if (index[i] == 'T' && index[i + 1] == 'R' && index[i + 2] == 'E' && index[i + 3] == 'E') return i;
+        }
+        throw new AssertionError("No cache tree extension");
+    }
+
+    private void writeIndex(byte[] index, boolean updateChecksum) throws Exception {
+        if (updateChecksum) {
+            int end = index.length - GitObjectStore.ID_LENGTH;
+            byte[] checksum = MessageDigest.getInstance("SHA-1").digest(Arrays.copyOf(index, end));
+            System.arraycopy(checksum, 0, index, end, checksum.length);
+        }
+        Files.write(repository.resolve(".git/index"), index);
+    }
+
+    private void git(String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process git = new ProcessBuilder(command)
+                .directory(repository.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        assertEquals(String.join(" ", command), 0, git.waitFor());
+    }
+}
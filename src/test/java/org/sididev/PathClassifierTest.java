@@ -0,0 +1,125 @@
+package org.sididev;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The compiled default rules classify exactly as the {@code contains()} chains they replaced
+ */
+public class PathClassifierTest {
+
+    // Every keyword of the old chains, keywords containing or overlapping others, and names matching none
+    private static final String[] FRAGMENTS = {
+            "test", "config", "api", "auth", "database", "db", "ui", "component", "style", "css", "doc", "build",
+            "gradle", "maven", "service", "view", "security", "model", "setting", "util", "helper",
+            "contest", "latest", "apiconfig", "testdb", "authui", "guide", "quiet", "docs", "rebuild", "builder",
+            "dbase", "sdbx", "authapi", "capital", "stylesheet", "documentation", "settings", "utilities",
+            "main", "readme", "index", "src", "lib", "x", "",
+    };
+
+    private static final String[] SEPARATORS = {"", ".", "_", "-", "/"};
+
+    @Test
+    public void classifiesFilesLikeTheContainsChains() {
+        PathClassifier classifier = PathClassifier.defaults();
+        List<String> fragments = corpus(false);
+        List<String> pairs = corpus(true);
+        for (String name : pairs) {
+            assertFileContext(classifier, name, null);
+            for (String directory : fragments) assertFileContext(classifier, name, directory);
+        }
+        for (String directory : pairs) {
+            for (String name : fragments) assertFileContext(classifier, name, directory);
+        }
+        assertEquals(FileContext.FILE, classifier.classifyFile(null, "test"));
+    }
+
+    @Test
+    public void classifiesDirectoriesLikeTheContainsChain() {
+        PathClassifier classifier = PathClassifier.defaults();
+        for (String directory : corpus(true)) {
+            assertEquals(directory, legacyDirectoryScope(directory), classifier.classifyDirectory(directory));
+        }
+    }
+
+    private static void assertFileContext(PathClassifier classifier, String name, String directory) {
+        assertEquals(name + " in " + directory, legacyFileContext(name, directory),
+                classifier.classifyFile(name, directory));
+    }
+
+    /**
+     * Fragments, and with pairs also every pair of fragments, in lower, upper, capitalized and alternating case
+     */
+    private static List<String> corpus(boolean pairs) {
+        List<String> names = new ArrayList<>();
+        for (String first : FRAGMENTS) {
+            addCases(names, first);
+            addCases(names, first + ".java");
+            if (!pairs) continue;
+            for (String second : FRAGMENTS) {
+                if (first.isEmpty() || second.isEmpty()) continue;
+                String separator = SEPARATORS[(first.length() + second.length()) % SEPARATORS.length];
+                addCases(names, first + separator + second);
+            }
+        }
+        return names;
+    }
+
+    private static void addCases(List<String> names, String name) {
+        names.add(name);
+        names.add(name.toUpperCase());
+        if (!name.isEmpty()) names.add(Character.toUpperCase(name.charAt(0)) + name.substring(1));
+        StringBuilder alternating = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            alternating.append(i % 2 == 0 ? Character.toUpperCase(c) : c);
+        }
+        names.add(alternating.toString());
+    }
+
+    /**
+     * ChangeAnalyzer.determineFileContext before the rules were compiled
+     */
+    private static FileContext legacyFileContext(String fileName, String directory) {
+        if (fileName == null) return FileContext.FILE;
+
+        String lowerName = fileName.toLowerCase();
+        String lowerDir = directory != null ? directory.toLowerCase() : "";
+
+        if (lowerName.contains("test") || lowerDir.contains("test")) return FileContext.TEST;
+        if (lowerName.contains("config") || lowerDir.contains("config")) return FileContext.CONFIG;
+        if (lowerName.contains("api") || lowerDir.contains("api")) return FileContext.API;
+        if (lowerName.contains("auth") || lowerDir.contains("auth")) return FileContext.AUTH;
+        if (lowerName.contains("database") || lowerName.contains("db") || lowerDir.contains("db")) {
+            return FileContext.DATABASE;
+        }
+        if (lowerName.contains("ui") || lowerName.contains("component") || lowerDir.contains("component")) {
+            return FileContext.UI;
+        }
+        if (lowerName.contains("style") || lowerName.contains("css")) return FileContext.STYLE;
+        if (lowerName.contains("doc") || lowerDir.contains("doc")) return FileContext.DOCS;
+        if (lowerName.contains("build") || lowerName.contains("gradle") || lowerName.contains("maven")) {
+            return FileContext.BUILD;
+        }
+        return FileContext.FILE;
+    }
+
+    /**
+     * The directory loop of CommitMessageBuilder.determineScope before the rules were compiled
+     */
+    private static String legacyDirectoryScope(String directory) {
+        String lowerDir = directory.toLowerCase();
+        if (lowerDir.contains("api") || lowerDir.contains("service")) return "api";
+        if (lowerDir.contains("ui") || lowerDir.contains("component") || lowerDir.contains("view")) return "ui";
+        if (lowerDir.contains("auth") || lowerDir.contains("security")) return "auth";
+        if (lowerDir.contains("database") || lowerDir.contains("db") || lowerDir.contains("model")) return "database";
+        if (lowerDir.contains("config") || lowerDir.contains("setting")) return "config";
+        if (lowerDir.contains("util") || lowerDir.contains("helper")) return "utils";
+        if (lowerDir.contains("test")) return "test";
+        return null;
+    }
+}
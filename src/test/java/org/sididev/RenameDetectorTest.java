@@ -0,0 +1,159 @@
+package org.sididev;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pairing of removed and added files by content, and what is left when the time budget runs out
+ */
+public class RenameDetectorTest {
+
+    private static final int BUDGET_MILLIS = 200;
+
+    @Test
+    public void identicalFilesArePaired() {
+        List<RenameDetector.Candidate> removed = List.of(
+                candidate("old/Other.java", lines("other", 30)),
+                candidate("old/Service.java", lines("service", 30)));
+        List<RenameDetector.Candidate> added = List.of(candidate("new/Renamed.java", lines("service", 30)));
+
+        assertArrayEquals(new int[]{1}, detector(false).pair(removed, added));
+    }
+
+    @Test
+    public void identicalFilesPreferTheSameName() {
+        String content = lines("same", 30);
+        List<RenameDetector.Candidate> removed = List.of(
+                candidate("a/Copy.java", content),
+                candidate("a/Service.java", content));
+        List<RenameDetector.Candidate> added = List.of(candidate("b/Service.java", content));
+
+        assertArrayEquals(new int[]{1}, detector(false).pair(removed, added));
+    }
+
+    @Test
+    public void similarFilesArePaired() {
+        // 80 of 100 lines kept, reindented, with 20 lines replaced
+        StringBuilder before = new StringBuilder();
+        StringBuilder after = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            before.append("line ").append(i).append('\n');
+            after.append(i % 5 == 0 ? "changed " + i : "    line " + i).append('\n');
+        }
+        List<RenameDetector.Candidate> removed = List.of(
+                candidate("src/Parser.java", before.toString()),
+                candidate("src/Unrelated.java", lines("unrelated", 100)));
+        List<RenameDetector.Candidate> added = List.of(candidate("src/parse/Reader.java", after.toString()));
+
+        assertArrayEquals(new int[]{0}, detector(false).pair(removed, added));
+    }
+
+    @Test
+    public void dissimilarFilesAreNotPaired() {
+        List<RenameDetector.Candidate> removed = List.of(
+                candidate("old/Service.java", lines("removed", 50)),
+                candidate("old/Other.java", lines("other", 50)));
+        List<RenameDetector.Candidate> added = List.of(
+                candidate("new/Service.java", lines("added", 50)),
+                candidate("new/Else.java", lines("else", 50)));
+
+        assertArrayEquals(new int[]{-1, -1}, detector(false).pair(removed, added));
+    }
+
+    @Test
+    public void sameNamesLeftByTheBudgetStayUnpaired() {
+        assertArrayEquals(expectedOverBudget(false), detector(false).pair(overBudgetRemoved(), overBudgetAdded()));
+    }
+
+    @Test
+    public void sameNamesLeftByTheBudgetArePairedWhenEnabled() {
+        assertArrayEquals(expectedOverBudget(true), detector(true).pair(overBudgetRemoved(), overBudgetAdded()));
+    }
+
+    @Test
+    public void movedFromMapsAddedToRemovedPaths() {
+        List<RenameDetector.Candidate> removed = List.of(candidate("a/A.java", ""), candidate("a/B.java", ""));
+        List<RenameDetector.Candidate> added = List.of(candidate("b/B.java", ""), candidate("b/C.java", ""));
+
+        assertEquals(Collections.singletonMap("b/B.java", "a/B.java"),
+                RenameDetector.movedFrom(removed, added, new int[]{1, -1}));
+    }
+
+    private static RenameDetector detector(boolean pairUncheckedNames) {
+        return new RenameDetector(BUDGET_MILLIS, RenameDetector.DEFAULT_MIN_SIMILARITY,
+                RenameDetector.DEFAULT_MAX_FILE_BYTES, pairUncheckedNames);
+    }
+
+    /**
+     * Twenty moved files of the same name; the added file of the seventeenth is read after the budget
+     * ran out, so the last three are not read at all and have unrelated content
+     */
+    private static List<RenameDetector.Candidate> overBudgetRemoved() {
+        List<RenameDetector.Candidate> removed = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            removed.add(candidate("old/File" + i + ".java", lines("file" + i, 20)));
+        }
+        return removed;
+    }
+
+    private static List<RenameDetector.Candidate> overBudgetAdded() {
+        List<RenameDetector.Candidate> added = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String path = "new/File" + i + ".java";
+            if (i == 16) {
+                String content = lines("file" + i, 20);
+                added.add(new RenameDetector.Candidate(path, () -> {
+                    sleep(2 * BUDGET_MILLIS);
+                    return stream(content);
+                }));
+            } else {
+                added.add(candidate(path, lines((i > 16 ? "unrelated" : "file") + i, 20)));
+            }
+        }
+        return added;
+    }
+
+    private static int[] expectedOverBudget(boolean pairUncheckedNames) {
+        int[] expected = new int[20];
+        for (int i = 0; i < 20; i++) {
+            expected[i] = i <= 16 || pairUncheckedNames ? i : -1;
+        }
+        return expected;
+    }
+
+    private static RenameDetector.Candidate candidate(String path, String content) {
+        return new RenameDetector.Candidate(path, () -> stream(content));
+    }
+
+    private static String lines(String prefix, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(prefix).append(" line ").append(i).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}